@@ -0,0 +1,160 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.dao;
+
+import au.org.ala.biocache.dto.DownloadCheckpoint;
+import au.org.ala.biocache.dto.DownloadDetailsDTO;
+import au.org.ala.biocache.util.UidCounts;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.log4j.Logger;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the progress of a resumable download as its records are written and saves it as a
+ * checkpoint on the queued download at regular intervals.
+ *
+ * The progress is reported by the download writer thread after each batch has been written, so a
+ * checkpoint only ever covers records that are in the staging file.
+ */
+class DownloadCheckpointer {
+
+    private static final Logger logger = Logger.getLogger(DownloadCheckpointer.class);
+
+    private final DownloadDetailsDTO dd;
+    private final PersistentQueueDAO persistentQueueDAO;
+    private final long interval;
+    private final long startPosition;
+    private final Map<String, String> lastKeys = new ConcurrentHashMap<String, String>();
+    private final Set<String> completedSplits = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile List<String> splits;
+    private final UidCounts uidStats;
+    private long records;
+    private long lastCheckpoint = System.currentTimeMillis();
+    private CountingOutputStream out;
+    private Flushable writer;
+
+    /**
+     * @param dd The download, resumed from its checkpoint
+     * @param persistentQueueDAO The queue that the checkpoints are saved to
+     * @param interval The minimum time (ms) between checkpoints
+     * @param uidStats The record counts of the download, loaded with the counts from the checkpoint
+     */
+    DownloadCheckpointer(DownloadDetailsDTO dd, PersistentQueueDAO persistentQueueDAO, long interval, UidCounts uidStats){
+        this.dd = dd;
+        this.persistentQueueDAO = persistentQueueDAO;
+        this.interval = interval;
+        this.uidStats = uidStats;
+        DownloadCheckpoint checkpoint = dd.getCheckpoint();
+        this.startPosition = checkpoint.getPosition();
+        this.records = checkpoint.getRecords();
+        this.lastKeys.putAll(checkpoint.getLastKeys());
+        this.completedSplits.addAll(checkpoint.getCompletedSplits());
+        this.splits = checkpoint.getSplits();
+        this.uidStats.addAll(checkpoint.getUidStats());
+    }
+
+    /**
+     * @return true when the download already has records in the staging file
+     */
+    boolean isResuming(){
+        return startPosition > 0;
+    }
+
+    long getRecords(){
+        return records;
+    }
+
+    /**
+     * @return the split queries planned for the download, null when they have not been planned
+     */
+    List<String> getSplits(){
+        return splits;
+    }
+
+    void setSplits(List<String> splits){
+        this.splits = splits;
+    }
+
+    boolean isCompleted(String split){
+        return completedSplits.contains(split);
+    }
+
+    /**
+     * @return the last paging key written for the split, null when the split has not been started
+     */
+    String getLastKey(String split){
+        return lastKeys.get(split);
+    }
+
+    /**
+     * Wraps the stream that the records are written to so that the position of a checkpoint can be measured.
+     */
+    OutputStream wrap(OutputStream stream){
+        out = new CountingOutputStream(stream);
+        return out;
+    }
+
+    /**
+     * @param writer Flushed before a checkpoint so that all the written records are in the staging file
+     */
+    void setWriter(Flushable writer){
+        this.writer = writer;
+    }
+
+    /**
+     * Records that a batch of the split has been written up to the supplied key.
+     */
+    void batchWritten(String split, String lastKey, int count){
+        if(lastKey != null){
+            lastKeys.put(split, lastKey);
+        }
+        records += count;
+        if(System.currentTimeMillis() - lastCheckpoint >= interval){
+            checkpoint();
+        }
+    }
+
+    /**
+     * Records that all the records of the split have been written.
+     */
+    void splitCompleted(String split){
+        completedSplits.add(split);
+        lastKeys.remove(split);
+    }
+
+    /**
+     * Saves the current progress on the queued download.
+     */
+    void checkpoint(){
+        try {
+            writer.flush();
+            DownloadCheckpoint checkpoint = new DownloadCheckpoint(startPosition + out.getByteCount(), records, splits, lastKeys, completedSplits, uidStats.toMap());
+            dd.setCheckpoint(checkpoint);
+            persistentQueueDAO.updateDownload(dd);
+            logger.debug("Saved download checkpoint: " + checkpoint);
+        } catch(IOException e){
+            logger.error("Unable to save the download checkpoint", e);
+        }
+        lastCheckpoint = System.currentTimeMillis();
+    }
+}
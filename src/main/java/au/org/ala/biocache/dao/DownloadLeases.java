@@ -0,0 +1,271 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.dao;
+
+import au.org.ala.biocache.dto.DownloadDetailsDTO;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Time limited leases on the offline downloads of a queue that is shared by several nodes.
+ *
+ * A lease is a lock file named by the id of the download that holds the id of the node that has the
+ * lease. It is created atomically, renewed by its node touching it and expires when it hasn't been
+ * renewed for the lease duration, e.g. because its node has died. An expired lease is reclaimed by
+ * renaming it and then checking that the renamed lease is still the expired one, another node may
+ * have reclaimed the lease and created a new one in the meantime. The progress of a leased
+ * download is saved next to its lease so that the node that reclaims it can resume the download.
+ *
+ * A download that is removed by a node other than the one that queued it is marked as done until
+ * the node that queued it removes it from its journal.
+ */
+class DownloadLeases {
+
+    private static final Logger logger = Logger.getLogger(DownloadLeases.class);
+
+    private static final String LEASE = ".lease";
+    private static final String PROGRESS = ".progress";
+    private static final String DONE = ".done";
+    private static final String ENCODING = "UTF-8";
+
+    private final File directory;
+    private final String nodeId;
+    private final long duration;
+    private final ObjectMapper jsonMapper;
+
+    /** The downloads this node has leased */
+    private final Map<String, DownloadDetailsDTO> held = new ConcurrentHashMap<String, DownloadDetailsDTO>();
+    /** The downloads whose leases were reclaimed from this node */
+    private final Set<String> lost = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * @param directory The directory the leases are kept in
+     * @param nodeId The id of this node
+     * @param duration The time (ms) after which a lease that hasn't been renewed expires
+     */
+    DownloadLeases(File directory, String nodeId, long duration, ObjectMapper jsonMapper){
+        this.directory = directory;
+        this.nodeId = nodeId;
+        this.duration = duration;
+        this.jsonMapper = jsonMapper;
+    }
+
+    /**
+     * Leases the download to this node. The checkpoint saved by a node that had the lease before
+     * is copied to the download.
+     *
+     * @return false when another node has the lease
+     */
+    boolean acquire(DownloadDetailsDTO download) throws IOException {
+        String id = download.getId();
+        if(held.containsKey(id)){
+            return false;
+        }
+        File lease = getFile(id, LEASE);
+        if(lease.exists()){
+            long modified = lease.lastModified();
+            String owner = readOwner(lease);
+            //a lease of this node that isn't held was left by this node before it was restarted
+            if(!isExpired(modified) && !nodeId.equals(owner)){
+                return false;
+            }
+            if(!reclaim(id, owner, modified)){
+                return false;
+            }
+        }
+        if(!lease.createNewFile()){
+            return false;
+        }
+        FileUtils.writeStringToFile(lease, nodeId, ENCODING);
+
+        DownloadDetailsDTO progress = readProgress(id);
+        if(progress != null && progress.getCheckpoint() != null){
+            download.setCheckpoint(progress.getCheckpoint());
+            download.setFileLocation(progress.getFileLocation());
+        }
+        lost.remove(id);
+        held.put(id, download);
+        return true;
+    }
+
+    /**
+     * Removes a lease that was found to be expired, or to be left by this node. The lease is renamed
+     * and then checked again because another node may have reclaimed it, and created a new lease,
+     * after it was found. The new lease is then put back.
+     *
+     * @param owner the node that had the lease when it was found
+     * @param modified the time the lease was last renewed when it was found
+     * @return false when the lease was no longer the one that was found
+     */
+    boolean reclaim(String id, String owner, long modified){
+        File lease = getFile(id, LEASE);
+        File reclaimed = new File(directory, id + LEASE + "." + nodeId + "." + System.nanoTime());
+        if(!lease.renameTo(reclaimed)){
+            return false;
+        }
+        if(reclaimed.lastModified() != modified || !StringUtils.equals(owner, readOwner(reclaimed))){
+            logger.info("The lease on the download " + id + " was reclaimed by another node first");
+            //when yet another node has created a lease since, the node of the renamed lease
+            //finds that it has lost the lease when it next renews it
+            if(lease.exists() || !reclaimed.renameTo(lease)){
+                FileUtils.deleteQuietly(reclaimed);
+            }
+            return false;
+        }
+        logger.info("Reclaiming the lease of " + owner + " on the download " + id);
+        FileUtils.deleteQuietly(reclaimed);
+        return true;
+    }
+
+    /**
+     * @return true when another node has the lease on the download or this node holds it
+     */
+    boolean isLeased(String id){
+        if(held.containsKey(id)){
+            return true;
+        }
+        File lease = getFile(id, LEASE);
+        return lease.exists() && !isExpired(lease.lastModified()) && !nodeId.equals(readOwner(lease));
+    }
+
+    /**
+     * @return the leased download, null when this node doesn't hold the lease
+     */
+    DownloadDetailsDTO getHeld(String id){
+        return held.get(id);
+    }
+
+    List<DownloadDetailsDTO> getHeld(){
+        return new ArrayList<DownloadDetailsDTO>(held.values());
+    }
+
+    /**
+     * @return true when the lease on the download was reclaimed by another node while this node held it
+     */
+    boolean isLost(String id){
+        return lost.contains(id);
+    }
+
+    /**
+     * Saves the progress of a download that this node holds the lease on.
+     */
+    void saveProgress(DownloadDetailsDTO download) throws IOException {
+        if(!held.containsKey(download.getId())){
+            return;
+        }
+        File progress = getFile(download.getId(), PROGRESS);
+        File tmp = new File(directory, progress.getName() + "." + nodeId + ".tmp");
+        jsonMapper.writeValue(tmp, download);
+        if(!tmp.renameTo(progress)){
+            FileUtils.deleteQuietly(progress);
+            FileUtils.moveFile(tmp, progress);
+        }
+    }
+
+    /**
+     * Renews the leases held by this node.
+     *
+     * @return the downloads whose leases were reclaimed by other nodes
+     */
+    List<DownloadDetailsDTO> renew(){
+        List<DownloadDetailsDTO> reclaimed = new ArrayList<DownloadDetailsDTO>();
+        long now = System.currentTimeMillis();
+        for(Map.Entry<String, DownloadDetailsDTO> entry : held.entrySet()){
+            File lease = getFile(entry.getKey(), LEASE);
+            if(!nodeId.equals(readOwner(lease)) || !lease.setLastModified(now)){
+                held.remove(entry.getKey());
+                lost.add(entry.getKey());
+                reclaimed.add(entry.getValue());
+            }
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Gives up the lease on the download and removes its progress.
+     */
+    void release(String id){
+        if(held.remove(id) != null){
+            FileUtils.deleteQuietly(getFile(id, PROGRESS));
+            File lease = getFile(id, LEASE);
+            if(nodeId.equals(readOwner(lease))){
+                FileUtils.deleteQuietly(lease);
+            }
+        }
+    }
+
+    /**
+     * Forgets the leases held by this node without removing them, as if this node had been restarted.
+     */
+    void forget(){
+        held.clear();
+        lost.clear();
+    }
+
+    void markDone(String id) throws IOException {
+        getFile(id, DONE).createNewFile();
+    }
+
+    boolean isDone(String id){
+        return getFile(id, DONE).exists();
+    }
+
+    void clearDone(String id){
+        FileUtils.deleteQuietly(getFile(id, DONE));
+    }
+
+    private File getFile(String id, String suffix){
+        return new File(directory, id + suffix);
+    }
+
+    private boolean isExpired(long modified){
+        return System.currentTimeMillis() - modified > duration;
+    }
+
+    /**
+     * @return the node that has the lease, null when there is no lease
+     */
+    private String readOwner(File lease){
+        try {
+            return FileUtils.readFileToString(lease, ENCODING).trim();
+        } catch(IOException e){
+            return null;
+        }
+    }
+
+    private DownloadDetailsDTO readProgress(String id){
+        File progress = getFile(id, PROGRESS);
+        if(!progress.exists()){
+            return null;
+        }
+        try {
+            return jsonMapper.readValue(progress, DownloadDetailsDTO.class);
+        } catch(Exception e){
+            logger.warn("Unable to read the progress of the download " + id, e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,354 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.dao;
+
+import au.org.ala.biocache.dto.DownloadDetailsDTO;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the downloads on the offline queue.
+ *
+ * Every change to the queue is appended as a single line: ADD and UPDATE lines hold the JSON of the
+ * download and REMOVE lines its id, each with a checksum so that a line that was only partly written
+ * when the service stopped is detected. Replaying the journal in order gives the queue in the order
+ * the downloads were requested, an UPDATE keeping the position of its download.
+ *
+ * The appends are made durable with a group commit: a thread that finds another thread's fsync in
+ * progress waits for it and then one fsync covers all of the lines written in the meantime.
+ *
+ * The progress of running downloads is saved as UPDATE lines, so the journal is compacted by writing
+ * the queued downloads to a new journal that replaces the old one once it has more than
+ * COMPACTION_RATIO lines per queued download.
+ */
+class DownloadQueueJournal {
+
+    private static final Logger logger = Logger.getLogger(DownloadQueueJournal.class);
+
+    private static final String ADD = "ADD";
+    private static final String UPDATE = "UPDATE";
+    private static final String REMOVE = "REMOVE";
+    private static final String ENCODING = "UTF-8";
+
+    /** The journal is compacted when it has this many lines per queued download */
+    private static final int COMPACTION_RATIO = 4;
+    /** ... and at least this many lines */
+    private static final int COMPACTION_MIN_LINES = 1000;
+
+    private final File file;
+    private final ObjectMapper jsonMapper;
+
+    /** The JSON of the queued downloads by id, in the order they were added */
+    private final Map<String, String> queued = new LinkedHashMap<String, String>();
+    private int lines = 0;
+
+    /** guards the writes to the journal, the queued downloads and the line counts */
+    private final Object writeLock = new Object();
+    /** held while the journal is forced to disk, always acquired before the write lock */
+    private final Object syncLock = new Object();
+    private FileOutputStream out;
+    private long written = 0;
+    private long synced = 0;
+
+    DownloadQueueJournal(File file, ObjectMapper jsonMapper){
+        this.file = file;
+        this.jsonMapper = jsonMapper;
+    }
+
+    /**
+     * Reads the journal and opens it for appending. Any partly written line at the end of the journal
+     * is removed.
+     *
+     * @return the queued downloads in the order they were added
+     */
+    List<DownloadDetailsDTO> replay() throws IOException {
+        synchronized(syncLock){
+            synchronized(writeLock){
+                close();
+                long valid = load();
+                if(valid < file.length()){
+                    logger.warn("Removing the partly written end of the download queue journal from " + valid + " " + file.getAbsolutePath());
+                    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                    try {
+                        raf.setLength(valid);
+                    } finally {
+                        raf.close();
+                    }
+                }
+                List<DownloadDetailsDTO> downloads = getQueued();
+                out = new FileOutputStream(file, true);
+                if(needsCompaction()){
+                    compact();
+                }
+                return downloads;
+            }
+        }
+    }
+
+    /**
+     * Reads the journal of another node without changing it. A line that the other node is still
+     * writing is ignored.
+     *
+     * @return the queued downloads in the order they were added
+     */
+    List<DownloadDetailsDTO> read() throws IOException {
+        synchronized(writeLock){
+            load();
+            return getQueued();
+        }
+    }
+
+    /**
+     * Loads the queued downloads from the journal.
+     *
+     * @return the length of the journal up to the end of the last complete line
+     */
+    private long load() throws IOException {
+        queued.clear();
+        lines = 0;
+        long valid = 0;
+        if(file.exists()){
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            try {
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                long position = 0;
+                int b;
+                while((b = in.read()) != -1){
+                    position++;
+                    if(b != '\n'){
+                        line.write(b);
+                        continue;
+                    }
+                    if(!apply(line.toString(ENCODING))){
+                        break;
+                    }
+                    valid = position;
+                    line.reset();
+                }
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+        return valid;
+    }
+
+    private List<DownloadDetailsDTO> getQueued(){
+        List<DownloadDetailsDTO> downloads = new ArrayList<DownloadDetailsDTO>();
+        for(Map.Entry<String, String> entry : queued.entrySet()){
+            try {
+                downloads.add(jsonMapper.readValue(entry.getValue(), DownloadDetailsDTO.class));
+            } catch(Exception e){
+                logger.error("Unable to load the queued download " + entry.getKey(), e);
+            }
+        }
+        return downloads;
+    }
+
+    /**
+     * Applies a line of the journal to the queued downloads.
+     *
+     * @return false when the line is not a complete journal line
+     */
+    private boolean apply(String line){
+        String[] parts = line.split(" ", 4);
+        if(parts.length < 3){
+            return false;
+        }
+        String type = parts[0];
+        String id = parts[2];
+        String json = parts.length > 3 ? parts[3] : null;
+        if(!parts[1].equals(checksum(id, json))){
+            return false;
+        }
+        if(ADD.equals(type) && json != null){
+            queued.put(id, json);
+        } else if(UPDATE.equals(type) && json != null){
+            if(queued.containsKey(id)){
+                queued.put(id, json);
+            }
+        } else if(REMOVE.equals(type)){
+            queued.remove(id);
+        } else {
+            return false;
+        }
+        lines++;
+        return true;
+    }
+
+    void add(DownloadDetailsDTO download) throws IOException {
+        String json = jsonMapper.writeValueAsString(download);
+        append(ADD, download.getId(), json);
+    }
+
+    /**
+     * Saves the changes to a queued download, a download that is no longer queued is ignored.
+     */
+    void update(DownloadDetailsDTO download) throws IOException {
+        String json = jsonMapper.writeValueAsString(download);
+        append(UPDATE, download.getId(), json);
+    }
+
+    void remove(DownloadDetailsDTO download) throws IOException {
+        append(REMOVE, download.getId(), null);
+    }
+
+    /**
+     * @return true when the download is queued in this journal
+     */
+    boolean contains(String id){
+        synchronized(writeLock){
+            return queued.containsKey(id);
+        }
+    }
+
+    File getFile(){
+        return file;
+    }
+
+    /**
+     * @return the number of queued downloads
+     */
+    int size(){
+        synchronized(writeLock){
+            return queued.size();
+        }
+    }
+
+    private void append(String type, String id, String json) throws IOException {
+        long sequence;
+        synchronized(writeLock){
+            if(out == null){
+                throw new IOException("The download queue journal is not open " + file.getAbsolutePath());
+            }
+            if(!ADD.equals(type) && !queued.containsKey(id)){
+                return;
+            }
+            out.write(toLine(type, id, json));
+            if(REMOVE.equals(type)){
+                queued.remove(id);
+            } else {
+                queued.put(id, json);
+            }
+            lines++;
+            sequence = ++written;
+        }
+        sync(sequence);
+    }
+
+    /**
+     * Forces the journal to disk unless another thread has already done so since the line was written.
+     */
+    private void sync(long sequence) throws IOException {
+        synchronized(syncLock){
+            if(synced >= sequence){
+                return;
+            }
+            long target;
+            FileOutputStream current;
+            synchronized(writeLock){
+                target = written;
+                current = out;
+                if(current == null){
+                    return;
+                }
+                if(needsCompaction()){
+                    //the compacted journal is forced to disk before it replaces this one
+                    compact();
+                    return;
+                }
+            }
+            current.getChannel().force(false);
+            synced = target;
+        }
+    }
+
+    private boolean needsCompaction(){
+        return lines >= COMPACTION_MIN_LINES && lines > queued.size() * COMPACTION_RATIO;
+    }
+
+    /**
+     * Replaces the journal with one that only adds the queued downloads. Called holding both locks.
+     */
+    private void compact() throws IOException {
+        long start = System.currentTimeMillis();
+        File compacted = new File(file.getParentFile(), file.getName() + ".compact");
+        FileOutputStream compactedOut = new FileOutputStream(compacted);
+        try {
+            for(Map.Entry<String, String> entry : queued.entrySet()){
+                compactedOut.write(toLine(ADD, entry.getKey(), entry.getValue()));
+            }
+            compactedOut.getChannel().force(false);
+        } finally {
+            compactedOut.close();
+        }
+        close();
+        if(!compacted.renameTo(file)){
+            FileUtils.deleteQuietly(file);
+            FileUtils.moveFile(compacted, file);
+        }
+        logger.info("Compacted the download queue journal from " + lines + " to " + queued.size() + " lines in "
+                + (System.currentTimeMillis() - start) + "ms");
+        lines = queued.size();
+        out = new FileOutputStream(file, true);
+        synced = written;
+    }
+
+    private byte[] toLine(String type, String id, String json) throws IOException {
+        StringBuilder sb = new StringBuilder(type).append(' ').append(checksum(id, json)).append(' ').append(id);
+        if(json != null){
+            sb.append(' ').append(json);
+        }
+        return sb.append('\n').toString().getBytes(ENCODING);
+    }
+
+    private String checksum(String id, String json){
+        CRC32 crc = new CRC32();
+        try {
+            crc.update(id.getBytes(ENCODING));
+            if(json != null){
+                crc.update(json.getBytes(ENCODING));
+            }
+        } catch(java.io.UnsupportedEncodingException e){
+            throw new IllegalStateException(e);
+        }
+        return Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * Closes the journal, the queued downloads are kept until the journal is replayed.
+     */
+    void close(){
+        synchronized(writeLock){
+            IOUtils.closeQuietly(out);
+            out = null;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Plans the split queries that the workers of a download share.
+ *
+ * The planner is given the facet counts of the download query for each candidate field and picks
+ * the field whose largest partition is the smallest, so that no single split holds most of the
+ * records. The values of the field are grouped into contiguous ranges of roughly the target size
+ * and any partition that is still much larger than the target, e.g. a single month that dominates
+ * the download, is divided further by ranges of the record id.
+ *
+ * The splits are returned largest first so that the workers finish at about the same time.
+ */
+class DownloadSplitPlanner {
+
+    /** The id field, a UUID so its hex prefixes are evenly distributed */
+    private static final String ID_FIELD = "id";
+    private static final String HEX = "0123456789abcdef";
+
+    private final int partitions;
+
+    /**
+     * @param partitions The number of splits to aim for
+     */
+    DownloadSplitPlanner(int partitions){
+        this.partitions = Math.max(1, partitions);
+    }
+
+    /**
+     * @param total The number of records in the download
+     * @param facetCounts The counts of the values of each candidate field, in order of preference
+     * @param numericFields The candidate fields whose values are ordered as numbers by SOLR
+     * @return the split filters with their estimated number of records, largest first
+     */
+    List<Split> plan(long total, Map<String, Map<String, Long>> facetCounts, Set<String> numericFields){
+        List<Split> splits = new ArrayList<Split>();
+        if(total <= 0 || partitions == 1){
+            splits.add(new Split("*:*", total));
+            return splits;
+        }
+        long target = Math.max(1, total / partitions);
+
+        //choose the field that gives the smallest largest partition
+        String field = null;
+        long bestLargest = Long.MAX_VALUE;
+        for(Map.Entry<String, Map<String, Long>> entry : facetCounts.entrySet()){
+            long largest = getMissing(total, entry.getValue());
+            for(Long count : entry.getValue().values()){
+                largest = Math.max(largest, count);
+            }
+            if(largest < bestLargest){
+                bestLargest = largest;
+                field = entry.getKey();
+            }
+        }
+
+        if(field == null){
+            splitById(null, total, target, splits);
+        } else {
+            Map<String, Long> counts = facetCounts.get(field);
+            List<String> values = getSortedValues(counts.keySet(), numericFields.contains(field));
+            int start = 0;
+            long size = 0;
+            for(int i = 0; i < values.size(); i++){
+                long count = counts.get(values.get(i));
+                if(size > 0 && size + count > target){
+                    addRange(field, values, start, i - 1, size, target, splits);
+                    start = i;
+                    size = 0;
+                }
+                size += count;
+            }
+            if(size > 0){
+                addRange(field, values, start, values.size() - 1, size, target, splits);
+            }
+            long missing = getMissing(total, counts);
+            if(missing > 0){
+                splitById("-" + field + ":[* TO *]", missing, target, splits);
+            }
+        }
+
+        Collections.sort(splits, new Comparator<Split>(){
+            @Override
+            public int compare(Split s1, Split s2) {
+                return s1.count > s2.count ? -1 : s1.count == s2.count ? 0 : 1;
+            }
+        });
+        return splits;
+    }
+
+    private void addRange(String field, List<String> values, int start, int end, long size, long target, List<Split> splits){
+        String filter = start == end ? field + ":" + quote(values.get(start))
+                : field + ":[" + quote(values.get(start)) + " TO " + quote(values.get(end)) + "]";
+        splitById(filter, size, target, splits);
+    }
+
+    /**
+     * Adds the filter as a split, divided by ranges of the id when it is more than twice the target size.
+     */
+    private void splitById(String filter, long size, long target, List<Split> splits){
+        int pieces = (int) Math.min(HEX.length(), (size + target - 1) / target);
+        if(size <= target * 2 || pieces < 2){
+            splits.add(new Split(filter == null ? "*:*" : filter, size));
+            return;
+        }
+        for(int p = 0; p < pieces; p++){
+            int from = p * HEX.length() / pieces;
+            int to = (p + 1) * HEX.length() / pieces;
+            String lower = p == 0 ? "*" : "\"" + HEX.charAt(from) + "\"";
+            String upper = p == pieces - 1 ? "*]" : "\"" + HEX.charAt(to) + "\"}";
+            String idRange = ID_FIELD + ":[" + lower + " TO " + upper;
+            //a negative filter needs a positive clause to be combined with
+            splits.add(new Split(filter == null ? idRange : "+" + idRange + " " + (filter.startsWith("-") ? filter : "+" + filter), size / pieces));
+        }
+    }
+
+    private long getMissing(long total, Map<String, Long> counts){
+        long found = 0;
+        for(Long count : counts.values()){
+            found += count;
+        }
+        return Math.max(0, total - found);
+    }
+
+    /**
+     * @param numeric whether the field is numeric, the values of other fields are ordered as strings
+     *                by the ranges even when they are numbers, e.g. "10" comes before "2"
+     * @return the values in the order SOLR ranges use
+     */
+    private List<String> getSortedValues(java.util.Collection<String> values, boolean numeric){
+        List<String> sorted = new ArrayList<String>(values);
+        if(numeric){
+            Collections.sort(sorted, new Comparator<String>(){
+                @Override
+                public int compare(String v1, String v2) {
+                    return Double.compare(Double.parseDouble(v1), Double.parseDouble(v2));
+                }
+            });
+        } else {
+            Collections.sort(sorted);
+        }
+        return sorted;
+    }
+
+    private String quote(String value){
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * A split query of a download.
+     */
+    static class Split {
+        /** The filter query that selects the records of the split, also used to name the split */
+        final String filter;
+        /** The estimated number of records in the split */
+        final long count;
+
+        Split(String filter, long count){
+            this.filter = filter;
+            this.count = count;
+        }
+
+        @Override
+        public String toString() {
+            return filter + "=" + count;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.dao;
+
+import au.org.ala.biocache.dto.FacetValues;
+import au.org.ala.biocache.dto.FieldResultDTO;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The species of an area less the species that also occur outside of it.
+ *
+ * The species found outside of the area by each batch query are merged into a hash set as the
+ * batches complete, so that working out the endemic species is a single pass over the species of
+ * the area.
+ */
+class EndemicSpecies {
+
+    /** The species of the area, in the order of the facet */
+    private final FacetValues species;
+    /** The species of the area that occur outside of it */
+    private final Set<String> outside = new HashSet<String>();
+
+    EndemicSpecies(FacetValues species){
+        this.species = species;
+    }
+
+    /**
+     * Merges the results of a batch query for the species of the area that occur outside of it.
+     */
+    void addOccurringOutside(FacetValues values){
+        for(int i = 0; i < values.size(); i++){
+            outside.add(values.getValue(i));
+        }
+    }
+
+    /**
+     * @return the species that only occur in the area, with their counts in the area
+     */
+    List<FieldResultDTO> getEndemic(){
+        List<FieldResultDTO> endemic = new ArrayList<FieldResultDTO>();
+        for(int i = 0; i < species.size(); i++){
+            if(!outside.contains(species.getValue(i))){
+                endemic.add(new FieldResultDTO(species.getValue(i), species.getCount(i)));
+            }
+        }
+        return endemic;
+    }
+}
@@ -0,0 +1,132 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.dao;
+
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.util.ClientUtils;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Walks the values of a facet in index order, one page at a time, continuing from the last value
+ * written rather than from a facet.offset.
+ *
+ * Every page after the first is restricted to the records that have a value after the last value
+ * written, so the values are only counted once and a page never has to skip the values before it.
+ * The records of a multivalued field can also have values before the last one; those values are
+ * dropped from the page and, when a whole page is made up of them, the next page is offset past
+ * them within the same filter.
+ */
+class FacetExportCursor {
+
+    private final String field;
+    private final boolean numeric;
+    private final int pageSize;
+
+    /** The last value written, null before the first page */
+    private String lastValue = null;
+    /** The offset of the next page into the values of the records after the last value */
+    private int offset = 0;
+    private boolean finished = false;
+
+    /**
+     * @param field The facet field
+     * @param numeric Whether the values of the field are ordered as numbers
+     * @param pageSize The facet.limit of the pages
+     */
+    FacetExportCursor(String field, boolean numeric, int pageSize){
+        this.field = field;
+        this.numeric = numeric;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @return the filter query for the next page, null for the first page
+     */
+    String getFilter(){
+        if(lastValue == null){
+            return null;
+        }
+        return field + ":{" + ClientUtils.escapeQueryChars(lastValue) + " TO *]";
+    }
+
+    /**
+     * @return the facet.offset for the next page
+     */
+    int getOffset(){
+        return offset;
+    }
+
+    /**
+     * @return true when there are no more pages
+     */
+    boolean isFinished(){
+        return finished;
+    }
+
+    /**
+     * Moves the cursor past a page of values.
+     *
+     * @param values The values of the page, in index order
+     * @return the values of the page that come after the last value written
+     */
+    List<FacetField.Count> next(List<FacetField.Count> values){
+        if(values == null || values.isEmpty()){
+            finished = true;
+            return Collections.emptyList();
+        }
+        finished = values.size() < pageSize;
+        int from = 0;
+        if(lastValue != null){
+            while(from < values.size() && compare(values.get(from).getName(), lastValue) <= 0){
+                from++;
+            }
+        }
+        if(from == values.size()){
+            offset += values.size();
+            return Collections.emptyList();
+        }
+        lastValue = values.get(values.size() - 1).getName();
+        offset = 0;
+        return values.subList(from, values.size());
+    }
+
+    /**
+     * Compares two values in the order of the index: numerically for numeric fields and by code point
+     * for the others.
+     */
+    int compare(String value, String other){
+        if(numeric){
+            try {
+                return new BigDecimal(value).compareTo(new BigDecimal(other));
+            } catch(NumberFormatException e){
+                //not a number after all, fall through to the text order
+            }
+        }
+        int i = 0, j = 0;
+        while(i < value.length() && j < other.length()){
+            int c = value.codePointAt(i);
+            int d = other.codePointAt(j);
+            if(c != d){
+                return c < d ? -1 : 1;
+            }
+            i += Character.charCount(c);
+            j += Character.charCount(d);
+        }
+        return (value.length() - i) - (other.length() - j);
+    }
+}
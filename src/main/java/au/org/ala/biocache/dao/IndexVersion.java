@@ -0,0 +1,81 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.dao;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The version of the index, read again at most once per check interval.
+ *
+ * The searches use the version without taking a lock. When the version is due to be checked one
+ * caller reads it from the index while the others carry on with the version of the last check. A
+ * failed check isn't retried until the interval has passed again, the version of the last
+ * successful check is used in the meantime.
+ */
+abstract class IndexVersion {
+
+    private static final Logger logger = Logger.getLogger(IndexVersion.class);
+
+    private volatile Long version = null;
+    /** The time of the last check, whether or not it succeeded */
+    private volatile long checked = 0;
+    private volatile Exception failure = null;
+    private final AtomicBoolean checking = new AtomicBoolean();
+
+    /**
+     * @param interval the minimum time (ms) between checks of the version
+     * @return the version of the index
+     * @throws Exception when the version has never been read
+     */
+    long get(long interval) throws Exception {
+        if(System.currentTimeMillis() - checked <= interval){
+            //the version is set before the time of its check
+            Long current = version;
+            if(current == null){
+                throw new Exception("The index version is unavailable until the next check: " + failure.getMessage(), failure);
+            }
+            return current;
+        }
+        Long current = version;
+        boolean checker = checking.compareAndSet(false, true);
+        if(!checker && current != null){
+            return current;
+        }
+        try {
+            current = read();
+            version = current;
+            failure = null;
+        } catch(Exception e){
+            failure = e;
+            if(current == null){
+                throw e;
+            }
+            logger.warn("Unable to check the index version, using version " + current + ": " + e.getMessage());
+        } finally {
+            checked = System.currentTimeMillis();
+            if(checker){
+                checking.set(false);
+            }
+        }
+        return current;
+    }
+
+    /**
+     * @return the version read from the index
+     */
+    protected abstract long read() throws Exception;
+}
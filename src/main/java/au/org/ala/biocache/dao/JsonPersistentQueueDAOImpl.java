@@ -16,23 +16,41 @@ package au.org.ala.biocache.dao;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import au.org.ala.biocache.dto.DownloadDetailsDTO;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 /**
- * A queue that stores the Downloads as JSON files in the supplied directory
+ * A queue that stores the Downloads as JSON in an append-only journal in the supplied directory.
+ * Queues that were stored as one JSON file per download are moved into the journal when they are loaded.
+ *
+ * The directory can be shared by several nodes. Each node appends the downloads it queues to its own
+ * journal and reads the journals of the other nodes, so any node can perform any queued download.
+ * A download is leased to the node performing it, a lease that isn't renewed expires so that the
+ * downloads of a node that has died are resumed by the other nodes.
  * 
  * @author Natasha Carter (natasha.carter@csiro.au)
  */
@@ -43,65 +61,200 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
     private static final Logger logger = Logger.getLogger(JsonPersistentQueueDAOImpl.class);
     private String cacheDirectory="/data/cache/downloads";
     private String FILE_PREFIX = "offline";
+    private String JOURNAL_PREFIX = "queue-";
+    private String JOURNAL_SUFFIX = ".journal";
+    private String LEASE_DIRECTORY = "leases";
     private String downloadDirectory="/data/biocache-download";
 
+    /** The id of this node in the shared queue, the host name when it is not set */
+    @Value("${download.queue.node:}")
+    protected String nodeId = "";
+
+    /** The time (ms) after which the lease of a node that has stopped renewing it can be reclaimed */
+    @Value("${download.queue.lease.duration:600000}")
+    protected long leaseDuration = 600000;
+
     private final ObjectMapper jsonMapper = new ObjectMapper();
+
+    private DownloadQueueJournal journal;
+    private DownloadLeases leases;
+    private ScheduledExecutorService leaseRenewer;
+
+    /** The downloads queued by this node, in the order of its journal */
+    private final List<DownloadDetailsDTO> queuedDownloads = new ArrayList<DownloadDetailsDTO>();
+    /** The downloads queued by the other nodes by journal */
+    private final Map<File, NodeQueue> nodeQueues = new HashMap<File, NodeQueue>();
+    /** The time the downloads of this node that were performed by other nodes were removed from the journal */
+    private final Map<String, Long> removedDownloads = new HashMap<String, Long>();
     
-    private List<DownloadDetailsDTO> offlineDownloadList;
-    
+    /** All of the queued downloads in the order they were requested */
+    private List<DownloadDetailsDTO> offlineDownloadList = Collections.synchronizedList(new ArrayList<DownloadDetailsDTO>());
+
     @PostConstruct
     public void init(){
-        offlineDownloadList = Collections.synchronizedList(new ArrayList<DownloadDetailsDTO>());
+        shutdown();
         File file = new File(cacheDirectory);
         jsonMapper.configure(org.codehaus.jackson.map.DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);                
                 
         try {
             FileUtils.forceMkdir(file);
+            FileUtils.forceMkdir(new File(file, LEASE_DIRECTORY));
         } catch (IOException e) {
             logger.error("Unable to construct cache directory.",e);
         }
+        if(StringUtils.isEmpty(nodeId)){
+            try {
+                nodeId = InetAddress.getLocalHost().getHostName();
+            } catch(IOException e){
+                nodeId = "localhost";
+            }
+        }
+        File journalFile = new File(file, JOURNAL_PREFIX + nodeId.replaceAll("[^A-Za-z0-9._-]", "_") + JOURNAL_SUFFIX);
+        //the journal of a queue that was only used by this node
+        File singleNodeJournal = new File(file, "queue" + JOURNAL_SUFFIX);
+        if(singleNodeJournal.exists() && !journalFile.exists() && !singleNodeJournal.renameTo(journalFile)){
+            logger.error("Unable to move the download queue journal to " + journalFile.getAbsolutePath());
+        }
+        journal = new DownloadQueueJournal(journalFile, jsonMapper);
+        leases = new DownloadLeases(new File(file, LEASE_DIRECTORY), nodeId, leaseDuration, jsonMapper);
         refreshFromPersistent();
-        
+
+        //renew the leases well before they expire
+        leaseRenewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "download-lease-renewer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        leaseRenewer.scheduleWithFixedDelay(new Runnable(){
+            @Override
+            public void run() {
+                renewLeases();
+            }
+        }, leaseDuration / 3, leaseDuration / 3, TimeUnit.MILLISECONDS);
     }
+
     /**
-     * Returns a file object that represents the a persisted download on the queue
-     * @param key
-     * @return
+     * Stops renewing the leases of this node. The leases are kept so that the downloads are resumed
+     * when the node is restarted or by another node once the leases have expired.
      */
-    private File getFile(long key) {
-        return new File(cacheDirectory +File.separator+ FILE_PREFIX + key + ".json");
+    @PreDestroy
+    public void shutdown(){
+        if(leaseRenewer != null){
+            leaseRenewer.shutdownNow();
+            leaseRenewer = null;
+        }
+        if(journal != null){
+            journal.close();
+        }
     }
+
     /**
      * @see au.org.ala.biocache.dao.PersistentQueueDAO#addDownloadToQueue(DownloadDetailsDTO)
      */
     @Override
     public void addDownloadToQueue(DownloadDetailsDTO download) {
-        offlineDownloadList.add(download);
-        File f = getFile(download.getStartTime());
+        synchronized (offlineDownloadList){
+            queuedDownloads.add(download);
+            offlineDownloadList.add(download);
+        }
         try{
-            jsonMapper.writeValue(f, download);
+            journal.add(download);
         } catch(Exception e){
             logger.error("Unable to cache the download", e);
         }
         
     }
+    /**
+     * Saves the progress of the download to this node's journal when the download was queued by this
+     * node and next to its lease for the node that reclaims the lease.
+     *
+     * @see au.org.ala.biocache.dao.PersistentQueueDAO#updateDownload(DownloadDetailsDTO)
+     */
+    @Override
+    public void updateDownload(DownloadDetailsDTO download) {
+        try{
+            journal.update(download);
+            leases.saveProgress(download);
+        } catch(Exception e){
+            logger.error("Unable to update the cached download", e);
+        }
+    }
+
     /**
      * @see au.org.ala.biocache.dao.PersistentQueueDAO#getNextDownload()
      */
     @Override
     public DownloadDetailsDTO getNextDownload() {
-        if(offlineDownloadList.size()>0){
+        return getNextDownload(Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns the next download that isn't leased to a node. Downloads that were running when a node
+     * was stopped are handed out again once their leases have expired, or straight away to the same
+     * node when it is restarted, so that they can be resumed.
+     *
+     * The downloads are shared between the users: the oldest download of the user with the fewest
+     * running downloads is returned. Downloads of an unknown size are only returned when there is
+     * no limit on the number of records.
+     *
+     * @see au.org.ala.biocache.dao.PersistentQueueDAO#getNextDownload(long)
+     */
+    @Override
+    public DownloadDetailsDTO getNextDownload(long maxRecords) {
+        synchronized (offlineDownloadList){
+            refreshQueue();
+            //count the running downloads for each user on all of the nodes
+            Set<String> leased = new HashSet<String>();
+            Map<String, Integer> running = new HashMap<String, Integer>();
             for(DownloadDetailsDTO dd: offlineDownloadList){
-                if(dd.getFileLocation() == null){
-                    //give a place for the downlaod
-                    dd.setFileLocation(downloadDirectory+File.separator+UUID.nameUUIDFromBytes(dd.getEmail().getBytes())+File.separator +dd.getStartTime()+File.separator+dd.getRequestParams().getFile()+".zip");
-                    return dd;
+                if(leases.isLeased(dd.getId())){
+                    leased.add(dd.getId());
+                    Integer count = running.get(dd.getEmail());
+                    running.put(dd.getEmail(), count == null ? 1 : count + 1);
                 }
             }
+
+            while(true){
+                DownloadDetailsDTO next = null;
+                int nextRunning = Integer.MAX_VALUE;
+                for(DownloadDetailsDTO dd: offlineDownloadList){
+                    long size = dd.getTotalRecords() < 0 ? Long.MAX_VALUE : dd.getTotalRecords();
+                    if(!leased.contains(dd.getId()) && size <= maxRecords){
+                        Integer count = running.get(dd.getEmail());
+                        int userRunning = count == null ? 0 : count;
+                        if(userRunning < nextRunning){
+                            next = dd;
+                            nextRunning = userRunning;
+                        }
+                    }
+                }
+                //null when all of the downloads have started or there are no downloads on the list
+                if(next == null){
+                    return null;
+                }
+                try {
+                    if(leases.acquire(next)){
+                        if(leases.isDone(next.getId())){
+                            //another node performed the download after the queue was refreshed
+                            leases.release(next.getId());
+                        } else {
+                            if(next.getFileLocation() == null){
+                                //give a place for the downlaod
+                                next.setFileLocation(downloadDirectory+File.separator+UUID.nameUUIDFromBytes(next.getEmail().getBytes())+File.separator +next.getStartTime()+File.separator+next.getRequestParams().getFile()+".zip");
+                            }
+                            return next;
+                        }
+                    }
+                } catch(IOException e){
+                    logger.error("Unable to lease the download " + next, e);
+                }
+                //another node has leased or performed it
+                leased.add(next.getId());
+            }
         }
-        
-        //if we reached here all of the downloads have started or there are no downloads on the list
-        return null;
     }
     
     /**
@@ -113,18 +266,39 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
     }
     
     /**
+     * The download is marked as done so that no other node performs it again. A download queued by
+     * another node is removed from that node's journal by that node when it sees the mark.
+     *
      * @see au.org.ala.biocache.dao.PersistentQueueDAO#removeDownloadFromQueue(au.org.ala.biocache.dto.DownloadDetailsDTO)
      */
     @Override
     public void removeDownloadFromQueue(DownloadDetailsDTO download) {
         logger.debug("Removing the download from the queue");
-        // delete it from the directory
-        File f = getFile(download.getStartTime());
-        logger.info("Deleting " + f.getAbsolutePath() + " " + f.exists());        
-        FileUtils.deleteQuietly(f);
-        offlineDownloadList.remove(download);
-        //add the download JSON String to the download directory
-        
+        synchronized (offlineDownloadList){
+            try{
+                //the other nodes may not have read the journal without the download before its lease is released
+                if(indexOf(offlineDownloadList, download.getId()) >= 0){
+                    leases.markDone(download.getId());
+                }
+                if(journal.contains(download.getId())){
+                    journal.remove(download);
+                    removedDownloads.put(download.getId(), System.currentTimeMillis());
+                }
+            } catch(Exception e){
+                logger.error("Unable to remove the cached download", e);
+            }
+            leases.release(download.getId());
+            removeById(queuedDownloads, download.getId());
+            removeById(offlineDownloadList, download.getId());
+        }
+    }
+
+    /**
+     * @see au.org.ala.biocache.dao.PersistentQueueDAO#isLeaseLost(au.org.ala.biocache.dto.DownloadDetailsDTO)
+     */
+    @Override
+    public boolean isLeaseLost(DownloadDetailsDTO download) {
+        return leases.isLost(download.getId());
     }
     
     /**
@@ -140,28 +314,197 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
      */
     @Override
     public void refreshFromPersistent() {
+        List<DownloadDetailsDTO> downloads = new ArrayList<DownloadDetailsDTO>();
+        try {
+            //the journal is in the order the downloads were requested
+            downloads.addAll(journal.replay());
+        } catch(IOException e){
+            logger.error("Unable to load the download queue journal", e);
+        }
+        importDownloadFiles(downloads);
+        synchronized (offlineDownloadList){
+            queuedDownloads.clear();
+            queuedDownloads.addAll(downloads);
+            nodeQueues.clear();
+            leases.forget();
+            refreshQueue();
+        }
+    }
+
+    /**
+     * Renews the leases of this node. The downloads whose leases were reclaimed by another node, or
+     * that were removed from the queue by another node, are cancelled.
+     */
+    void renewLeases(){
+        for(DownloadDetailsDTO dd : leases.renew()){
+            logger.warn("The lease on the download was reclaimed by another node: " + dd);
+            dd.setCancelled(true);
+        }
+        synchronized (offlineDownloadList){
+            refreshQueue();
+            for(DownloadDetailsDTO dd : leases.getHeld()){
+                if(indexOf(offlineDownloadList, dd.getId()) < 0){
+                    logger.info("The download was removed from the queue by another node: " + dd);
+                    dd.setCancelled(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges the downloads of this node with those of the other nodes whose journals have changed.
+     * Called holding the lock on the offline download list.
+     */
+    private void refreshQueue(){
+        //remove the downloads of this node that were performed by another node
+        long now = System.currentTimeMillis();
+        for(Iterator<DownloadDetailsDTO> it = queuedDownloads.iterator(); it.hasNext();){
+            DownloadDetailsDTO dd = it.next();
+            if(leases.isDone(dd.getId())){
+                try {
+                    journal.remove(dd);
+                    it.remove();
+                    removedDownloads.put(dd.getId(), now);
+                } catch(IOException e){
+                    logger.error("Unable to remove the download performed by another node " + dd, e);
+                }
+            }
+        }
+        //the done markers are kept until the other nodes have read the journal without the downloads
+        for(Iterator<Map.Entry<String, Long>> it = removedDownloads.entrySet().iterator(); it.hasNext();){
+            Map.Entry<String, Long> removed = it.next();
+            if(now - removed.getValue() > leaseDuration){
+                leases.clearDone(removed.getKey());
+                it.remove();
+            }
+        }
+
+        File[] files = new File(cacheDirectory).listFiles();
+        Set<File> journals = new HashSet<File>();
+        if(files != null){
+            for(File f : files){
+                if(f.isFile() && f.getName().startsWith(JOURNAL_PREFIX) && f.getName().endsWith(JOURNAL_SUFFIX) && !f.equals(journal.getFile())){
+                    journals.add(f);
+                    NodeQueue nodeQueue = nodeQueues.get(f);
+                    if(nodeQueue == null || nodeQueue.lastModified != f.lastModified() || nodeQueue.length != f.length()){
+                        nodeQueues.put(f, new NodeQueue(f));
+                    }
+                }
+            }
+        }
+        nodeQueues.keySet().retainAll(journals);
+
+        List<DownloadDetailsDTO> downloads = new ArrayList<DownloadDetailsDTO>(queuedDownloads);
+        for(NodeQueue nodeQueue : nodeQueues.values()){
+            for(DownloadDetailsDTO dd : nodeQueue.downloads){
+                if(!leases.isDone(dd.getId())){
+                    //keep the download that this node is performing
+                    DownloadDetailsDTO held = leases.getHeld(dd.getId());
+                    downloads.add(held != null ? held : dd);
+                }
+            }
+        }
+        if(!nodeQueues.isEmpty()){
+            //order the downloads of all of the nodes by the time they were requested
+            Collections.sort(downloads, new Comparator<DownloadDetailsDTO>(){
+                @Override
+                public int compare(DownloadDetailsDTO o1, DownloadDetailsDTO o2) {
+                    return o1.getStartDate().compareTo(o2.getStartDate());
+                }
+            });
+        }
         offlineDownloadList.clear();
-        File file = new File(cacheDirectory);
-      //load the list with the available downloads ordering by the least recently modified
-        File[] files = file.listFiles();
-        Arrays.sort(files, new Comparator(){
+        offlineDownloadList.addAll(downloads);
+    }
 
-            @Override
-            public int compare(Object o1, Object o2) {
-                return (int)(((File)o1).lastModified() - ((File)o2).lastModified());
+    private int indexOf(List<DownloadDetailsDTO> downloads, String id){
+        for(int i = 0; i < downloads.size(); i++){
+            if(downloads.get(i).getId().equals(id)){
+                return i;
             }
-            
-        });
-        //value = jsonMapper.readValue(file, ParamsCacheObject.class);
+        }
+        return -1;
+    }
+
+    private void removeById(List<DownloadDetailsDTO> downloads, String id){
+        int index = indexOf(downloads, id);
+        if(index >= 0){
+            downloads.remove(index);
+        }
+    }
+
+    /**
+     * The downloads in the journal of another node when it was last read.
+     */
+    private class NodeQueue {
+        final long lastModified;
+        final long length;
+        List<DownloadDetailsDTO> downloads = Collections.emptyList();
+
+        NodeQueue(File file){
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+            try {
+                downloads = new DownloadQueueJournal(file, jsonMapper).read();
+            } catch(IOException e){
+                logger.error("Unable to read the download queue journal " + file.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    public void setCacheDirectory(String cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public void setLeaseDuration(long leaseDuration) {
+        this.leaseDuration = leaseDuration;
+    }
+
+    /**
+     * Moves the downloads that were persisted as one JSON file per download into the journal.
+     */
+    private void importDownloadFiles(List<DownloadDetailsDTO> downloads){
+        File[] files = new File(cacheDirectory).listFiles();
+        if(files == null){
+            return;
+        }
+        List<DownloadDetailsDTO> imported = new ArrayList<DownloadDetailsDTO>();
+        List<File> importedFiles = new ArrayList<File>();
         for(File f :files){
-            if(f.isFile()){
+            if(f.isFile() && f.getName().startsWith(FILE_PREFIX) && f.getName().endsWith(".json")){
                 try {
-                    DownloadDetailsDTO dd = jsonMapper.readValue(f, DownloadDetailsDTO.class);
-                    offlineDownloadList.add(dd);
+                    imported.add(jsonMapper.readValue(f, DownloadDetailsDTO.class));
+                    importedFiles.add(f);
                 } catch(Exception e){
                     logger.error("Unable to load cached downlaod " + f.getAbsolutePath(), e);
-                }                
+                }
+            }
+        }
+        if(imported.isEmpty()){
+            return;
+        }
+        //order the downloads by the time they were requested
+        Collections.sort(imported, new Comparator<DownloadDetailsDTO>(){
+            @Override
+            public int compare(DownloadDetailsDTO o1, DownloadDetailsDTO o2) {
+                return o1.getStartDate().compareTo(o2.getStartDate());
             }
-        }        
+        });
+        logger.info("Moving " + imported.size() + " queued downloads into the download queue journal");
+        try {
+            for(DownloadDetailsDTO dd : imported){
+                journal.add(dd);
+                downloads.add(dd);
+            }
+            for(File f : importedFiles){
+                FileUtils.deleteQuietly(f);
+            }
+        } catch(IOException e){
+            logger.error("Unable to move the queued downloads into the journal", e);
+        }
     }
 }
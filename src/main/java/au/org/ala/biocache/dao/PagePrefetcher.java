@@ -0,0 +1,131 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.dao;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches the pages of a query on an executor ahead of the pages being taken, holding at most
+ * depth pages that haven't been taken yet.
+ *
+ * The consumer can stop taking pages at any time by cancelling. The producer never blocks on a full
+ * queue once the prefetch is cancelled, even when the interrupt is swallowed by the query being run,
+ * so the thread is always returned to the executor.
+ */
+class PagePrefetcher<T> {
+
+    /** The time (ms) the producer waits for room in the queue before checking whether it was cancelled */
+    private static final long OFFER_INTERVAL = 100;
+
+    /** Marks the end of the pages */
+    private static final Object END_OF_PAGES = new Object();
+
+    /**
+     * Fetches the pages.
+     */
+    interface Pages<T> {
+
+        /**
+         * @return the first page, null when there are no pages
+         */
+        T first() throws Exception;
+
+        /**
+         * @return the page after the previous one, null when it was the last
+         */
+        T next(T previous) throws Exception;
+    }
+
+    private final BlockingQueue<Object> queue;
+    private final Future<Void> producer;
+    private volatile boolean cancelled = false;
+    private boolean finished = false;
+
+    /**
+     * Starts fetching the pages.
+     */
+    PagePrefetcher(ExecutorService executor, int depth, final Pages<T> pages){
+        queue = new ArrayBlockingQueue<Object>(Math.max(1, depth));
+        producer = executor.submit(new Callable<Void>(){
+            @Override
+            public Void call() throws Exception {
+                try {
+                    T page = pages.first();
+                    while(page != null && offer(page)){
+                        page = pages.next(page);
+                    }
+                } finally {
+                    offer(END_OF_PAGES);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Waits for the next page.
+     *
+     * @return the next page, null when there are no more pages
+     * @throws Exception the failure of the query that fetched the pages
+     */
+    @SuppressWarnings("unchecked")
+    T take() throws Exception {
+        if(finished){
+            return null;
+        }
+        Object page = queue.take();
+        if(page == END_OF_PAGES){
+            finished = true;
+            try {
+                producer.get();
+            } catch(ExecutionException e){
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+            return null;
+        }
+        return (T) page;
+    }
+
+    /**
+     * Stops fetching pages, called when the consumer won't take any more.
+     */
+    void cancel(){
+        cancelled = true;
+        producer.cancel(true);
+        queue.clear();
+    }
+
+    boolean isDone(){
+        return producer.isDone();
+    }
+
+    /**
+     * @return false when the prefetch has been cancelled and the page was dropped
+     */
+    private boolean offer(Object page) throws InterruptedException {
+        while(!cancelled && !Thread.currentThread().isInterrupted()){
+            if(queue.offer(page, OFFER_INTERVAL, TimeUnit.MILLISECONDS)){
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -16,12 +16,24 @@ public interface PersistentQueueDAO {
      * @param download
      */
     void addDownloadToQueue(DownloadDetailsDTO download);
+    /**
+     * Persists the changes to a download that is on the queue, e.g. its progress.
+     * @param download
+     */
+    void updateDownload(DownloadDetailsDTO download);
     /**
      * Return the next offline download from the queue. Leaving it on the
      * queue until a remove is called.
      * @return
      */
     DownloadDetailsDTO getNextDownload();
+    /**
+     * Return the next offline download from the queue that has no more than the
+     * supplied number of records. Leaving it on the queue until a remove is called.
+     * @param maxRecords
+     * @return
+     */
+    DownloadDetailsDTO getNextDownload(long maxRecords);
     /**
      * Returns the total number of download that are on the queue
      * @return
@@ -32,6 +44,13 @@ public interface PersistentQueueDAO {
      * @param download
      */
     void removeDownloadFromQueue(DownloadDetailsDTO download);
+    /**
+     * Returns whether the lease on a download that this node was performing was taken over by another node,
+     * in which case the download is cancelled on this node and completed by the other node.
+     * @param download
+     * @return
+     */
+    boolean isLeaseLost(DownloadDetailsDTO download);
     /**
      * Returns a list of all the offline downloads in the order in which they were requested.
      * @return
@@ -50,6 +50,16 @@ public interface SearchDAO {
      */
     List<FieldResultDTO> getValuesForFacet(SpatialSearchRequestParams requestParams) throws Exception;
 
+    /**
+     * Retrieve the values and counts of the first facet of the supplied query, straight from the
+     * SOLR responses.
+     *
+     * @param requestParams
+     * @return
+     * @throws Exception
+     */
+    FacetValues getFacetValues(SpatialSearchRequestParams requestParams) throws Exception;
+
     /**
      * Find all occurrences for a given (full text) query, latitude, longitude & radius (km). I.e.
      * a full-text spatial query.
@@ -101,6 +111,15 @@ public interface SearchDAO {
 	 */
 	Map<String, Integer> writeResultsFromIndexToStream(DownloadRequestParams downloadParams, OutputStream out, boolean includeSensitive, DownloadDetailsDTO dd,boolean checkLimit) throws Exception;
 
+    /**
+     * Estimates the records and split queries of a download without performing it.
+     * @param downloadParams
+     * @param fromIndex whether the download would use the index as a source of the data
+     * @return
+     * @throws Exception
+     */
+    DownloadEstimateDTO estimateDownload(DownloadRequestParams downloadParams, boolean fromIndex) throws Exception;
+
     /**
      * Write coordinates out to the supplied stream.
      *
@@ -176,6 +195,18 @@ public interface SearchDAO {
      */
     void refreshCaches();
 
+    /**
+     * Returns the statistics of the search result cache, e.g. its size and hit ratio.
+     */
+    Map<String, Object> getSearchResultCacheStats();
+
+    /**
+     * Returns the version of the index, which changes whenever the index is modified.
+     * @return
+     * @throws Exception
+     */
+    long getIndexVersion() throws Exception;
+
     /**
      * Find all species (and counts) for a given location search (lat/long and radius) and a higher taxon (with rank)
      *
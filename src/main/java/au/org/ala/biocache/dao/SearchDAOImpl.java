@@ -25,10 +25,19 @@ import au.org.ala.biocache.service.LayersService;
 import au.org.ala.biocache.service.SpeciesLookupService;
 import au.org.ala.biocache.util.*;
 import au.org.ala.biocache.util.thread.EndemicCallable;
+import au.org.ala.biocache.writer.CSVRecordEncoder;
 import au.org.ala.biocache.writer.CSVRecordWriter;
+import au.org.ala.biocache.writer.ArrowRecordWriter;
+import au.org.ala.biocache.writer.QueuedRecordWriter;
 import au.org.ala.biocache.writer.ShapeFileRecordWriter;
 import com.googlecode.ehcache.annotations.Cacheable;
-import org.apache.commons.io.output.ByteArrayOutputStream;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.io.WKTReader;
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
@@ -51,6 +60,7 @@ import org.springframework.context.support.AbstractMessageSource;
 import org.springframework.stereotype.Component;
 import org.springframework.util.CollectionUtils;
 
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import javax.servlet.ServletOutputStream;
 import java.io.OutputStream;
@@ -60,9 +70,15 @@ import java.math.RoundingMode;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.MatchResult;
 import java.util.regex.Matcher;
@@ -84,13 +100,35 @@ public class SearchDAOImpl implements SearchDAO {
     protected SolrRequest.METHOD queryMethod;
     /** Limit search results - for performance reasons */
     protected Integer MAX_DOWNLOAD_SIZE = 500000;
-    private Integer throttle = 100;
     /** Batch size for a download */
     protected Integer downloadBatchSize = 500;
+    /** The number of facet values in each page of a facet exported in a single pass */
+    @Value("${facet.export.page.size:10000}")
+    protected Integer facetExportPageSize = 10000;
+    /** The minimum time (ms) between the checkpoints of a resumable download */
+    @Value("${download.checkpoint.interval:60000}")
+    protected Long downloadCheckpointInterval = 60000L;
+    /** The number of split queries planned for each worker of a download */
+    @Value("${download.splits.per.thread:4}")
+    protected Integer downloadSplitsPerThread = 4;
+    /** The fields that a download can be split by, in order of preference */
+    protected static final String[] SPLIT_FIELDS = new String[]{"month", "year", "data_resource_uid"};
+    /** The maximum number of converted batches waiting for the download writer thread */
+    @Value("${download.writer.queue.size:20}")
+    protected Integer downloadWriterQueueSize = 20;
+    /** The number of records held in memory for each record batch of an Arrow download */
+    @Value("${download.arrow.batch.size:50000}")
+    protected Integer downloadArrowBatchSize = 50000;
+    /** The unique key used to keyset page through downloads. Must be indexed and unique per record. */
+    protected static final String PAGING_KEY_FIELD = "id";
     public static final String NAMES_AND_LSID = "names_and_lsid";
     public static final String COMMON_NAME_AND_LSID = "common_name_and_lsid";
     protected static final String DECADE_FACET_NAME = "decade";
     protected static final Integer FACET_PAGE_SIZE = 1000;
+    /** The facet sort that exports a facet in a single pass */
+    protected static final String FACET_SORT_INDEX = "index";
+    /** The index field types whose values are ordered as numbers */
+    protected static final Pattern NUMERIC_TYPES = Pattern.compile("t?(int|long|float|double)");
     protected static final String QUOTE = "\"";
     protected static final char[] CHARS = {' ',':'};
     protected static final String RANGE_SUFFIX = "_RNG";  
@@ -129,6 +167,12 @@ public class SearchDAOImpl implements SearchDAO {
     @Inject
     protected LayersService layersService;
 
+    @Inject
+    protected DownloadThrottle downloadThrottle;
+
+    @Inject
+    protected PersistentQueueDAO persistentQueueDAO;
+
     /** Max number of threads to use in endemic queries */
     @Value("${media.store.local:true}")
     protected Boolean usingLocalMediaRepo = true;
@@ -137,8 +181,88 @@ public class SearchDAOImpl implements SearchDAO {
     @Value("${max.query.thread:5}")
     protected Integer maxMultiPartThreads = 5;
 
-    /** thread pool for multipart queries that take awhile */
-    private ExecutorService executor = null;
+    /** thread pool for the batch queries of the endemic species, shared by all the endemic queries */
+    private ExecutorService endemicExecutor = null;
+
+    /** The time (ms) after which an endemic species query is cancelled */
+    @Value("${endemic.query.timeout:300000}")
+    protected Long endemicQueryTimeout = 300000L;
+
+    /** The minimum time (ms) between checks of the index version */
+    @Value("${index.version.check.interval:60000}")
+    protected Long indexVersionCheckInterval = 60000L;
+    private final IndexVersion indexVersion = new IndexVersion(){
+        @Override
+        protected long read() throws Exception {
+            return readIndexVersion();
+        }
+    };
+
+    /** Max number of threads shared by all the index downloads */
+    @Value("${download.max.threads:12}")
+    protected Integer downloadMaxThreads = 12;
+
+    /** Max number of threads a single index download can use */
+    @Value("${download.threads.per.download:6}")
+    protected Integer downloadThreadsPerDownload = 6;
+
+    /** thread pool shared by all the index downloads */
+    private ExecutorService downloadExecutor = null;
+
+    /** The number of SOLR pages fetched ahead of the page being written in a database download */
+    @Value("${download.pipeline.depth:2}")
+    protected Integer downloadPipelineDepth = 2;
+
+    /** thread pool that fetches the SOLR pages ahead for database downloads */
+    private ExecutorService prefetchExecutor = null;
+
+    /** Max number of threads shared by the species lookups of the facet downloads */
+    @Value("${species.lookup.max.threads:8}")
+    protected Integer speciesLookupMaxThreads = 8;
+
+    /** Max number of species lookups a single facet download has in flight */
+    @Value("${species.lookup.in.flight:4}")
+    protected Integer speciesLookupInFlight = 4;
+
+    /** thread pool shared by the species lookups of the facet downloads */
+    private ExecutorService speciesLookupExecutor = null;
+
+    /** Whether the endemic species are worked out from the in memory grid of the cells each species occurs in */
+    @Value("${species.grid.index.enabled:false}")
+    protected Boolean speciesGridIndexEnabled = false;
+
+    /** Comma separated list of the species facets that are held in the grid index */
+    @Value("${species.grid.index.fields:species_guid,names_and_lsid}")
+    protected String speciesGridIndexFields = "species_guid,names_and_lsid";
+
+    /** The point type whose values are the cells of the grid index */
+    @Value("${species.grid.index.point.type:POINT_01}")
+    protected String speciesGridIndexPointType = "POINT_01";
+
+    /** The number of records whose species are pivoted on their cells by a single query when building the grid index */
+    @Value("${species.grid.index.batch.records:2000000}")
+    protected Integer speciesGridIndexBatchRecords = 2000000;
+
+    /** The grid indexes of the species facets, built from version speciesGridIndexVersion of the index */
+    private Map<String, SpeciesGridIndex> speciesGridIndexes = Collections.emptyMap();
+    private Long speciesGridIndexVersion = null;
+    private Future<?> speciesGridIndexBuild = null;
+    private final Object speciesGridIndexLock = new Object();
+
+    /** builds the grid indexes in the background */
+    private ExecutorService speciesGridIndexExecutor = null;
+
+    /** The maximum estimated size in bytes of the cached search results, 0 disables the cache */
+    @Value("${search.cache.max.size:52428800}")
+    protected Long searchCacheMaxSize = 52428800L;
+
+    /** The maximum estimated size in bytes of a single cached search result */
+    @Value("${search.cache.max.entry.size:1048576}")
+    protected Long searchCacheMaxEntrySize = 1048576L;
+
+    /** caches the results of findByFulltextSpatialQuery */
+    private SearchResultCache searchResultCache = null;
+
     
     /** should we check download limits */
     @Value("${check.download.limits:false}")
@@ -208,6 +332,11 @@ public class SearchDAOImpl implements SearchDAO {
         indexFields = null;
         //empties the range cache to allow the settings to be recalculated.
         rangeFieldCache = null;
+        getSearchResultCache().clear();
+        //rebuilds the grid indexes the next time they are used
+        synchronized(speciesGridIndexLock){
+            speciesGridIndexVersion = null;
+        }
         try {
             indexFields = getIndexedFields();
             downloadFields = new DownloadFields(getIndexedFields());
@@ -219,16 +348,32 @@ public class SearchDAOImpl implements SearchDAO {
     /**
      * Returns a list of species that are endemic to the supplied region. Values are cached 
      * due to the "expensive" operation.
+     *
+     * The species of the region are looked for outside of it in batches that run concurrently,
+     * their results merged into an {@link EndemicSpecies} as they complete. The batches that are
+     * still running are cancelled when a batch fails, the query times out or the calling thread
+     * is interrupted.
+     *
+     * When the grid index is enabled and holds the facet of an unfiltered request, the endemic
+     * species are worked out from the cells of the area instead, see {@link SpeciesGridIndex}. As
+     * with SOLR a species that has records without coordinates is not endemic to any area, but the
+     * grid index only places the records along the edge of the area to the resolution of its grid.
+     * The cached results of a request may come from either until the cache expires.
      */
     @Cacheable(cacheName = "endemicCache")
     public List<FieldResultDTO> getEndemicSpecies(SpatialSearchRequestParams requestParams) throws Exception{
-        if(executor == null){
-            executor = Executors.newFixedThreadPool(maxMultiPartThreads);
+        SpeciesGridIndex index = getSpeciesGridIndex(requestParams);
+        if(index != null){
+            BitSet area = getSpeciesGridArea(index, requestParams);
+            if(area != null){
+                return sortFacetValues(index.getEndemicTo(area), requestParams);
+            }
         }
+        long deadline = System.currentTimeMillis() + endemicQueryTimeout;
         // 1)get a list of species that are in the WKT
         logger.debug("Starting to get Endemic Species...");
-        List<FieldResultDTO> list1 = getValuesForFacet(requestParams);//new ArrayList(Arrays.asList(getValuesForFacets(requestParams)));
-        logger.debug("Retrieved species within area...("+list1.size()+")");                     
+        FacetValues species = getFacetValues(requestParams);
+        logger.debug("Retrieved species within area...("+species.size()+")");                     
         // 2)get a list of species that occur in the inverse WKT
         
         String reverseQuery = SpatialUtils.getWKTQuery(spatialField, requestParams.getWkt(), true);//"-geohash:\"Intersects(" +wkt + ")\"";
@@ -243,14 +388,15 @@ public class SearchDAOImpl implements SearchDAO {
         String[] originalFqs = requestParams.getFq();
         //add the negated WKT query to the fq
         originalFqs= (String[])ArrayUtils.add(originalFqs ,reverseQuery);
-        List<Future<List<FieldResultDTO>>> threads = new ArrayList<Future<List<FieldResultDTO>>>();
+        CompletionService<FacetValues> completionService = new ExecutorCompletionService<FacetValues>(getEndemicExecutor());
+        List<Future<FacetValues>> threads = new ArrayList<Future<FacetValues>>();
         //batch up the rest of the world query so that we have fqs based on species we want to test for. This should improve the performance of the endemic services.       
-        while(i < list1.size()){
+        while(i < species.size()){
             StringBuffer sb = new StringBuffer();
-            while((localterms == 0 || localterms % termQueryLimit != 0) && i < list1.size()){
+            while((localterms == 0 || localterms % termQueryLimit != 0) && i < species.size()){
                 if(localterms != 0)
                     sb.append(" OR ");
-                sb.append(facet).append(":").append(ClientUtils.escapeQueryChars(list1.get(i).getFieldValue()));
+                sb.append(facet).append(":").append(ClientUtils.escapeQueryChars(species.getValue(i)));
                 i++;
                 localterms++;
             }
@@ -264,41 +410,207 @@ public class SearchDAOImpl implements SearchDAO {
             srp.setFq((String[])ArrayUtils.add(originalFqs, newfq));
             int batch = i / termQueryLimit;
             EndemicCallable callable = new EndemicCallable(srp, batch,this);
-            threads.add(executor.submit(callable));           
+            threads.add(completionService.submit(callable));
         }
-        for(Future<List<FieldResultDTO>> future: threads){
-            List<FieldResultDTO> list = future.get();
-            if(list != null)
-                list1.removeAll(list);
+        EndemicSpecies endemic = new EndemicSpecies(species);
+        try {
+            for(int completed = 0; completed < threads.size(); completed++){
+                long remaining = deadline - System.currentTimeMillis();
+                Future<FacetValues> future = remaining > 0 ? completionService.poll(remaining, TimeUnit.MILLISECONDS) : null;
+                if(future == null){
+                    throw new TimeoutException("The endemic species query took longer than " + endemicQueryTimeout + "ms");
+                }
+                endemic.addOccurringOutside(future.get());
+            }
+        } finally {
+            //stops the batches that are still running when the query fails
+            for(Future<FacetValues> future : threads){
+                future.cancel(true);
+            }
         }
+        List<FieldResultDTO> list1 = endemic.getEndemic();
         logger.debug("Determined final endemic list ("+list1.size()+")...");        
         return list1;
     }
     
     /**
-     * Returns the values and counts for a single facet field.    
+     * Returns the values and counts for a single facet field.
+     *
+     * The species of an area are worked out from the grid index when it holds the facet of an
+     * unfiltered request.
+     *
+     * @see #getFacetValues(au.org.ala.biocache.dto.SpatialSearchRequestParams)
      */
     public List<FieldResultDTO> getValuesForFacet(SpatialSearchRequestParams requestParams) throws Exception{
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        writeFacetToStream(requestParams, true, false, false, outputStream,null);
-        outputStream.flush();
-        outputStream.close();
-        String includedValues = outputStream.toString();
-        includedValues = includedValues == null ? "" : includedValues;
-        String[] values = includedValues.split("\n");
-        List<FieldResultDTO> list = new ArrayList<FieldResultDTO>();
-        boolean first = true;
-        for(String value: values){
-            if(first){
-                first = false;
-            } else {
-                int idx = value.lastIndexOf(",");                   
-		//handle values enclosed in "      
-                list.add(new FieldResultDTO(value.substring(0,idx), Long.parseLong(value.substring(idx+1).replace("\"",""))));
+        SpeciesGridIndex index = getSpeciesGridIndex(requestParams);
+        if(index != null){
+            BitSet area = getSpeciesGridArea(index, requestParams);
+            if(area != null){
+                return sortFacetValues(index.getSpeciesIn(area), requestParams);
             }
         }
-        return list;
-  }
+        return getFacetValues(requestParams).toFieldResults();
+    }
+
+    /**
+     * Returns the grid index of the facet of the request when it can answer it, i.e. the query is for
+     * all the records and the only filters are for records that have the facet.
+     *
+     * The grid indexes are built in the background the first time they are needed and again whenever
+     * the version of the index changes, e.g. after it is reopened. The requests are answered by
+     * SOLR in the meantime.
+     *
+     * @return null when the grid index can't be used for the request
+     */
+    private SpeciesGridIndex getSpeciesGridIndex(SpatialSearchRequestParams requestParams) throws Exception {
+        if(!speciesGridIndexEnabled || requestParams.getFacets() == null || requestParams.getFacets().length != 1){
+            return null;
+        }
+        String facet = requestParams.getFacets()[0];
+        if(!ArrayUtils.contains(speciesGridIndexFields.split(","), facet)
+                || !(StringUtils.isBlank(requestParams.getQ()) || "*:*".equals(requestParams.getQ().trim()))
+                || StringUtils.isNotBlank(requestParams.getQc())){
+            return null;
+        }
+        if(requestParams.getFq() != null){
+            for(String fq : requestParams.getFq()){
+                if(StringUtils.isNotBlank(fq) && !fq.trim().equals(facet + ":[* TO *]")){
+                    return null;
+                }
+            }
+        }
+        final long version = getIndexVersion();
+        synchronized(speciesGridIndexLock){
+            if(speciesGridIndexVersion == null || speciesGridIndexVersion != version){
+                if(speciesGridIndexBuild == null || speciesGridIndexBuild.isDone()){
+                    speciesGridIndexBuild = getSpeciesGridIndexExecutor().submit(new Runnable(){
+                        @Override
+                        public void run() {
+                            buildSpeciesGridIndexes(version);
+                        }
+                    });
+                }
+                return null;
+            }
+            return speciesGridIndexes.get(facet);
+        }
+    }
+
+    /**
+     * Builds the grid indexes of all the species facets from the index, replacing the current ones.
+     */
+    private void buildSpeciesGridIndexes(long version){
+        Map<String, SpeciesGridIndex> indexes = new HashMap<String, SpeciesGridIndex>();
+        try {
+            for(String field : speciesGridIndexFields.split(",")){
+                if(StringUtils.isNotBlank(field)){
+                    long start = System.currentTimeMillis();
+                    SpeciesGridIndex index = buildSpeciesGridIndex(field.trim());
+                    indexes.put(field.trim(), index);
+                    logger.info("Built the grid index of " + field + ", " + index.getSpeciesCount() + " species in "
+                            + index.getCellCount() + " cells, in " + (System.currentTimeMillis() - start) + "ms");
+                }
+            }
+        } catch(Exception e){
+            //the index is not retried until it changes or the caches are refreshed
+            logger.error("Unable to build the species grid index, the endemic species will be queried from SOLR", e);
+            indexes.clear();
+        }
+        synchronized(speciesGridIndexLock){
+            speciesGridIndexes = indexes;
+            speciesGridIndexVersion = version;
+        }
+    }
+
+    /**
+     * Builds the grid index of a species facet by pivoting batches of its values on the point field.
+     * The batches are ranges of the values holding about speciesGridIndexBatchRecords records.
+     */
+    private SpeciesGridIndex buildSpeciesGridIndex(String field) throws Exception {
+        PointType pointType = PointType.valueOf(speciesGridIndexPointType);
+        SpeciesGridIndex.Builder builder = new SpeciesGridIndex.Builder(Double.parseDouble(pointType.getValue().toString()));
+
+        SpatialSearchRequestParams params = new SpatialSearchRequestParams();
+        params.setQ("*:*");
+        params.setFacets(new String[]{field});
+        params.setFsort(FACET_SORT_INDEX);
+        params.setPageSize(0);
+        FacetValues species = getFacetValues(params);
+
+        String pivot = field + "," + pointType.getLabel();
+        int first = 0;
+        while(first < species.size()){
+            long records = 0;
+            int last = first;
+            while(last < species.size() - 1 && records + species.getCount(last) < speciesGridIndexBatchRecords){
+                records += species.getCount(last++);
+            }
+            SolrQuery solrQuery = new SolrQuery("*:*");
+            solrQuery.setRows(0);
+            solrQuery.setFacet(true);
+            solrQuery.setFacetLimit(-1);
+            solrQuery.setFacetMinCount(1);
+            solrQuery.set("facet.pivot", pivot);
+            solrQuery.addFilterQuery(field + ":[" + ClientUtils.escapeQueryChars(species.getValue(first)) + " TO "
+                    + ClientUtils.escapeQueryChars(species.getValue(last)) + "]");
+            QueryResponse qr = getServer().query(solrQuery, queryMethod);
+            List<PivotField> values = qr.getFacetPivot() != null ? qr.getFacetPivot().get(pivot) : null;
+            if(values != null){
+                for(PivotField value : values){
+                    long withoutPoint = value.getCount();
+                    if(value.getPivot() != null){
+                        for(PivotField cell : value.getPivot()){
+                            builder.add(value.getValue().toString(), cell.getValue().toString(), cell.getCount());
+                            withoutPoint -= cell.getCount();
+                        }
+                    }
+                    //the records of the species that the pivot has no point for
+                    if(withoutPoint > 0){
+                        builder.addWithoutPoint(value.getValue().toString(), withoutPoint);
+                    }
+                }
+            }
+            first = last + 1;
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the cells of the area of the request, null when it has no area
+     */
+    private BitSet getSpeciesGridArea(SpeciesGridIndex index, SpatialSearchRequestParams requestParams) throws Exception {
+        if(StringUtils.isNotBlank(requestParams.getWkt())){
+            final GeometryFactory factory = new GeometryFactory();
+            Geometry geometry = new WKTReader(factory).read(requestParams.getWkt());
+            final PreparedGeometry prepared = PreparedGeometryFactory.prepare(geometry);
+            Envelope envelope = geometry.getEnvelopeInternal();
+            return index.getCells(envelope.getMinY(), envelope.getMinX(), envelope.getMaxY(), envelope.getMaxX(), new SpeciesGridIndex.Area(){
+                @Override
+                public boolean contains(double lat, double lng) {
+                    return prepared.intersects(factory.createPoint(new Coordinate(lng, lat)));
+                }
+            });
+        } else if(requestParams.getLat() != null && requestParams.getLon() != null && requestParams.getRadius() != null){
+            return index.getCellsWithin(requestParams.getLat(), requestParams.getLon(), requestParams.getRadius());
+        }
+        return null;
+    }
+
+    /**
+     * @return the values in the order SOLR would return them for the request, by count unless sorted by index
+     */
+    private List<FieldResultDTO> sortFacetValues(FacetValues values, SpatialSearchRequestParams requestParams){
+        List<FieldResultDTO> results = values.toFieldResults();
+        if(!FACET_SORT_INDEX.equals(requestParams.getFsort())){
+            Collections.sort(results, new Comparator<FieldResultDTO>(){
+                @Override
+                public int compare(FieldResultDTO result, FieldResultDTO other) {
+                    return result.getCount() > other.getCount() ? -1 : result.getCount() < other.getCount() ? 1 : 0;
+                }
+            });
+        }
+        return results;
+    }
 
     /**
      * @see au.org.ala.biocache.dao.SearchDAO#findByFulltextSpatialQuery
@@ -310,6 +622,15 @@ public class SearchDAOImpl implements SearchDAO {
     
     @Override
     public SearchResultDTO findByFulltextSpatialQuery(SpatialSearchRequestParams searchParams, boolean includeSensitive, Map<String,String[]> extraParams) {
+        //the key is taken before the search updates the params
+        String cacheKey = SearchResultCache.getKey(searchParams, includeSensitive, extraParams);
+        Long cacheVersion = getSearchResultCacheVersion();
+        if(cacheVersion != null){
+            SearchResultDTO cached = getSearchResultCache().get(cacheKey, cacheVersion, searchParams);
+            if(cached != null){
+                return cached;
+            }
+        }
         SearchResultDTO searchResults = new SearchResultDTO();
         SpatialSearchRequestParams original = new SpatialSearchRequestParams(); 
         BeanUtils.copyProperties(searchParams, original);
@@ -333,6 +654,9 @@ public class SearchDAOImpl implements SearchDAO {
             searchResults.setActiveFacetMap(searchUtils.addFacetMap(searchParams.getFq(), getAuthIndexFields()));
             
             logger.info("spatial search query: " + queryString);
+            if(cacheVersion != null){
+                getSearchResultCache().put(cacheKey, cacheVersion, searchParams, searchResults);
+            }
         } catch (Exception ex) {
             logger.error("Error executing query with requestParams: " + searchParams.toString()+ " EXCEPTION: " + ex.getMessage());
             searchResults.setStatus("ERROR"); // TODO also set a message field on this bean with the error message(?)
@@ -382,12 +706,72 @@ public class SearchDAOImpl implements SearchDAO {
 
     /**
      * Writes the values for the first supplied facet to output stream
-     * 
+     *
+     * The species details of guid and lsid facets are looked up in concurrent batches with a
+     * {@link SpeciesLookupPipeline} while the next pages are fetched.
+     *
      * @param includeCount true when the count should be included in the download
      * @param lookupName true when a name lsid should be looked up in the bie
-     * 
+     * @see #queryFacetPages(SpatialSearchRequestParams, FacetPageHandler)
      */
     public void writeFacetToStream(SpatialSearchRequestParams searchParams, boolean includeCount, boolean lookupName, boolean includeSynonyms, OutputStream out, DownloadDetailsDTO dd) throws Exception{
+        String facetName = searchParams.getFacets()[0];
+        boolean shouldLookup = lookupName && (facetName.contains("_guid")||facetName.contains("_lsid"));
+        FacetCSVWriter facetWriter = new FacetCSVWriter(facetName, includeCount, shouldLookup, includeSynonyms, out, dd);
+        try {
+            if(queryFacetPages(searchParams, facetWriter)){
+                facetWriter.finish();
+            }
+        } finally {
+            facetWriter.cancel();
+        }
+    }
+
+    /**
+     * Returns the values and counts for a single facet field, read straight from the SOLR responses.
+     *
+     * @see au.org.ala.biocache.dao.SearchDAO#getFacetValues(au.org.ala.biocache.dto.SpatialSearchRequestParams)
+     */
+    @Override
+    public FacetValues getFacetValues(SpatialSearchRequestParams requestParams) throws Exception {
+        final FacetValues facetValues = new FacetValues();
+        queryFacetPages(requestParams, new FacetPageHandler(){
+            @Override
+            public void start() {}
+
+            @Override
+            public void page(List<FacetField.Count> values) {
+                for(FacetField.Count value : values){
+                    facetValues.add(value.getName(), value.getCount());
+                }
+            }
+        });
+        return facetValues;
+    }
+
+    /**
+     * Receives the values of a facet a page at a time.
+     */
+    private interface FacetPageHandler {
+
+        /**
+         * Called before the first page when the query matches records.
+         */
+        void start() throws Exception;
+
+        void page(List<FacetField.Count> values) throws Exception;
+    }
+
+    /**
+     * Queries the values of the first facet of the request, passing them to the handler a page at a time.
+     *
+     * When the facet is sorted by index (fsort=index) the values are walked in a single pass with a
+     * {@link FacetExportCursor}, each page continuing from the last value written. Otherwise the
+     * values are paged through with facet.offset, which has Solr count the facet again for every page.
+     *
+     * @return false when the query doesn't match any records
+     */
+    private boolean queryFacetPages(SpatialSearchRequestParams searchParams, FacetPageHandler handler) throws Exception {
         //set to unlimited facets
         searchParams.setFlimit(-1);
         formatSearchQuery(searchParams);
@@ -397,96 +781,166 @@ public class SearchDAOImpl implements SearchDAO {
         SolrQuery solrQuery = initSolrQuery(searchParams,false,null);
         solrQuery.setQuery(queryString);
 
-        //don't want any results returned
-        solrQuery.setRows(0);
-        solrQuery.setFacetLimit(FACET_PAGE_SIZE);        
-        int offset = 0;
-        boolean shouldLookup = lookupName && (searchParams.getFacets()[0].contains("_guid")||searchParams.getFacets()[0].contains("_lsid"));
-        
+        String facetName = searchParams.getFacets()[0];
+        boolean singlePass = FACET_SORT_INDEX.equals(searchParams.getFsort());
+        int pageSize = singlePass ? facetExportPageSize : FACET_PAGE_SIZE;
+        solrQuery.setFacetLimit(pageSize);
+
         QueryResponse qr = runSolrQuery(solrQuery, searchParams);
         logger.debug("Retrieved facet results from server...");
-        if (!qr.getResults().isEmpty()) {
-            FacetField ff = qr.getFacetField(searchParams.getFacets()[0]);
-            
-            //write the header line
-            if(ff != null){
-                String[] header = new String[]{ff.getName()};
-               // out.write(ff.getName().getBytes());
-                if(shouldLookup){
-                    header = speciesLookupService.getHeaderDetails(ff.getName(), includeCount, includeSynonyms);
-                }
-                else if(includeCount){
-                    //out.write(",Count".getBytes());
-                    header = (String[])ArrayUtils.add(header, "count");
-                }
-                CSVRecordWriter writer = new CSVRecordWriter(out, header);
-                //out.write("\n".getBytes());
-                //PAGE through the facets until we reach the end.
-                while(ff.getValueCount() > 0){
-                    if(ff.getValueCount() > 0){
-                      //process the "species_guid_ facet by looking up the list of guids                
-                        if(shouldLookup){
-                            
-                            List<String> guids = new ArrayList<String>();
-                            List<Long> counts = new ArrayList<Long> ();
-                            logger.debug("Downloading " +  ff.getValueCount() + " species guids");
-                            for(FacetField.Count value : ff.getValues()){
-                                guids.add(value.getName());
-                                if(includeCount) {
-                                    counts.add(value.getCount());
-                                }
+        FacetField ff = qr.getFacetField(facetName);
+        if(qr.getResults().isEmpty() || ff == null){
+            return false;
+        }
+        handler.start();
+        //the filter queries were added by the first page, the rest of the pages don't need any records
+        solrQuery.setRows(0);
+        if(singlePass){
+            FacetExportCursor cursor = new FacetExportCursor(facetName, isNumericField(facetName), pageSize);
+            while(true){
+                List<FacetField.Count> values = cursor.next(ff == null ? null : ff.getValues());
+                if(!values.isEmpty()){
+                    handler.page(values);
+                }
+                if(cursor.isFinished()){
+                    break;
+                }
+                SolrQuery pageQuery = solrQuery.getCopy();
+                pageQuery.addFilterQuery(cursor.getFilter());
+                //any requested foffset only applies to the first page
+                pageQuery.remove("facet.offset");
+                if(cursor.getOffset() > 0){
+                    pageQuery.add("facet.offset", Integer.toString(cursor.getOffset()));
+                }
+                qr = getServer().query(pageQuery, queryMethod);
+                ff = qr.getFacetField(facetName);
+            }
+        } else {
+            //PAGE through the facets until we reach the end.
+            int offset = 0;
+            while(ff != null && ff.getValueCount() > 0){
+                handler.page(ff.getValues());
+                if(ff.getValueCount() < pageSize){
+                    break;
+                }
+                //get the next values
+                offset += pageSize;
+                solrQuery.remove("facet.offset");
+                solrQuery.add("facet.offset", Integer.toString(offset));
+                qr = getServer().query(solrQuery, queryMethod);
+                ff = qr.getFacetField(facetName);
+            }
+        }
+        return true;
+    }
 
-                                //Only want to send a sub set of the list so that the URI is not too long for BIE
-                                if(guids.size()==30){
-                                    //now get the list of species from the web service TODO may need to move this code
-                                    //handle null values being returned from the service...
-                                    writeTaxonDetailsToStream(guids, counts, includeCount, includeSynonyms, writer);
-                                    guids.clear();
-                                    counts.clear();
-                                }
-                            }
-                            //now write any guids that remain at the end of the looping
-                            writeTaxonDetailsToStream(guids, counts, includeCount, includeSynonyms, writer);
-                        } else {
-                            //default processing of facets
-                            for(FacetField.Count value : ff.getValues()){
-                                String[] row = includeCount?new String[]{value.getName(), Long.toString(value.getCount())}:new String[]{value.getName()};
-                                writer.write(row);
-                            }
-                        }
-                        offset += FACET_PAGE_SIZE;
-                        if(dd != null) {
-                            dd.updateCounts(FACET_PAGE_SIZE);
-                        }
-                        //get the next values
-                        solrQuery.remove("facet.offset");
-                        solrQuery.add("facet.offset", Integer.toString(offset));
-                        qr = runSolrQuery(solrQuery, searchParams);
-                        ff = qr.getFacetField(searchParams.getFacets()[0]);
-                    }
-                    writer.finalise();
+    /**
+     * Writes the pages of a facet to a CSV stream, flushing each page so that the values are sent
+     * as each page arrives. When the species details are looked up the values are added to the
+     * lookups instead, which write them once they have been looked up.
+     */
+    private class FacetCSVWriter implements FacetPageHandler {
+
+        private final String facetName;
+        private final boolean includeCount;
+        private final boolean shouldLookup;
+        private final boolean includeSynonyms;
+        private final OutputStream out;
+        private final DownloadDetailsDTO dd;
+        private CSVRecordWriter writer;
+        private SpeciesLookupPipeline lookups;
+
+        FacetCSVWriter(String facetName, boolean includeCount, boolean shouldLookup, boolean includeSynonyms, OutputStream out, DownloadDetailsDTO dd){
+            this.facetName = facetName;
+            this.includeCount = includeCount;
+            this.shouldLookup = shouldLookup;
+            this.includeSynonyms = includeSynonyms;
+            this.out = out;
+            this.dd = dd;
+        }
+
+        /**
+         * Writes the header line.
+         */
+        @Override
+        public void start() {
+            String[] header = new String[]{facetName};
+            if(shouldLookup){
+                header = speciesLookupService.getHeaderDetails(facetName, includeCount, includeSynonyms);
+            }
+            else if(includeCount){
+                header = (String[])ArrayUtils.add(header, "count");
+            }
+            writer = new CSVRecordWriter(out, header);
+            //the species details are looked up while the next pages are fetched
+            if(shouldLookup){
+                lookups = new SpeciesLookupPipeline(speciesLookupService, getSpeciesLookupExecutor(),
+                        speciesLookupInFlight, includeCount, includeSynonyms, writer);
+            }
+        }
+
+        @Override
+        public void page(List<FacetField.Count> values) throws Exception {
+            if(lookups != null){
+                logger.debug("Downloading " +  values.size() + " species guids");
+                for(FacetField.Count value : values){
+                    lookups.add(value.getName(), value.getCount());
                 }
+            } else {
+                //default processing of facets
+                for(FacetField.Count value : values){
+                    String[] row = includeCount?new String[]{value.getName(), Long.toString(value.getCount())}:new String[]{value.getName()};
+                    writer.write(row);
+                }
+            }
+            writer.flush();
+            if(dd != null) {
+                dd.updateCounts(values.size());
+            }
+        }
+
+        /**
+         * Writes the rows that are still being looked up.
+         */
+        void finish() throws Exception {
+            if(lookups != null){
+                lookups.finish();
+            }
+            writer.finalise();
+        }
+
+        /**
+         * Cancels the lookups that are still in flight when the download fails.
+         */
+        void cancel(){
+            if(lookups != null){
+                lookups.cancel();
             }
         }
     }
+
     /**
-     * Writes additional taxon information to the stream. It performs bulk lookups to the 
-     * BIE in order to obtain extra classification information
-     * @param guids The guids to lookup 
-     * @param counts The occurrence counts for each guid if "includeCounts = true"
-     * @param includeCounts Whether or not to include the occurrence counts in the download
-     * @param includeSynonyms whether or not to include the synonyms in the download - when 
-     * true this will perform additional lookups in the BIE
-     * @param writer The CSV writer to write to.
-     * @throws Exception
+     * @return true when the values of the indexed field are ordered as numbers
+     */
+    private boolean isNumericField(String field) throws Exception {
+        getIndexedFields();
+        IndexFieldDTO details = indexFieldMap.get(field);
+        return details != null && details.getDataType() != null && NUMERIC_TYPES.matcher(details.getDataType()).matches();
+    }
+
+    /**
+     * @return the fields whose values are ordered as numbers
      */
-    private void writeTaxonDetailsToStream(List<String> guids,List<Long> counts, boolean includeCounts, boolean includeSynonyms, CSVRecordWriter writer) throws Exception{
-        List<String[]> values=speciesLookupService.getSpeciesDetails(guids, counts, includeCounts, includeSynonyms);
-        for(String[] value :values){
-            writer.write(value);
+    private Set<String> getNumericFields(Collection<String> fields) throws Exception {
+        Set<String> numericFields = new HashSet<String>();
+        for(String field : fields){
+            if(isNumericField(field)){
+                numericFields.add(field);
+            }
         }
+        return numericFields;
     }
-    
+
     /**
      * Writes all the distinct latitude and longitude in the index to the supplied
      * output stream.
@@ -540,10 +994,23 @@ public class SearchDAOImpl implements SearchDAO {
                                                                          OutputStream out,
                                                                          boolean includeSensitive, final DownloadDetailsDTO dd, boolean checkLimit) throws Exception {
         long start = System.currentTimeMillis();
-        final Map<String, Integer> uidStats = new HashMap<String, Integer>();
+        //counted by all the download threads without locking
+        final UidCounts uidStats = new UidCounts();
+        //CSV downloads with a checkpoint are written to a staging file and resume from the checkpoint
+        out = new ProgressOutputStream(out, dd.getProgress());
+        final DownloadCheckpointer checkpointer = dd.getCheckpoint() != null && "csv".equals(downloadParams.getFileType()) ?
+                new DownloadCheckpointer(dd, persistentQueueDAO, downloadCheckpointInterval, uidStats) : null;
+        if(checkpointer != null){
+            out = checkpointer.wrap(out);
+            if(checkpointer.isResuming()){
+                logger.info("Resuming download from checkpoint: " + dd.getCheckpoint());
+                dd.updateCounts((int) checkpointer.getRecords());
+            }
+        }
         if(server == null){
             initServer();
         }
+        downloadThrottle.downloadStarted();
         try {
             SolrQuery solrQuery = new SolrQuery();
             formatSearchQuery(downloadParams);
@@ -580,7 +1047,8 @@ public class SearchDAOImpl implements SearchDAO {
             solrQuery.addField("institution_uid")
                 .addField("collection_uid")
                 .addField("data_resource_uid")
-                .addField("data_provider_uid");
+                .addField("data_provider_uid")
+                .addField(PAGING_KEY_FIELD);
 
             //add context information
             updateQueryContext(downloadParams);
@@ -588,9 +1056,12 @@ public class SearchDAOImpl implements SearchDAO {
             solrQuery.setFacetMinCount(1);
             solrQuery.setFacetLimit(-1);
 
-            //get the assertion facets to add them to the download fields
+            //get the assertion facets to add them to the download fields and the facets used to plan the split queries
             boolean getAssertionsFromFacets = "all".equals(downloadParams.getQa());
-            SolrQuery monthAssertionsQuery = getAssertionsFromFacets?solrQuery.getCopy().addFacetField("month", "assertions"):solrQuery.getCopy().addFacetField("month");
+            SolrQuery monthAssertionsQuery = solrQuery.getCopy().addFacetField(SPLIT_FIELDS);
+            if(getAssertionsFromFacets){
+                monthAssertionsQuery.addFacetField("assertions");
+            }
             if(getAssertionsFromFacets){
                 //set the order for the facet to be based on the index - this will force the assertions to be returned in the same order each time
                 //based on alphabetical sort.  The number of QA's may change between searches so we can't guarantee that the order won't change
@@ -604,9 +1075,12 @@ public class SearchDAOImpl implements SearchDAO {
                 checkLimit = false;
             }
 
-            //get the month facets to add them to the download fields get the assertion facets.
-            List<Count> splitByFacet = null;
-           
+            //get the facets of the split fields and the assertion facets.
+            Map<String, Map<String, Long>> splitFacetCounts = new LinkedHashMap<String, Map<String, Long>>();
+            for(String splitField : SPLIT_FIELDS){
+                splitFacetCounts.put(splitField, new LinkedHashMap<String, Long>());
+            }
+
             for(FacetField facet : facetQuery.getFacetFields()){
                 if(facet.getName().equals("assertions") && facet.getValueCount() > 0){
                    for(FacetField.Count facetEntry : facet.getValues()){
@@ -615,8 +1089,10 @@ public class SearchDAOImpl implements SearchDAO {
                        qasb.append(facetEntry.getName());
                    }
                 }
-                if(facet.getName().equals("month") && facet.getValueCount() > 0){
-                   splitByFacet = facet.getValues();
+                if(splitFacetCounts.containsKey(facet.getName()) && facet.getValueCount() > 0){
+                   for(FacetField.Count facetEntry : facet.getValues()){
+                       splitFacetCounts.get(facet.getName()).put(facetEntry.getName(), facetEntry.getCount());
+                   }
                 }
             }
 
@@ -627,99 +1103,153 @@ public class SearchDAOImpl implements SearchDAO {
             String[] header = org.apache.commons.lang3.ArrayUtils.addAll(indexedFields[2].toArray(new String[]{}),qaTitles);
             
             //construct correct RecordWriter based on the supplied fileType
-            final au.org.ala.biocache.RecordWriter rw = downloadParams.getFileType().equals("csv") ? new CSVRecordWriter(out, header, downloadParams.getSep(), downloadParams.getEsc()) : new ShapeFileRecordWriter(downloadParams.getFile(), out, (String[])ArrayUtils.addAll(fields, qaFields));
+            //the header is already in the staging file when resuming a download
+            String[] csvHeader = checkpointer != null && checkpointer.isResuming() ? null : header;
+            final au.org.ala.biocache.RecordWriter rw = downloadParams.getFileType().equals("csv") ? new CSVRecordWriter(out, csvHeader, downloadParams.getSep(), downloadParams.getEsc()) :
+                    downloadParams.getFileType().equals("arrow") ? new ArrowRecordWriter(out, header, getColumnTypes(fields, qaFields), downloadArrowBatchSize) :
+                    new ShapeFileRecordWriter(downloadParams.getFile(), out, (String[])ArrayUtils.addAll(fields, qaFields));
             
             if(rw instanceof ShapeFileRecordWriter){
                 dd.setHeaderMap(((ShapeFileRecordWriter)rw).getHeaderMappings());
             }
+            if(checkpointer != null){
+                checkpointer.setWriter((CSVRecordWriter) rw);
+            }
             
-            //order the query by _docid_ for faster paging
-            solrQuery.addSortField("_docid_", ORDER.asc);
-
-            //for each month create a separate query that pages through 500 records per page
-            List<SolrQuery> queries = new ArrayList<SolrQuery>();
-            if(splitByFacet != null){
-                for(Count facet: splitByFacet){
-                    if(facet.getCount() > 0){
-                        SolrQuery splitByFacetQuery = solrQuery.getCopy().addFilterQuery(facet.getFacetField().getName() + ":" + facet.getName());
-                        splitByFacetQuery.setFacet(false);
-                        queries.add(splitByFacetQuery);
-                    }
+            //order the query by the unique key so that each page can resume from the last key seen
+            solrQuery.addSortField(PAGING_KEY_FIELD, ORDER.asc);
+
+            //plan balanced splits so that the workers get similar amounts of work, a resumed download keeps its original splits
+            List<String> splitFilters = checkpointer != null ? checkpointer.getSplits() : null;
+            if(splitFilters == null || splitFilters.isEmpty()){
+                List<DownloadSplitPlanner.Split> splits = new DownloadSplitPlanner(downloadThreadsPerDownload * downloadSplitsPerThread)
+                        .plan(dd.getTotalRecords(), splitFacetCounts, getNumericFields(splitFacetCounts.keySet()));
+                logger.debug("Download splits: " + splits);
+                splitFilters = new ArrayList<String>();
+                for(DownloadSplitPlanner.Split split : splits){
+                    splitFilters.add(split.filter);
+                }
+                if(checkpointer != null){
+                    checkpointer.setSplits(splitFilters);
                 }
-                SolrQuery remainderQuery = solrQuery.getCopy().addFilterQuery("-"+splitByFacet.get(0).getFacetField().getName() + ":[* TO *]");
-                queries.add(0, remainderQuery);
-            } else {
-                queries.add(0, solrQuery);
             }
 
-            //multi-thread the requests...
-            ExecutorService pool = Executors.newFixedThreadPool(6);
-            Set<Future<Integer>> futures = new HashSet<Future<Integer>>();
-            final AtomicInteger resultsCount = new AtomicInteger(0);
-            final boolean threadCheckLimit = checkLimit;
-
-            //execute each query, writing the results to stream
-            for(final SolrQuery splitByFacetQuery: queries){
-                //define a thread
-                Callable<Integer> solrCallable = new Callable<Integer>(){
+            //create a separate query for each split that pages through 500 records per page. The queries are
+            //named by their split filter so that a checkpoint can refer to them
+            final Map<String, SolrQuery> queries = new LinkedHashMap<String, SolrQuery>();
+            for(String splitFilter : splitFilters){
+                SolrQuery splitQuery = "*:*".equals(splitFilter) ? solrQuery.getCopy() : solrQuery.getCopy().addFilterQuery(splitFilter);
+                splitQuery.setFacet(false);
+                queries.put(splitFilter, splitQuery);
+            }
 
-                    int startIndex = 0;
+            //a single writer thread feeds the record writer, the query threads hand it converted batches
+            final QueuedRecordWriter queuedWriter = new QueuedRecordWriter(rw, downloadWriterQueueSize);
 
-                    @Override
-                    public Integer call() throws Exception {
-                        QueryResponse qr = runSolrQuery(splitByFacetQuery, downloadParams.getFq(), downloadBatchSize, startIndex, "_docid_", "asc");
-                        int recordsForThread = 0;
+            //the split queries are shared by the workers this download runs on the shared download pool
+            final Queue<String> splitQueries = new ConcurrentLinkedQueue<String>();
+            for(String split : queries.keySet()){
+                if(checkpointer == null || !checkpointer.isCompleted(split)){
+                    splitQueries.add(split);
+                }
+            }
+            final AtomicInteger resultsCount = new AtomicInteger(checkpointer != null ? (int) checkpointer.getRecords() : 0);
+            final boolean threadCheckLimit = checkLimit;
+            final boolean encodeCsv = rw instanceof CSVRecordWriter;
+
+            //define a worker that downloads split queries until there are none left
+            Callable<Integer> solrCallable = new Callable<Integer>(){
+                @Override
+                public Integer call() throws Exception {
+                    int recordsForThread = 0;
+                    //csv records are encoded by the worker straight from the SOLR documents
+                    CSVRecordEncoder encoder = encodeCsv ? new CSVRecordEncoder(fields, qaFields, downloadParams.getSep(), downloadParams.getEsc()) : null;
+                    String split;
+                    while(!dd.isCancelled() && (split = splitQueries.poll()) != null && !Thread.currentThread().isInterrupted()){
+                        final String splitName = split;
+                        SolrQuery splitByFacetQuery = queries.get(splitName);
+                        String lastKey = checkpointer != null ? checkpointer.getLastKey(splitName) : null;
+                        QueryResponse qr = runKeysetPagedQuery(splitByFacetQuery, downloadParams.getFq(), downloadBatchSize, lastKey, dd);
                         logger.debug(splitByFacetQuery.getQuery() + " - results: " + qr.getResults().size());
 
-                        while (qr != null &&!qr.getResults().isEmpty()) {
-                            logger.debug("Start index: " + startIndex + ", " + splitByFacetQuery.getQuery());
-                            int count=0;
-                            synchronized (rw) {
-                                count = processQueryResults(uidStats, fields, qaFields, rw, qr, dd, threadCheckLimit, resultsCount);
-                                recordsForThread += count;
+                        while (qr != null &&!qr.getResults().isEmpty() && !dd.isCancelled()) {
+                            logger.debug("Last key: " + lastKey + ", " + splitByFacetQuery.getQuery());
+                            //convert the page outside of any lock and queue it for the writer thread
+                            //a checkpoint must only count written records so those counts are added once the batch is written
+                            final UidCounts batchStats = checkpointer != null ? new UidCounts(1) : null;
+                            final List<String[]> batch = encoder == null ? new ArrayList<String[]>(qr.getResults().size()) : null;
+                            final int batchSize = processQueryResults(batchStats != null ? batchStats : uidStats, fields, qaFields, qr, dd, threadCheckLimit, resultsCount, batch, encoder);
+                            recordsForThread += batchSize;
+                            lastKey = getLastPagingKey(qr);
+                            final String batchLastKey = lastKey;
+                            Runnable afterWrite = new Runnable(){
+                                @Override
+                                public void run() {
+                                    if(checkpointer != null){
+                                        uidStats.addAll(batchStats);
+                                        checkpointer.batchWritten(splitName, batchLastKey, batchSize);
+                                    }
+                                }
+                            };
+                            if(encoder != null){
+                                queuedWriter.writeEncoded(encoder.toByteArray(), afterWrite);
+                            } else {
+                                queuedWriter.writeBatch(batch, afterWrite);
                             }
-                            startIndex += downloadBatchSize;
-                            //we have already set the Filter query the first time the query was constructed rerun with he same params but different startIndex
-                            if(!threadCheckLimit || resultsCount.intValue()<MAX_DOWNLOAD_SIZE){
+                            //we have already set the Filter query the first time the query was constructed rerun with he same params resuming after the last key
+                            if(lastKey != null && (!threadCheckLimit || resultsCount.intValue()<MAX_DOWNLOAD_SIZE)){
                                 if(!threadCheckLimit){
-                                    //throttle the download by sleeping
-                                    try{
-                                        Thread.currentThread().sleep(throttle);
-                                    } catch(InterruptedException e){
-                                        //don't care if the sleep was interrupted
+                                    //back off when SOLR is slow to return the pages
+                                    downloadThrottle.pause();
+                                    if(Thread.currentThread().isInterrupted()){
+                                        //cancelled while throttled, the split is left incomplete
+                                        return recordsForThread;
                                     }
                                 }
-                                qr = runSolrQuery(splitByFacetQuery, null, downloadBatchSize, startIndex, "_docid_", "asc");
+                                qr = runKeysetPagedQuery(splitByFacetQuery, null, downloadBatchSize, lastKey, dd);
                             } else {
                                 qr = null;
                             }
                         }
-                        return recordsForThread;
+                        if(checkpointer != null){
+                            queuedWriter.writeBatch(Collections.<String[]>emptyList(), new Runnable(){
+                                @Override
+                                public void run() {
+                                    checkpointer.splitCompleted(splitName);
+                                }
+                            });
+                        }
                     }
-                };
-                futures.add(pool.submit(solrCallable));
+                    return recordsForThread;
+                }
+            };
+
+            //take a fair share of the shared pool based on the number of downloads running
+            int workers = Math.min(splitQueries.size(), getDownloadWorkerCount());
+            CompletionService<Integer> completionService = new ExecutorCompletionService<Integer>(getDownloadExecutor());
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for(int w = 0; w < workers; w++){
+                futures.add(completionService.submit(solrCallable));
             }
 
-            //check the futures until all have finished
+            //wait for the workers to finish, returning as soon as the last one completes
             int totalDownload = 0;
-            Set<Future<Integer>> completeFutures = new HashSet<Future<Integer>>();
-            boolean allComplete = false;
-            while(!allComplete){
-                for(Future future: futures){
-                    if(!completeFutures.contains(future)){
-                        if(future.isDone()){                            
-                            totalDownload += (Integer) future.get();
-                            completeFutures.add(future);
-                        }
-                    }
+            try {
+                for(int w = 0; w < workers; w++){
+                    totalDownload += completionService.take().get();
                 }
-                allComplete = completeFutures.size() == futures.size();
-                if(!allComplete){
-                    Thread.sleep(1000);
+            } finally {
+                //stops the remaining workers when one of them failed
+                for(Future<Integer> future : futures){
+                    future.cancel(true);
                 }
+                //waits for the writer thread to write all the queued batches before finalising the record writer
+                queuedWriter.finalise();
+            }
+            if(queuedWriter.getError() != null){
+                logger.error("Download was not completely written: " + queuedWriter.getError().getMessage());
+                dd.setIncomplete(true);
             }
-            pool.shutdown();
-            rw.finalise();
             out.flush();
 
             long finish = System.currentTimeMillis();
@@ -729,19 +1259,167 @@ public class SearchDAOImpl implements SearchDAO {
 
         } catch (SolrServerException ex) {
             logger.error("Problem communicating with SOLR server while processing download. " + ex.getMessage(), ex);
+            dd.setIncomplete(true);
+        } finally {
+            downloadThrottle.downloadFinished();
         }
-        return uidStats;
+        return uidStats.toMap();
     }
 
-    private int processQueryResults( Map<String, Integer> uidStats, String[] fields, String[] qaFields, RecordWriter rw, QueryResponse qr, DownloadDetailsDTO dd, boolean checkLimit,AtomicInteger resultsCount) {
-        int count = 0;
+    /**
+     * Returns the thread pool shared by all the index downloads, creating it on first use.
+     */
+    private synchronized ExecutorService getDownloadExecutor(){
+        if(downloadExecutor == null){
+            downloadExecutor = Executors.newFixedThreadPool(downloadMaxThreads, newDaemonThreadFactory("download-worker-"));
+        }
+        return downloadExecutor;
+    }
+
+    /**
+     * Returns the thread pool that fetches SOLR pages ahead for the database downloads, creating it on first use.
+     * Each prefetch is tied to a running download so the pool is not bounded.
+     */
+    private synchronized ExecutorService getPrefetchExecutor(){
+        if(prefetchExecutor == null){
+            prefetchExecutor = Executors.newCachedThreadPool(newDaemonThreadFactory("download-prefetch-"));
+        }
+        return prefetchExecutor;
+    }
+
+    /**
+     * Returns the thread pool for the batch queries of the endemic species, creating it on first use.
+     */
+    private synchronized ExecutorService getEndemicExecutor(){
+        if(endemicExecutor == null){
+            endemicExecutor = Executors.newFixedThreadPool(maxMultiPartThreads, newDaemonThreadFactory("endemic-"));
+        }
+        return endemicExecutor;
+    }
+
+    /**
+     * Returns the thread pool shared by the species lookups of the facet downloads, creating it on first use.
+     */
+    private synchronized ExecutorService getSpeciesLookupExecutor(){
+        if(speciesLookupExecutor == null){
+            speciesLookupExecutor = Executors.newFixedThreadPool(speciesLookupMaxThreads, newDaemonThreadFactory("species-lookup-"));
+        }
+        return speciesLookupExecutor;
+    }
+
+    private synchronized SearchResultCache getSearchResultCache(){
+        if(searchResultCache == null){
+            searchResultCache = new SearchResultCache(searchCacheMaxSize, searchCacheMaxEntrySize);
+        }
+        return searchResultCache;
+    }
+
+    /**
+     * @return the version of the index the search results are cached for, null when they aren't cached
+     */
+    private Long getSearchResultCacheVersion(){
+        if(searchCacheMaxSize <= 0){
+            return null;
+        }
+        try {
+            return getIndexVersion();
+        } catch(Exception e){
+            logger.warn("Unable to get the index version, the search results will not be cached: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @see au.org.ala.biocache.dao.SearchDAO#getSearchResultCacheStats()
+     */
+    @Override
+    public Map<String, Object> getSearchResultCacheStats(){
+        return getSearchResultCache().getStats();
+    }
+
+    private synchronized ExecutorService getSpeciesGridIndexExecutor(){
+        if(speciesGridIndexExecutor == null){
+            speciesGridIndexExecutor = Executors.newSingleThreadExecutor(newDaemonThreadFactory("species-grid-index-"));
+        }
+        return speciesGridIndexExecutor;
+    }
+
+    /**
+     * Stops the thread pools when the application is shut down, interrupting the tasks that are still running.
+     */
+    @PreDestroy
+    public synchronized void shutdownExecutors(){
+        for(ExecutorService pool : new ExecutorService[]{endemicExecutor, downloadExecutor, prefetchExecutor, speciesLookupExecutor, speciesGridIndexExecutor}){
+            if(pool != null){
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    private ThreadFactory newDaemonThreadFactory(final String prefix){
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        return new ThreadFactory(){
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, prefix + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * @return the number of workers a download can run so that the shared pool is split evenly
+     * between the active downloads.
+     */
+    private int getDownloadWorkerCount(){
+        int activeDownloads = Math.max(1, downloadThrottle.getActiveDownloads());
+        return Math.max(1, Math.min(downloadThreadsPerDownload, downloadMaxThreads / activeDownloads));
+    }
+
+    /**
+     * @return the Arrow type of each download column based on the SOLR type of the field, the QA columns are booleans
+     */
+    private byte[] getColumnTypes(String[] fields, String[] qaFields) throws Exception {
+        getIndexedFields();
+        byte[] types = new byte[fields.length + qaFields.length];
+        for(int i = 0; i < fields.length; i++){
+            IndexFieldDTO field = indexFieldMap.get(fields[i]);
+            types[i] = ArrowRecordWriter.getColumnType(field != null ? field.getDataType() : null);
+        }
+        java.util.Arrays.fill(types, fields.length, types.length, ArrowRecordWriter.BOOLEAN);
+        return types;
+    }
+
+    /**
+     * Converts the supplied page of results into the records to be written. This is called concurrently
+     * by the download threads so it must not hold the record writer.
+     *
+     * @param batch The list the records are added to, when they are not encoded
+     * @param encoder The encoder the records are written to for a csv download, may be null
+     * @return the number of records in the batch
+     */
+    private int processQueryResults(UidCounts uidStats, String[] fields, String[] qaFields, QueryResponse qr, DownloadDetailsDTO dd, boolean checkLimit,AtomicInteger resultsCount, List<String[]> batch, CSVRecordEncoder encoder) {
+        int batchSize = 0;
         for (SolrDocument sd : qr.getResults()) {
-            if(sd.getFieldValue("data_resource_uid") != null &&(!checkLimit || (checkLimit && resultsCount.intValue()<MAX_DOWNLOAD_SIZE))){
+            if(sd.getFieldValue("data_resource_uid") != null){
 
-                //resultsCount++;
-                count++;
-                synchronized(resultsCount){
-                    resultsCount.incrementAndGet();
+                //reserve a place in the download before converting the record
+                if(resultsCount.incrementAndGet() > MAX_DOWNLOAD_SIZE && checkLimit){
+                    resultsCount.decrementAndGet();
+                    break;
+                }
+                batchSize++;
+
+                //increment the counters....
+                uidStats.increment(sd.getFieldValue("institution_uid"));
+                uidStats.increment(sd.getFieldValue("collection_uid"));
+                uidStats.increment(sd.getFieldValue("data_provider_uid"));
+                uidStats.increment(sd.getFieldValue("data_resource_uid"));
+
+                if(encoder != null){
+                    encoder.encode(sd);
+                    continue;
                 }
 
                 //add the record
@@ -768,17 +1446,11 @@ public class SearchDAOImpl implements SearchDAO {
                     values[fields.length + k] = Boolean.toString(assertions.contains(qaFields[k]));
                 }
 
-                rw.write(values);
-
-                //increment the counters....
-                incrementCount(uidStats, sd.getFieldValue("institution_uid"));
-                incrementCount(uidStats, sd.getFieldValue("collection_uid"));
-                incrementCount(uidStats, sd.getFieldValue("data_provider_uid"));
-                incrementCount(uidStats,  sd.getFieldValue("data_resource_uid"));
+                batch.add(values);
             }
         }
-        dd.updateCounts(count);
-        return count;
+        dd.updateCounts(batchSize);
+        return batchSize;
     }
 
     /**
@@ -788,6 +1460,7 @@ public class SearchDAOImpl implements SearchDAO {
         
         int resultsCount = 0;
         Map<String, Integer> uidStats = new HashMap<String, Integer>();
+        out = new ProgressOutputStream(out, dd.getProgress());
         //stores the remaining limit for data resources that have a download limit
         Map<String, Integer> downloadLimit = new HashMap<String,Integer>();
         
@@ -849,7 +1522,10 @@ public class SearchDAOImpl implements SearchDAO {
             String[] header = org.apache.commons.lang3.ArrayUtils.addAll(titles,qaTitles);
             //Create the Writer that will be used to format the records
             //construct correct RecordWriter based on the supplied fileType
-            final au.org.ala.biocache.RecordWriter rw = downloadParams.getFileType().equals("csv")? new CSVRecordWriter(out, header, downloadParams.getSep(), downloadParams.getEsc()) : new ShapeFileRecordWriter(downloadParams.getFile(), out, (String[])ArrayUtils.addAll(fields, qaFields));
+            //the values from the database are not typed so an Arrow download has string columns
+            final au.org.ala.biocache.RecordWriter rw = downloadParams.getFileType().equals("csv")? new CSVRecordWriter(out, header, downloadParams.getSep(), downloadParams.getEsc()) :
+                    downloadParams.getFileType().equals("arrow") ? new ArrowRecordWriter(out, header, null, downloadArrowBatchSize) :
+                    new ShapeFileRecordWriter(downloadParams.getFile(), out, (String[])ArrayUtils.addAll(fields, qaFields));
             
             if(rw instanceof ShapeFileRecordWriter){
                 dd.setHeaderMap(((ShapeFileRecordWriter)rw).getHeaderMappings());
@@ -881,6 +1557,7 @@ public class SearchDAOImpl implements SearchDAO {
 
         } catch (SolrServerException ex) {
             logger.error("Problem communicating with SOLR server. " + ex.getMessage(), ex);
+            dd.setIncomplete(true);
         }
         
         return uidStats;
@@ -901,54 +1578,177 @@ public class SearchDAOImpl implements SearchDAO {
      */
     private int downloadRecords(DownloadRequestParams downloadParams, au.org.ala.biocache.RecordWriter writer,
                 Map<String, Integer> downloadLimit,  Map<String, Integer> uidStats,
-                String[] fields, String[] qaFields,int resultsCount, String dataResource, boolean includeSensitive, DownloadDetailsDTO dd) throws Exception {
+                String[] fields, String[] qaFields,int resultsCount, String dataResource, boolean includeSensitive, final DownloadDetailsDTO dd) throws Exception {
         logger.info("download query: " + downloadParams.getQ());
-        SolrQuery solrQuery = initSolrQuery(downloadParams,false,null);
+        final SolrQuery solrQuery = initSolrQuery(downloadParams,false,null);
         solrQuery.setRows(MAX_DOWNLOAD_SIZE);
         formatSearchQuery(downloadParams);
         solrQuery.setQuery(buildSpatialQueryString(downloadParams));
         //Only the fields specified below will be included in the results from the SOLR Query
-        solrQuery.setFields("row_key", "institution_uid", "collection_uid", "data_resource_uid", "data_provider_uid");
+        solrQuery.setFields("row_key", "institution_uid", "collection_uid", "data_resource_uid", "data_provider_uid", PAGING_KEY_FIELD);
         
-        int startIndex = 0;
-        int pageSize = downloadBatchSize;
-        StringBuilder  sb = new StringBuilder(downloadParams.getFields());
-        if(downloadParams.getExtra().length()>0)
-            sb.append(",").append(downloadParams.getExtra());
-        StringBuilder qasb = new StringBuilder();
-        QueryResponse qr = runSolrQuery(solrQuery, downloadParams.getFq(), pageSize, startIndex, "_docid_", "asc");
+        final String[] filterQuery = downloadParams.getFq();
+        final int pageSize = downloadBatchSize;
+        //fetch the next pages from SOLR while the records for the current page are written from cassandra
+        PagePrefetcher<QueryResponse> pages = new PagePrefetcher<QueryResponse>(getPrefetchExecutor(), downloadPipelineDepth,
+                new PagePrefetcher.Pages<QueryResponse>(){
+            @Override
+            public QueryResponse first() throws Exception {
+                QueryResponse qr = runKeysetPagedQuery(solrQuery, filterQuery, pageSize, null, dd);
+                return qr.getResults().size() > 0 ? qr : null;
+            }
+
+            @Override
+            public QueryResponse next(QueryResponse previous) throws Exception {
+                String lastKey = getLastPagingKey(previous);
+                logger.debug("Last key: " + lastKey);
+                if (lastKey == null) {
+                    //unable to resume paging without a key
+                    return null;
+                }
+                //we have already set the Filter query the first time the query was constructed rerun with he same params resuming after the last key
+                QueryResponse qr = runKeysetPagedQuery(solrQuery, null, pageSize, lastKey, dd);
+                return qr.getResults().size() > 0 ? qr : null;
+            }
+        });
+
         List<String> uuids = new ArrayList<String>();
-        
-        while (qr.getResults().size() > 0 && resultsCount < MAX_DOWNLOAD_SIZE && shouldDownload(dataResource, downloadLimit, false)) {
-            logger.debug("Start index: " + startIndex);
-            //cycle through the results adding them to the list that will be sent to cassandra
-            for (SolrDocument sd : qr.getResults()) {
-                if(sd.getFieldValue("data_resource_uid") != null){
-                String druid = sd.getFieldValue("data_resource_uid").toString();
-                if(shouldDownload(druid,downloadLimit, true) && resultsCount < MAX_DOWNLOAD_SIZE){
-                    resultsCount++;
-                    uuids.add(sd.getFieldValue("row_key").toString());
-
-                    //increment the counters....
-                    incrementCount(uidStats, sd.getFieldValue("institution_uid"));
-                    incrementCount(uidStats, sd.getFieldValue("collection_uid"));
-                    incrementCount(uidStats, sd.getFieldValue("data_provider_uid"));
-                    incrementCount(uidStats, druid);
-                }}
-            }
-            //logger.debug("Downloading " + uuids.size() + " records");
-            au.org.ala.biocache.Store.writeToWriter(writer, uuids.toArray(new String[]{}), fields, qaFields, includeSensitive);
-            startIndex += pageSize;
-            uuids.clear();
-            dd.updateCounts(qr.getResults().size());
-            if (resultsCount < MAX_DOWNLOAD_SIZE) {
-                //we have already set the Filter query the first time the query was constructed rerun with he same params but different startIndex
-                qr = runSolrQuery(solrQuery, null, pageSize, startIndex, "_docid_", "asc");
+        try {
+            QueryResponse qr = pages.take();
+            while (qr != null && resultsCount < MAX_DOWNLOAD_SIZE && shouldDownload(dataResource, downloadLimit, false) && !dd.isCancelled()) {
+                //cycle through the results adding them to the list that will be sent to cassandra
+                for (SolrDocument sd : qr.getResults()) {
+                    if(sd.getFieldValue("data_resource_uid") != null){
+                    String druid = sd.getFieldValue("data_resource_uid").toString();
+                    if(shouldDownload(druid,downloadLimit, true) && resultsCount < MAX_DOWNLOAD_SIZE){
+                        resultsCount++;
+                        uuids.add(sd.getFieldValue("row_key").toString());
+
+                        //increment the counters....
+                        incrementCount(uidStats, sd.getFieldValue("institution_uid"));
+                        incrementCount(uidStats, sd.getFieldValue("collection_uid"));
+                        incrementCount(uidStats, sd.getFieldValue("data_provider_uid"));
+                        incrementCount(uidStats, druid);
+                    }}
+                }
+                //logger.debug("Downloading " + uuids.size() + " records");
+                au.org.ala.biocache.Store.writeToWriter(writer, uuids.toArray(new String[]{}), fields, qaFields, includeSensitive);
+                uuids.clear();
+                dd.updateCounts(qr.getResults().size());
+                qr = pages.take();
             }
+        } finally {
+            //stops fetching pages when the download has reached its limit
+            pages.cancel();
         }
         return resultsCount;
     }
     
+    /**
+     * Runs a page of a download query using keyset paging. The results are sorted on the unique
+     * key and each page resumes after the last key seen on the previous page, so Solr never has to
+     * collect and skip the earlier pages. This keeps the cost of a page constant regardless of how
+     * deep into the result set the download is (unlike start/rows paging).
+     *
+     * The first page adds the supplied filter queries to the query, subsequent pages are run on a
+     * copy of it with a range filter on the key. The first page can have a key when a download is
+     * resumed from a checkpoint.
+     *
+     * @param solrQuery The query to page through
+     * @param filterQuery The filter queries to add on the first page
+     * @param pageSize The number of records to return in the page
+     * @param lastKey The last key of the previous page, null for the first page
+     * @param dd The download that the time taken by the page is reported to
+     * @return
+     * @throws SolrServerException
+     */
+    private QueryResponse runKeysetPagedQuery(SolrQuery solrQuery, String[] filterQuery, int pageSize, String lastKey, DownloadDetailsDTO dd) throws SolrServerException {
+        String keyFilter = lastKey == null ? null : PAGING_KEY_FIELD + ":{" + ClientUtils.escapeQueryChars(lastKey) + " TO *]";
+        SolrQuery pageQuery = solrQuery;
+        if(keyFilter != null && filterQuery == null){
+            pageQuery = solrQuery.getCopy();
+            pageQuery.addFilterQuery(keyFilter);
+        } else if(keyFilter != null){
+            //first page of a resumed query, the filter queries must still end up on the query itself
+            solrQuery.addFilterQuery(keyFilter);
+        }
+        long start = System.currentTimeMillis();
+        QueryResponse qr;
+        try {
+            qr = runSolrQuery(pageQuery, filterQuery, pageSize, 0, PAGING_KEY_FIELD, "asc");
+        } finally {
+            if(pageQuery == solrQuery && keyFilter != null){
+                solrQuery.removeFilterQuery(keyFilter);
+            }
+        }
+        long latency = System.currentTimeMillis() - start;
+        downloadThrottle.recordLatency(latency);
+        dd.getProgress().addSolrTime(latency);
+        return qr;
+    }
+
+    /**
+     * Returns the paging key of the last record in the supplied response.
+     * @param qr
+     * @return
+     */
+    private String getLastPagingKey(QueryResponse qr){
+        SolrDocumentList results = qr.getResults();
+        if(results == null || results.isEmpty()){
+            return null;
+        }
+        Object key = results.get(results.size() - 1).getFieldValue(PAGING_KEY_FIELD);
+        return key == null ? null : key.toString();
+    }
+
+    /**
+     * Counts the download with a single facet query, the same one the index download uses to plan
+     * its split queries.
+     *
+     * @see au.org.ala.biocache.dao.SearchDAO#estimateDownload(au.org.ala.biocache.dto.DownloadRequestParams, boolean)
+     */
+    @Override
+    public DownloadEstimateDTO estimateDownload(DownloadRequestParams downloadParams, boolean fromIndex) throws Exception {
+        formatSearchQuery(downloadParams);
+        updateQueryContext(downloadParams);
+        SolrQuery solrQuery = new SolrQuery();
+        solrQuery.setQuery(buildSpatialQueryString(downloadParams));
+        solrQuery.setFacetMinCount(1);
+        solrQuery.setFacetLimit(-1);
+        solrQuery.addFacetField(SPLIT_FIELDS);
+        QueryResponse facetQuery = runSolrQuery(solrQuery, downloadParams.getFq(), 0, 0, "score", "asc");
+
+        DownloadEstimateDTO estimate = new DownloadEstimateDTO();
+        long total = facetQuery.getResults().getNumFound();
+        estimate.setTotalRecords(total);
+        estimate.setRecords(total);
+        Map<String, Map<String, Long>> splitFacetCounts = new LinkedHashMap<String, Map<String, Long>>();
+        for(FacetField facet : facetQuery.getFacetFields()){
+            Map<String, Long> counts = new LinkedHashMap<String, Long>();
+            if(facet.getValueCount() > 0){
+                for(FacetField.Count facetEntry : facet.getValues()){
+                    counts.put(facetEntry.getName(), facetEntry.getCount());
+                }
+            }
+            splitFacetCounts.put(facet.getName(), counts);
+            //only the downloads from the database apply the download limits
+            if(facet.getName().equals("data_resource_uid") && checkDownloadLimits && !fromIndex && facet.getValueCount() > 0){
+                Map<String, Integer> downloadLimit = new LinkedHashMap<String, Integer>();
+                initDownloadLimits(downloadLimit, facet);
+                for(Map.Entry<String, Integer> limit : downloadLimit.entrySet()){
+                    estimate.addDownloadLimit(limit.getKey(), counts.get(limit.getKey()), limit.getValue());
+                }
+            }
+        }
+        if(fromIndex){
+            estimate.setSplits(new DownloadSplitPlanner(downloadThreadsPerDownload * downloadSplitsPerThread)
+                    .plan(total, splitFacetCounts, getNumericFields(splitFacetCounts.keySet())).size());
+        }
+        //online downloads are truncated at the maximum download size
+        estimate.setOffline(estimate.getRecords() > MAX_DOWNLOAD_SIZE);
+        return estimate;
+    }
+
     /**
      * Indicates whether or not a records from the supplied data resource should be included 
      * in the download. (based on download limits)
@@ -2405,6 +3205,31 @@ public class SearchDAOImpl implements SearchDAO {
         return uidStats;
     }
 
+    /**
+     * Gets the version of the index. The version is checked at most once per indexVersionCheckInterval,
+     * without holding up the searches that use it, see {@link IndexVersion}.
+     *
+     * @see au.org.ala.biocache.dao.SearchDAO#getIndexVersion()
+     */
+    @Override
+    public long getIndexVersion() throws Exception {
+        return indexVersion.get(indexVersionCheckInterval);
+    }
+
+    /**
+     * Reads the version of the index using the LukeRequestHandler.
+     */
+    private long readIndexVersion() throws Exception {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set("qt", "/admin/luke");
+        params.set("numTerms", "0");
+        params.set("show", "index");
+        QueryResponse response = getServer().query(params, queryMethod);
+        Object index = response.getResponse().get("index");
+        Object version = index instanceof org.apache.solr.common.util.NamedList ? ((org.apache.solr.common.util.NamedList) index).get("version") : null;
+        return version == null ? 0 : Long.parseLong(version.toString());
+    }
+
     /**
      * Gets the details about the SOLR fields using the LukeRequestHandler:
      * See http://wiki.apache.org/solr/LukeRequestHandler  for more information
@@ -2802,19 +3627,5 @@ public class SearchDAOImpl implements SearchDAO {
     public void setMaxMultiPartThreads(Integer maxMultiPartThreads) {
       this.maxMultiPartThreads = maxMultiPartThreads;
     }
-
-    /**
-     * @return the throttle
-     */
-    public Integer getThrottle() {
-        return throttle;
-    }
-
-    /**
-     * @param throttle the throttle to set
-     */
-    public void setThrottle(Integer throttle) {
-        this.throttle = throttle;        
-    }
     
 }
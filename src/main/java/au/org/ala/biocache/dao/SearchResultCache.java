@@ -0,0 +1,267 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.dao;
+
+import au.org.ala.biocache.dto.FacetResultDTO;
+import au.org.ala.biocache.dto.FieldResultDTO;
+import au.org.ala.biocache.dto.OccurrenceIndex;
+import au.org.ala.biocache.dto.SearchResultDTO;
+import au.org.ala.biocache.dto.SpatialSearchRequestParams;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.springframework.beans.BeanUtils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A least recently used cache of search results, bounded by the estimated size of the results.
+ *
+ * The results are keyed by the normalised search parameters, i.e. with the defaults filled in and
+ * the filter queries sorted, so that requests that only differ in the order of their parameters
+ * share an entry. All the entries are dropped when the index has a newer version. A search that
+ * was performed on an older version of the index, e.g. one that started before the version was
+ * checked, isn't cached and doesn't get the cached results.
+ *
+ * The search parameters are updated by the search with the formatted query, so an entry keeps the
+ * formatted parameters and copies them back onto the parameters of a hit. The results are copied
+ * in and out of the cache as the callers add to them, e.g. the image metadata of the occurrences.
+ */
+class SearchResultCache {
+
+    private static final Logger logger = Logger.getLogger(SearchResultCache.class);
+
+    /** Separates the parts of a key */
+    private static final char SEPARATOR = '\u0001';
+    /** The estimated size in bytes of a result or occurrence before its values */
+    private static final int OVERHEAD = 256;
+
+    private final long maxSize;
+    private final long maxEntrySize;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long size = 0;
+    private long indexVersion = -1;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    private static class Entry {
+        final SpatialSearchRequestParams params;
+        final SearchResultDTO result;
+        final long size;
+
+        Entry(SpatialSearchRequestParams params, SearchResultDTO result, long size){
+            this.params = params;
+            this.result = result;
+            this.size = size;
+        }
+    }
+
+    /**
+     * @param maxSize the maximum estimated size in bytes of all the results
+     * @param maxEntrySize the maximum estimated size in bytes of a single result
+     */
+    SearchResultCache(long maxSize, long maxEntrySize){
+        this.maxSize = maxSize;
+        this.maxEntrySize = Math.min(maxSize, maxEntrySize);
+    }
+
+    /**
+     * Looks up the results of a search, updating the search parameters as the search would have.
+     *
+     * @return a copy of the results or null when they aren't cached for the version of the index
+     */
+    SearchResultDTO get(String key, long indexVersion, SpatialSearchRequestParams searchParams){
+        Entry entry;
+        synchronized(this){
+            entry = checkIndexVersion(indexVersion) ? entries.get(key) : null;
+            if(entry == null){
+                misses++;
+                return null;
+            }
+            hits++;
+        }
+        BeanUtils.copyProperties(entry.params, searchParams);
+        return copy(entry.result);
+    }
+
+    /**
+     * Caches the results of a search.
+     *
+     * @param searchParams the search parameters after the search
+     */
+    void put(String key, long indexVersion, SpatialSearchRequestParams searchParams, SearchResultDTO result){
+        long entrySize = estimateSize(result);
+        if(entrySize > maxEntrySize){
+            return;
+        }
+        SpatialSearchRequestParams params = new SpatialSearchRequestParams();
+        BeanUtils.copyProperties(searchParams, params);
+        SearchResultDTO cached = copy(result);
+        //the SOLR response is not needed once the results have been read from it
+        cached.setQr(null);
+        synchronized(this){
+            if(!checkIndexVersion(indexVersion)){
+                return;
+            }
+            Entry previous = entries.put(key, new Entry(params, cached, entrySize));
+            size += entrySize - (previous != null ? previous.size : 0);
+            Iterator<Entry> eldest = entries.values().iterator();
+            while(size > maxSize && eldest.hasNext()){
+                size -= eldest.next().size;
+                eldest.remove();
+                evictions++;
+            }
+        }
+    }
+
+    synchronized void clear(){
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * @return the number of entries, their estimated size, the hits, misses and hit ratio since the cache was created
+     */
+    synchronized Map<String, Object> getStats(){
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("entries", entries.size());
+        stats.put("size", size);
+        stats.put("maxSize", maxSize);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("hitRatio", hits + misses > 0 ? (double) hits / (hits + misses) : 0.0);
+        stats.put("evictions", evictions);
+        stats.put("indexVersion", indexVersion);
+        return stats;
+    }
+
+    /**
+     * Drops the entries when the index has a newer version.
+     *
+     * @return false when the version is older than the version of the entries
+     */
+    private boolean checkIndexVersion(long indexVersion){
+        if(indexVersion < this.indexVersion){
+            return false;
+        }
+        if(indexVersion > this.indexVersion){
+            if(!entries.isEmpty()){
+                logger.info("The index version changed from " + this.indexVersion + " to " + indexVersion
+                        + ", dropping " + entries.size() + " cached search results");
+            }
+            clear();
+            this.indexVersion = indexVersion;
+        }
+        return true;
+    }
+
+    /**
+     * @return the key of the search, the same for searches that only differ in parameters that don't change the results
+     */
+    static String getKey(SpatialSearchRequestParams params, boolean includeSensitive, Map<String, String[]> extraParams){
+        SpatialSearchRequestParams defaults = new SpatialSearchRequestParams();
+        StringBuilder key = new StringBuilder();
+        append(key, StringUtils.isBlank(params.getQ()) ? defaults.getQ() : params.getQ().trim());
+        //the filter queries are ANDed, their order doesn't matter
+        TreeSet<String> fqs = new TreeSet<String>();
+        if(params.getFq() != null){
+            for(String fq : params.getFq()){
+                if(StringUtils.isNotBlank(fq)){
+                    fqs.add(fq.trim());
+                }
+            }
+        }
+        append(key, StringUtils.join(fqs, SEPARATOR));
+        append(key, params.getQc());
+        //the facets are returned in the order they were asked for
+        append(key, params.getFacets() == null ? null : StringUtils.join(params.getFacets(), SEPARATOR));
+        append(key, params.getFacet());
+        append(key, params.getFl());
+        append(key, params.getStart() == null ? defaults.getStart() : params.getStart());
+        append(key, params.getPageSize() == null ? defaults.getPageSize() : params.getPageSize());
+        append(key, StringUtils.isBlank(params.getSort()) ? defaults.getSort() : params.getSort());
+        append(key, StringUtils.isBlank(params.getDir()) ? defaults.getDir() : params.getDir());
+        append(key, params.getFlimit() == null ? defaults.getFlimit() : params.getFlimit());
+        append(key, params.getFoffset() == null ? defaults.getFoffset() : params.getFoffset());
+        append(key, params.getFsort());
+        append(key, params.getFprefix());
+        append(key, params.getQId());
+        append(key, params.getWkt());
+        append(key, params.getLat());
+        append(key, params.getLon());
+        append(key, params.getRadius());
+        append(key, params.getGk());
+        append(key, includeSensitive);
+        if(extraParams != null){
+            for(Map.Entry<String, String[]> param : new TreeMap<String, String[]>(extraParams).entrySet()){
+                append(key, param.getKey() + "=" + StringUtils.join(param.getValue(), SEPARATOR));
+            }
+        }
+        return key.toString();
+    }
+
+    private static void append(StringBuilder key, Object value){
+        key.append(value == null ? "" : value.toString()).append(SEPARATOR);
+    }
+
+    /**
+     * @return the estimated size in bytes of the results, the occurrences and facet values are counted
+     */
+    static long estimateSize(SearchResultDTO result){
+        long estimate = OVERHEAD;
+        if(result.getOccurrences() != null){
+            for(OccurrenceIndex occurrence : result.getOccurrences()){
+                estimate += OVERHEAD;
+                for(Map.Entry<String, String> value : occurrence.toMap().entrySet()){
+                    estimate += 2 * (value.getKey().length() + value.getValue().length());
+                }
+            }
+        }
+        if(result.getFacetResults() != null){
+            for(FacetResultDTO facet : result.getFacetResults()){
+                if(facet.getFieldResult() != null){
+                    for(FieldResultDTO value : facet.getFieldResult()){
+                        estimate += 64 + 2 * StringUtils.length(value.getLabel()) + 2 * StringUtils.length(value.getFieldValue());
+                    }
+                }
+            }
+        }
+        return estimate;
+    }
+
+    /**
+     * @return a copy of the results with copies of the occurrences, the facets are shared as they aren't changed
+     */
+    private static SearchResultDTO copy(SearchResultDTO result){
+        SearchResultDTO copy = new SearchResultDTO();
+        BeanUtils.copyProperties(result, copy);
+        if(result.getOccurrences() != null){
+            List<OccurrenceIndex> occurrences = new ArrayList<OccurrenceIndex>(result.getOccurrences().size());
+            for(OccurrenceIndex occurrence : result.getOccurrences()){
+                OccurrenceIndex occurrenceCopy = BeanUtils.instantiateClass(occurrence.getClass());
+                BeanUtils.copyProperties(occurrence, occurrenceCopy);
+                occurrences.add(occurrenceCopy);
+            }
+            copy.setOccurrences(occurrences);
+        }
+        return copy;
+    }
+}
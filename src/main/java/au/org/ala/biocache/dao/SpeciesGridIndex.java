@@ -0,0 +1,322 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.dao;
+
+import au.org.ala.biocache.dto.FacetValues;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The grid cells each species of a facet occurs in, so that the species of an area and the species
+ * that are endemic to it can be worked out without querying SOLR.
+ *
+ * The cells are those of one of the point-x fields of the index, i.e. the occurrences rounded to
+ * the resolution of the grid. Only the cells that have occurrences are numbered, and each species
+ * holds the sorted numbers of the cells it occurs in along with its count in each of them. An area is
+ * a bitmap over the numbered cells, so that finding the species of an area is an intersection of
+ * each species' cells with the bitmap.
+ *
+ * A cell is in an area when its centre is, so the results are only as accurate as the resolution
+ * of the grid along the edge of the area.
+ *
+ * The records of a species that have no point are held in a cell of their own that is never in an
+ * area. A species with such records is not endemic to any area, as when the endemic species are
+ * queried from SOLR: the negated area query of the records outside the area matches the records
+ * without coordinates.
+ */
+class SpeciesGridIndex {
+
+    /** The mean radius of the earth in km */
+    private static final double EARTH_RADIUS = 6371.0;
+    /** The cell of the records without a point, after the cells of the grid */
+    private static final int NO_POINT = Integer.MAX_VALUE;
+
+    private final double resolution;
+    private final int columns;
+    /** The ids of the cells that have occurrences, sorted */
+    private final int[] cells;
+    /** The species, in the order they were added */
+    private final String[] species;
+    /** The positions in cells of the cells each species occurs in, sorted */
+    private final int[][] speciesCells;
+    /** The counts of each species in each of its cells */
+    private final int[][] speciesCounts;
+
+    /**
+     * Tests whether a cell is in an area.
+     */
+    interface Area {
+        boolean contains(double lat, double lng);
+    }
+
+    private SpeciesGridIndex(double resolution, int[] cells, String[] species, int[][] speciesCells, int[][] speciesCounts){
+        this.resolution = resolution;
+        this.columns = getColumns(resolution);
+        this.cells = cells;
+        this.species = species;
+        this.speciesCells = speciesCells;
+        this.speciesCounts = speciesCounts;
+    }
+
+    double getResolution(){
+        return resolution;
+    }
+
+    int getSpeciesCount(){
+        return species.length;
+    }
+
+    /**
+     * @return the number of cells with occurrences, not counting the records without a point
+     */
+    int getCellCount(){
+        return cells.length > 0 && cells[cells.length - 1] == NO_POINT ? cells.length - 1 : cells.length;
+    }
+
+    /**
+     * Finds the cells with occurrences whose centres are in the area.
+     *
+     * @return a bitmap of the positions of the cells in the index
+     */
+    BitSet getCells(double minLat, double minLng, double maxLat, double maxLng, Area area){
+        BitSet inArea = new BitSet(cells.length);
+        int minRow = Math.max(0, (int) Math.ceil((minLat + 90) / resolution - 0.5));
+        int maxRow = Math.min(getRow(90), (int) Math.floor((maxLat + 90) / resolution + 0.5));
+        int minCol = Math.max(0, (int) Math.ceil((minLng + 180) / resolution - 0.5));
+        int maxCol = Math.min(columns - 1, (int) Math.floor((maxLng + 180) / resolution + 0.5));
+        for(int row = minRow; row <= maxRow; row++){
+            int first = Arrays.binarySearch(cells, row * columns + minCol);
+            for(int i = first < 0 ? -first - 1 : first; i < cells.length && cells[i] <= row * columns + maxCol; i++){
+                int col = cells[i] % columns;
+                if(area.contains(row * resolution - 90, col * resolution - 180)){
+                    inArea.set(i);
+                }
+            }
+        }
+        return inArea;
+    }
+
+    /**
+     * Finds the cells with occurrences whose centres are within the radius of the point.
+     *
+     * @param radius the radius in km
+     */
+    BitSet getCellsWithin(final double lat, final double lng, final double radius){
+        double latDelta = Math.toDegrees(radius / EARTH_RADIUS);
+        double minLat = lat - latDelta, maxLat = lat + latDelta;
+        double minLng = -180, maxLng = 180;
+        double cosLat = Math.min(Math.cos(Math.toRadians(minLat)), Math.cos(Math.toRadians(maxLat)));
+        //the whole of the rows are tested when the circle covers a pole or crosses the date line
+        if(minLat > -90 && maxLat < 90 && cosLat > 0){
+            double lngDelta = latDelta / cosLat;
+            if(lng - lngDelta > -180 && lng + lngDelta < 180){
+                minLng = lng - lngDelta;
+                maxLng = lng + lngDelta;
+            }
+        }
+        return getCells(minLat, minLng, maxLat, maxLng, new Area(){
+            @Override
+            public boolean contains(double cellLat, double cellLng) {
+                return distance(lat, lng, cellLat, cellLng) <= radius;
+            }
+        });
+    }
+
+    /**
+     * @return the species that occur in the cells with their counts in them, in the order they were added
+     */
+    FacetValues getSpeciesIn(BitSet area){
+        FacetValues values = new FacetValues();
+        for(int s = 0; s < species.length; s++){
+            long count = 0;
+            int[] occurs = speciesCells[s];
+            for(int c = 0; c < occurs.length; c++){
+                if(area.get(occurs[c])){
+                    count += speciesCounts[s][c];
+                }
+            }
+            if(count > 0){
+                values.add(species[s], count);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return the species that only occur in the cells with their counts, in the order they were added
+     */
+    FacetValues getEndemicTo(BitSet area){
+        FacetValues values = new FacetValues();
+        for(int s = 0; s < species.length; s++){
+            long count = 0;
+            int[] occurs = speciesCells[s];
+            for(int c = 0; c < occurs.length && count >= 0; c++){
+                count = area.get(occurs[c]) ? count + speciesCounts[s][c] : -1;
+            }
+            if(count > 0){
+                values.add(species[s], count);
+            }
+        }
+        return values;
+    }
+
+    private int getRow(double lat){
+        return (int) Math.round((lat + 90) / resolution);
+    }
+
+    private static int getColumns(double resolution){
+        return (int) Math.round(360 / resolution) + 1;
+    }
+
+    /**
+     * @return the great circle distance in km between the points
+     */
+    static double distance(double lat1, double lng1, double lat2, double lng2){
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLng = Math.toRadians(lng2 - lng1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLng / 2) * Math.sin(dLng / 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * Collects the cells of the species from the pivot of a species facet and a point facet.
+     */
+    static class Builder {
+
+        private final double resolution;
+        private final int columns;
+        private final Map<String, Integer> speciesIndex = new HashMap<String, Integer>();
+        private final List<String> species = new ArrayList<String>();
+        private final List<int[]> cells = new ArrayList<int[]>();
+        private final List<int[]> counts = new ArrayList<int[]>();
+        private final List<Integer> sizes = new ArrayList<Integer>();
+
+        /**
+         * @param resolution the resolution in degrees of the point field the cells come from
+         */
+        Builder(double resolution){
+            if(resolution <= 0 || (long) getColumns(resolution) * (Math.round(180 / resolution) + 1) > Integer.MAX_VALUE){
+                throw new IllegalArgumentException("Unsupported grid resolution " + resolution);
+            }
+            this.resolution = resolution;
+            this.columns = getColumns(resolution);
+        }
+
+        /**
+         * Adds the count of a species in a cell.
+         *
+         * @param point the value of the point field, "lat,lng"
+         */
+        void add(String name, String point, long count){
+            int separator = point.indexOf(',');
+            if(separator < 0){
+                throw new IllegalArgumentException("Invalid point " + point);
+            }
+            double lat = Double.parseDouble(point.substring(0, separator).trim());
+            double lng = Double.parseDouble(point.substring(separator + 1).trim());
+            if(lat < -90 || lat > 90 || lng < -180 || lng > 180){
+                throw new IllegalArgumentException("Invalid point " + point);
+            }
+            add(name, (int) Math.round((lat + 90) / resolution) * columns + (int) Math.round((lng + 180) / resolution), count);
+        }
+
+        /**
+         * Adds the count of the records of a species that have no point.
+         */
+        void addWithoutPoint(String name, long count){
+            add(name, NO_POINT, count);
+        }
+
+        private void add(String name, int cell, long count){
+            Integer s = speciesIndex.get(name);
+            if(s == null){
+                s = species.size();
+                speciesIndex.put(name, s);
+                species.add(name);
+                cells.add(new int[4]);
+                counts.add(new int[4]);
+                sizes.add(0);
+            }
+            int size = sizes.get(s);
+            if(size == cells.get(s).length){
+                cells.set(s, Arrays.copyOf(cells.get(s), size * 2));
+                counts.set(s, Arrays.copyOf(counts.get(s), size * 2));
+            }
+            cells.get(s)[size] = cell;
+            counts.get(s)[size] = (int) Math.min(Integer.MAX_VALUE, count);
+            sizes.set(s, size + 1);
+        }
+
+        SpeciesGridIndex build(){
+            //number the cells that have occurrences
+            BitSet occupied = new BitSet();
+            boolean withoutPoint = false;
+            for(int s = 0; s < species.size(); s++){
+                int[] speciesCells = cells.get(s);
+                for(int c = 0; c < sizes.get(s); c++){
+                    if(speciesCells[c] == NO_POINT){
+                        withoutPoint = true;
+                    } else {
+                        occupied.set(speciesCells[c]);
+                    }
+                }
+            }
+            int[] allCells = new int[occupied.cardinality() + (withoutPoint ? 1 : 0)];
+            for(int cell = occupied.nextSetBit(0), i = 0; cell >= 0; cell = occupied.nextSetBit(cell + 1), i++){
+                allCells[i] = cell;
+            }
+            if(withoutPoint){
+                allCells[allCells.length - 1] = NO_POINT;
+            }
+
+            int[][] speciesCells = new int[species.size()][];
+            int[][] speciesCounts = new int[species.size()][];
+            for(int s = 0; s < species.size(); s++){
+                int size = sizes.get(s);
+                long[] sorted = new long[size];
+                for(int c = 0; c < size; c++){
+                    sorted[c] = ((long) Arrays.binarySearch(allCells, cells.get(s)[c]) << 32) | (counts.get(s)[c] & 0xffffffffL);
+                }
+                Arrays.sort(sorted);
+                //the counts of a cell added more than once are merged
+                int[] positions = new int[size];
+                int[] cellCounts = new int[size];
+                int distinct = 0;
+                for(int c = 0; c < size; c++){
+                    int position = (int) (sorted[c] >>> 32);
+                    int count = (int) sorted[c];
+                    if(distinct > 0 && positions[distinct - 1] == position){
+                        cellCounts[distinct - 1] = (int) Math.min(Integer.MAX_VALUE, (long) cellCounts[distinct - 1] + count);
+                    } else {
+                        positions[distinct] = position;
+                        cellCounts[distinct++] = count;
+                    }
+                }
+                speciesCells[s] = Arrays.copyOf(positions, distinct);
+                speciesCounts[s] = Arrays.copyOf(cellCounts, distinct);
+                //frees the cells of the species as it goes
+                cells.set(s, null);
+                counts.set(s, null);
+            }
+            return new SpeciesGridIndex(resolution, allCells, species.toArray(new String[species.size()]), speciesCells, speciesCounts);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.dao;
+
+import au.org.ala.biocache.RecordWriter;
+import au.org.ala.biocache.service.SpeciesLookupService;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Looks up the species details of the guids of a facet download in concurrent batches, writing the
+ * rows in the order the guids were added.
+ *
+ * The guids are batched as they are added and each batch is looked up on the executor while the next
+ * facet page is fetched. The rows of the batches at the head of the queue are written as soon as they
+ * are done. Adding a guid only blocks when the maximum number of batches are in flight, in which case
+ * the oldest batch is waited for and written.
+ *
+ * The batch size adapts to the latency of the lookups: it is doubled while batches come back in well
+ * under the target latency and halved when they take longer than it.
+ */
+class SpeciesLookupPipeline {
+
+    private static final Logger logger = Logger.getLogger(SpeciesLookupPipeline.class);
+
+    static final int MIN_BATCH_SIZE = 30;
+    static final int MAX_BATCH_SIZE = 1000;
+    /** The time (ms) a batch lookup should take */
+    static final long TARGET_LATENCY = 2000;
+
+    private final SpeciesLookupService speciesLookupService;
+    private final ExecutorService executor;
+    private final int maxInFlight;
+    private final boolean includeCount;
+    private final boolean includeSynonyms;
+    private final RecordWriter writer;
+
+    /** The lookups that have been submitted, in the order of their guids */
+    private final LinkedList<Future<List<String[]>>> inFlight = new LinkedList<Future<List<String[]>>>();
+    private List<String> guids = new ArrayList<String>();
+    private List<Long> counts = new ArrayList<Long>();
+    private volatile int batchSize = MIN_BATCH_SIZE;
+
+    /**
+     * @param maxInFlight The maximum number of batches being looked up at once
+     */
+    SpeciesLookupPipeline(SpeciesLookupService speciesLookupService, ExecutorService executor, int maxInFlight,
+                          boolean includeCount, boolean includeSynonyms, RecordWriter writer){
+        this.speciesLookupService = speciesLookupService;
+        this.executor = executor;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.includeCount = includeCount;
+        this.includeSynonyms = includeSynonyms;
+        this.writer = writer;
+    }
+
+    /**
+     * Adds a guid to be looked up, writing the rows of any batches that are done.
+     */
+    void add(String guid, long count) throws Exception {
+        guids.add(guid);
+        counts.add(count);
+        if(guids.size() >= batchSize){
+            submit();
+        }
+        writeCompleted();
+    }
+
+    /**
+     * Looks up the remaining guids and writes the rows of all the batches.
+     */
+    void finish() throws Exception {
+        submit();
+        while(!inFlight.isEmpty()){
+            writeNext();
+        }
+    }
+
+    /**
+     * Cancels the lookups that are still in flight, called when the download fails.
+     */
+    void cancel(){
+        for(Future<List<String[]>> lookup : inFlight){
+            lookup.cancel(true);
+        }
+        inFlight.clear();
+    }
+
+    int getBatchSize(){
+        return batchSize;
+    }
+
+    private void submit() throws Exception {
+        if(guids.isEmpty()){
+            return;
+        }
+        while(inFlight.size() >= maxInFlight){
+            writeNext();
+        }
+        final List<String> batchGuids = guids;
+        final List<Long> batchCounts = counts;
+        guids = new ArrayList<String>();
+        counts = new ArrayList<Long>();
+        inFlight.add(executor.submit(new Callable<List<String[]>>(){
+            @Override
+            public List<String[]> call() throws Exception {
+                long start = System.currentTimeMillis();
+                List<String[]> rows = speciesLookupService.getSpeciesDetails(batchGuids, batchCounts, includeCount, includeSynonyms);
+                adapt(batchGuids.size(), System.currentTimeMillis() - start);
+                return rows;
+            }
+        }));
+    }
+
+    private void writeCompleted() throws Exception {
+        while(!inFlight.isEmpty() && inFlight.getFirst().isDone()){
+            writeNext();
+        }
+    }
+
+    /**
+     * Waits for the oldest batch and writes its rows.
+     */
+    private void writeNext() throws Exception {
+        List<String[]> rows;
+        try {
+            rows = inFlight.removeFirst().get();
+        } catch(ExecutionException e){
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+        for(String[] row : rows){
+            writer.write(row);
+        }
+    }
+
+    private synchronized void adapt(int size, long latency){
+        //only a full batch says anything about the batch size
+        if(size < batchSize){
+            return;
+        }
+        if(latency < TARGET_LATENCY / 2 && batchSize < MAX_BATCH_SIZE){
+            batchSize = Math.min(MAX_BATCH_SIZE, batchSize * 2);
+            logger.debug("Increased the species lookup batch size to " + batchSize + " after " + latency + "ms");
+        } else if(latency > TARGET_LATENCY && batchSize > MIN_BATCH_SIZE){
+            batchSize = Math.max(MIN_BATCH_SIZE, batchSize / 2);
+            logger.debug("Decreased the species lookup batch size to " + batchSize + " after " + latency + "ms");
+        }
+    }
+}
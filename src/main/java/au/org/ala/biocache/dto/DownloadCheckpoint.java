@@ -0,0 +1,113 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.dto;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The progress of an offline download that has been written to its staging file. Used to
+ * resume the download after a restart.
+ *
+ * A checkpoint is not modified once it has been set on the download, a new checkpoint
+ * is created each time the progress is saved.
+ */
+public class DownloadCheckpoint {
+
+    /** The length of the staging file when the checkpoint was taken */
+    private long position = 0;
+    /** The number of records in the staging file */
+    private long records = 0;
+    /** The split queries of the download, the records are split the same way when the download resumes */
+    private List<String> splits = null;
+    /** The last paging key written for each split query that has been started */
+    private Map<String, String> lastKeys = new HashMap<String, String>();
+    /** The split queries that have been completely written */
+    private Set<String> completedSplits = new HashSet<String>();
+    /** The record counts for each uid in the staging file */
+    private Map<String, Integer> uidStats = new HashMap<String, Integer>();
+
+    /**
+     * Default constructor necessary for Jackson to create an object from the JSON.
+     */
+    public DownloadCheckpoint(){}
+
+    public DownloadCheckpoint(long position, long records, List<String> splits, Map<String, String> lastKeys, Set<String> completedSplits, Map<String, Integer> uidStats){
+        this.position = position;
+        this.records = records;
+        this.splits = splits != null ? new ArrayList<String>(splits) : null;
+        this.lastKeys = new HashMap<String, String>(lastKeys);
+        this.completedSplits = new HashSet<String>(completedSplits);
+        this.uidStats = new HashMap<String, Integer>(uidStats);
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public void setPosition(long position) {
+        this.position = position;
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    public void setRecords(long records) {
+        this.records = records;
+    }
+
+    public List<String> getSplits() {
+        return splits;
+    }
+
+    public void setSplits(List<String> splits) {
+        this.splits = splits;
+    }
+
+    public Map<String, String> getLastKeys() {
+        return lastKeys;
+    }
+
+    public void setLastKeys(Map<String, String> lastKeys) {
+        this.lastKeys = lastKeys;
+    }
+
+    public Set<String> getCompletedSplits() {
+        return completedSplits;
+    }
+
+    public void setCompletedSplits(Set<String> completedSplits) {
+        this.completedSplits = completedSplits;
+    }
+
+    public Map<String, Integer> getUidStats() {
+        return uidStats;
+    }
+
+    public void setUidStats(Map<String, Integer> uidStats) {
+        this.uidStats = uidStats;
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadCheckpoint [position=" + position + ", records=" + records
+                + ", completedSplits=" + completedSplits + ", lastKeys=" + lastKeys + "]";
+    }
+}
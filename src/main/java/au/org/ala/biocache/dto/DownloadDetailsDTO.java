@@ -18,6 +18,7 @@ import org.codehaus.jackson.annotate.JsonIgnore;
 
 import java.util.Date;
 import java.util.Map;
+import java.util.UUID;
 
 /**
  * Stores the details of a download.  Will allow for monitoring of downloads
@@ -26,6 +27,7 @@ import java.util.Map;
  */
 public class DownloadDetailsDTO {
 
+    private String id = UUID.randomUUID().toString();
     private DownloadType downloadType;
     private Date startDate;
     private Date lastUpdate;
@@ -38,6 +40,10 @@ public class DownloadDetailsDTO {
     private String fileLocation;
     private boolean includeSensitive = false;
     private Map<String,String> headerMap = null;
+    private volatile DownloadCheckpoint checkpoint = null;
+    private volatile boolean incomplete = false;
+    private volatile boolean cancelled = false;
+    private final DownloadProgress progress = new DownloadProgress();
     
     /**
      * Default constructor necessary for Jackson to create an object from the JSON. 
@@ -58,6 +64,17 @@ public class DownloadDetailsDTO {
         email = requestParams.getEmail();
     }
     
+    /**
+     * @return the id used to refer to the download while it is active or queued
+     */
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
     public String getLastUpdate(){
         return lastUpdate == null ? null:lastUpdate.toString();
     }
@@ -109,9 +126,62 @@ public class DownloadDetailsDTO {
         this.downloadType = downloadType;
     }
     
-    public void updateCounts(int number){
+    public synchronized void updateCounts(int number){
         recordsDownloaded +=number;
         lastUpdate = new Date();
+        progress.addRecords(number);
+    }
+
+    /**
+     * @return the throughput of the download while it is active
+     */
+    @JsonIgnore
+    public DownloadProgress getProgress() {
+        return progress;
+    }
+
+    /**
+     * @return the records downloaded per second over the last 30 seconds
+     */
+    public long getRecordsPerSecond(){
+        return progress.getRecordsPerSecond();
+    }
+
+    /**
+     * @return the bytes written per second over the last 30 seconds
+     */
+    public long getBytesPerSecond(){
+        return progress.getBytesPerSecond();
+    }
+
+    public long getBytesWritten(){
+        return progress.getBytes();
+    }
+
+    /**
+     * @return the time (ms) that the download has spent waiting on SOLR
+     */
+    public long getSolrTime(){
+        return progress.getSolrTime();
+    }
+
+    /**
+     * @return the time (ms) that the download has spent writing its output
+     */
+    public long getWriteTime(){
+        return progress.getWriteTime();
+    }
+
+    /**
+     * @return the estimated time the download will complete, based on the current records per second. Null when it is not known.
+     */
+    public String getEstimatedCompletion(){
+        long rate = progress.getRecordsPerSecond();
+        if(rate <= 0 || totalRecords <= 0){
+            return null;
+        }
+        long remaining = Math.max(0, totalRecords - recordsDownloaded);
+        return new Date(System.currentTimeMillis() + remaining * 1000 / rate).toString();
     }
     
     public void setTotalRecords(long total){
@@ -198,6 +268,50 @@ public class DownloadDetailsDTO {
         this.headerMap = headerMap;
     }
 
+    /**
+     * @return the last saved progress of a resumable offline download, null when the download can't be resumed
+     */
+    public DownloadCheckpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * @param checkpoint the checkpoint to set
+     */
+    public void setCheckpoint(DownloadCheckpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * @return true when the download failed before all the records were written
+     */
+    @JsonIgnore
+    public boolean isIncomplete() {
+        return incomplete;
+    }
+
+    /**
+     * @param incomplete the incomplete to set
+     */
+    public void setIncomplete(boolean incomplete) {
+        this.incomplete = incomplete;
+    }
+
+    /**
+     * @return true when the download has been cancelled and should stop writing records
+     */
+    @JsonIgnore
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @param cancelled the cancelled to set
+     */
+    public void setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+    }
+
     /**
      * Encompasses the different types of downloads that can be performed.
      */ 
@@ -213,7 +327,8 @@ public class DownloadDetailsDTO {
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
-        builder.append("DownloadDetailsDTO [downloadType=")
+        builder.append("DownloadDetailsDTO [id=").append(id)
+                .append(", downloadType=")
                 .append(downloadType).append(", startDate=").append(startDate)
                 .append(", lastUpdate=").append(lastUpdate)
                 .append(", totalRecords=").append(totalRecords)
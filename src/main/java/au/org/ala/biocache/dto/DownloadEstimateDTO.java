@@ -0,0 +1,177 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.dto;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The estimated cost of a download, returned without performing the download.
+ */
+public class DownloadEstimateDTO {
+
+    /** The number of records that match the query */
+    protected long totalRecords = 0;
+    /** The number of records that would be downloaded once the download limits are applied */
+    protected long records = 0;
+    /** The download limits of the data resources that have more matching records than their limit */
+    protected Map<String, Integer> downloadLimits = new LinkedHashMap<String, Integer>();
+    /** The number of records of each limited data resource that would be left out of the download */
+    protected Map<String, Long> limitedRecords = new LinkedHashMap<String, Long>();
+    /** The number of split queries the download would be performed with */
+    protected int splits = 1;
+    protected long estimatedBytes = 0;
+    /** The estimated time (ms) the download would take */
+    protected long estimatedDuration = 0;
+    /** Whether the download is too large to be performed online */
+    protected boolean offline = false;
+
+    /**
+     * @return the totalRecords
+     */
+    public long getTotalRecords() {
+        return totalRecords;
+    }
+
+    /**
+     * @param totalRecords the totalRecords to set
+     */
+    public void setTotalRecords(long totalRecords) {
+        this.totalRecords = totalRecords;
+    }
+
+    /**
+     * @return the records
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * @param records the records to set
+     */
+    public void setRecords(long records) {
+        this.records = records;
+    }
+
+    /**
+     * @return the downloadLimits
+     */
+    public Map<String, Integer> getDownloadLimits() {
+        return downloadLimits;
+    }
+
+    /**
+     * @param downloadLimits the downloadLimits to set
+     */
+    public void setDownloadLimits(Map<String, Integer> downloadLimits) {
+        this.downloadLimits = downloadLimits;
+    }
+
+    /**
+     * @return the limitedRecords
+     */
+    public Map<String, Long> getLimitedRecords() {
+        return limitedRecords;
+    }
+
+    /**
+     * @param limitedRecords the limitedRecords to set
+     */
+    public void setLimitedRecords(Map<String, Long> limitedRecords) {
+        this.limitedRecords = limitedRecords;
+    }
+
+    /**
+     * Applies the download limit of a data resource, the records of the resource over the limit
+     * are left out of the download.
+     *
+     * @param uid the data resource
+     * @param count the number of records of the data resource that match the query
+     * @param limit the download limit of the data resource
+     */
+    public void addDownloadLimit(String uid, long count, int limit) {
+        long excluded = count - limit;
+        downloadLimits.put(uid, limit);
+        limitedRecords.put(uid, excluded);
+        records -= excluded;
+    }
+
+    /**
+     * @return the splits
+     */
+    public int getSplits() {
+        return splits;
+    }
+
+    /**
+     * @param splits the splits to set
+     */
+    public void setSplits(int splits) {
+        this.splits = splits;
+    }
+
+    /**
+     * @return the estimatedBytes
+     */
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    /**
+     * @param estimatedBytes the estimatedBytes to set
+     */
+    public void setEstimatedBytes(long estimatedBytes) {
+        this.estimatedBytes = estimatedBytes;
+    }
+
+    /**
+     * @return the estimatedDuration
+     */
+    public long getEstimatedDuration() {
+        return estimatedDuration;
+    }
+
+    /**
+     * @param estimatedDuration the estimatedDuration to set
+     */
+    public void setEstimatedDuration(long estimatedDuration) {
+        this.estimatedDuration = estimatedDuration;
+    }
+
+    /**
+     * @return the offline
+     */
+    public boolean isOffline() {
+        return offline;
+    }
+
+    /**
+     * @param offline the offline to set
+     */
+    public void setOffline(boolean offline) {
+        this.offline = offline;
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "DownloadEstimateDTO [totalRecords=" + totalRecords + ", records=" + records
+                + ", downloadLimits=" + downloadLimits + ", splits=" + splits + ", estimatedBytes=" + estimatedBytes
+                + ", estimatedDuration=" + estimatedDuration + ", offline=" + offline + "]";
+    }
+}
@@ -0,0 +1,128 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.dto;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The rolling throughput of an active download.
+ *
+ * The records and bytes written are sampled at most once a second into a ring of samples, the
+ * rates are measured between the newest sample and the oldest sample within the window. The time
+ * spent waiting on SOLR and writing to the output are totalled so that a slow download can be
+ * attributed to one or the other.
+ */
+public class DownloadProgress {
+
+    /** The time (ms) that the rates are measured over */
+    private static final long WINDOW = 30000;
+    private static final long SAMPLE_INTERVAL = 1000;
+    private static final int SAMPLES = (int) (WINDOW / SAMPLE_INTERVAL) + 1;
+
+    private final long[] sampleTimes = new long[SAMPLES];
+    private final long[] sampleRecords = new long[SAMPLES];
+    private final long[] sampleBytes = new long[SAMPLES];
+    private int newest = -1;
+    private int count = 0;
+
+    private long records = 0;
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong solrTime = new AtomicLong();
+    private final AtomicLong writeTime = new AtomicLong();
+
+    /**
+     * Records that the number of records have been downloaded.
+     */
+    public synchronized void addRecords(long number){
+        records += number;
+        sample(System.currentTimeMillis());
+    }
+
+    /**
+     * Records bytes written to the output and the time (ns) it took to write them.
+     */
+    public void addBytes(long number, long nanos){
+        bytes.addAndGet(number);
+        writeTime.addAndGet(nanos);
+    }
+
+    /**
+     * Records the time (ms) SOLR took to return a page of the download.
+     */
+    public void addSolrTime(long millis){
+        solrTime.addAndGet(millis);
+    }
+
+    /**
+     * @return the records per second over the last 30 seconds
+     */
+    public synchronized long getRecordsPerSecond(){
+        return getRate(sampleRecords, records);
+    }
+
+    /**
+     * @return the bytes per second over the last 30 seconds
+     */
+    public synchronized long getBytesPerSecond(){
+        return getRate(sampleBytes, bytes.get());
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return the total time (ms) spent waiting on SOLR
+     */
+    public long getSolrTime() {
+        return solrTime.get();
+    }
+
+    /**
+     * @return the total time (ms) spent writing the records to the output
+     */
+    public long getWriteTime() {
+        return writeTime.get() / 1000000;
+    }
+
+    private void sample(long now){
+        if(newest >= 0 && now - sampleTimes[newest] < SAMPLE_INTERVAL){
+            return;
+        }
+        newest = (newest + 1) % SAMPLES;
+        sampleTimes[newest] = now;
+        sampleRecords[newest] = records;
+        sampleBytes[newest] = bytes.get();
+        count = Math.min(count + 1, SAMPLES);
+    }
+
+    private long getRate(long[] values, long current){
+        if(count == 0){
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        //the oldest sample that is still within the window
+        int oldest = newest;
+        for(int i = 1; i < count; i++){
+            int index = (newest - i + SAMPLES) % SAMPLES;
+            if(now - sampleTimes[index] > WINDOW){
+                break;
+            }
+            oldest = index;
+        }
+        long elapsed = now - sampleTimes[oldest];
+        return elapsed <= 0 ? 0 : (current - values[oldest]) * 1000 / elapsed;
+    }
+}
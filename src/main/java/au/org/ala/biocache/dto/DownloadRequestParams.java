@@ -51,8 +51,8 @@ public class DownloadRequestParams extends SpatialSearchRequestParams {
     protected Integer reasonTypeId = null;    
     @LogType(type="source")
     protected Integer sourceTypeId = null;
-    //The file type for the download file."shp" or "csv"
-    @Pattern(regexp="(csv|shp)")
+    //The file type for the download file."shp", "csv" or "arrow" (Apache Arrow)
+    @Pattern(regexp="(csv|shp|arrow)")
     protected String fileType="csv";
 
     /**
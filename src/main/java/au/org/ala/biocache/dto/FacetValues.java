@@ -0,0 +1,103 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.dto;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The values of a single facet field and their counts, in the order they were returned by SOLR.
+ *
+ * The values and counts are held in arrays rather than as an object per value so that facets with
+ * hundreds of thousands of values, e.g. the taxa of a region, stay compact.
+ */
+public class FacetValues {
+
+    private String[] values;
+    private long[] counts;
+    private int size = 0;
+
+    public FacetValues(){
+        this(16);
+    }
+
+    /**
+     * @param capacity The number of values expected
+     */
+    public FacetValues(int capacity){
+        values = new String[Math.max(1, capacity)];
+        counts = new long[values.length];
+    }
+
+    public void add(String value, long count){
+        if(size == values.length){
+            int capacity = values.length * 2;
+            values = Arrays.copyOf(values, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+        }
+        values[size] = value;
+        counts[size] = count;
+        size++;
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public boolean isEmpty(){
+        return size == 0;
+    }
+
+    public String getValue(int index){
+        checkIndex(index);
+        return values[index];
+    }
+
+    public long getCount(int index){
+        checkIndex(index);
+        return counts[index];
+    }
+
+    /**
+     * @return a read only view of the values
+     */
+    public List<String> getValues(){
+        return Collections.unmodifiableList(Arrays.asList(values).subList(0, size));
+    }
+
+    /**
+     * @return the values and counts as field results
+     */
+    public List<FieldResultDTO> toFieldResults(){
+        List<FieldResultDTO> results = new ArrayList<FieldResultDTO>(size);
+        for(int i = 0; i < size; i++){
+            results.add(new FieldResultDTO(values[i], counts[i]));
+        }
+        return results;
+    }
+
+    private void checkIndex(int index){
+        if(index < 0 || index >= size){
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FacetValues [size=" + size + "]";
+    }
+}
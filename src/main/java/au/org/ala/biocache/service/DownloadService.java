@@ -17,25 +17,41 @@ package au.org.ala.biocache.service;
 import au.com.bytecode.opencsv.CSVWriter;
 import au.org.ala.biocache.dao.PersistentQueueDAO;
 import au.org.ala.biocache.dao.SearchDAO;
+import au.org.ala.biocache.dto.DownloadCheckpoint;
 import au.org.ala.biocache.dto.DownloadDetailsDTO;
 import au.org.ala.biocache.dto.DownloadDetailsDTO.DownloadType;
+import au.org.ala.biocache.dto.DownloadEstimateDTO;
 import au.org.ala.biocache.dto.DownloadRequestParams;
+import au.org.ala.biocache.dto.SpatialSearchRequestParams;
+import au.org.ala.biocache.util.CitationCache;
+import au.org.ala.biocache.util.DownloadCache;
+import au.org.ala.biocache.util.ParallelZipOutputStream;
 import org.ala.client.appender.RestLevel;
 import org.ala.client.model.LogEventVO;
 import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.apache.log4j.Logger;
+import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.support.AbstractMessageSource;
 import org.springframework.stereotype.Component;
-import org.springframework.web.client.RestOperations;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
 import java.util.zip.ZipOutputStream;
 
 /**
@@ -51,27 +67,76 @@ public class DownloadService {
     /** Number of threads to perform to offline downloads on can be configured. */
     @Value("${concurrent.downloads:1}")
     protected int concurrentDownloads = 1;
+    /** Number of additional threads that only perform the small offline downloads. */
+    @Value("${download.offline.fast.lane.threads:1}")
+    protected int fastLaneDownloads = 1;
+    /** The maximum number of records in an offline download that can run in the fast lane. */
+    @Value("${download.offline.fast.lane.records:50000}")
+    protected long fastLaneMaxRecords = 50000;
     @Inject
     protected PersistentQueueDAO persistentQueueDAO;
     @Inject 
     SearchDAO searchDAO;
     @Inject
-    private RestOperations restTemplate;
-    @Inject
     private org.codehaus.jackson.map.ObjectMapper objectMapper;
     @Inject
     private EmailService emailService;
     @Inject
     private AbstractMessageSource messageSource;
+    @Inject
+    private DownloadCache downloadCache;
+    @Inject
+    private CitationCache citationCache;
 
     //default value is supplied for the property below
     @Value("${webservices.root:http://localhost:8080/biocache-service}")
     protected String webservicesRoot;
 
+    /** The zip compression level (0-9, -1 for the default) for downloads from the index */
+    @Value("${download.compression.level.index:-1}")
+    protected int indexCompressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    /** The zip compression level (0-9, -1 for the default) for downloads from the database */
+    @Value("${download.compression.level.db:-1}")
+    protected int dbCompressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    /** The size of the buffer that collects the records before they are compressed */
+    @Value("${download.compression.buffer.size:65536}")
+    protected int compressionBufferSize = 65536;
+
+    /**
+     * The number of threads that compress the CSV downloads, 1 (the default) compresses them on the thread of the download.
+     * With more than 1 thread a CSV file larger than the part size is split into parts in the zip, data-0001.csv,
+     * data-0002.csv and so on, each with the header row.
+     */
+    @Value("${download.compression.threads:1}")
+    protected int compressionThreads = 1;
+
+    /** The size (bytes) of the records in a CSV download that are compressed together, see ParallelZipOutputStream */
+    @Value("${download.compression.part.size:8388608}")
+    protected int compressionPartSize = 8388608;
+
+    private ExecutorService compressionExecutor;
+
     //NC 20131018: Allow citations to be disabled via config (enabled by default)
     @Value("${citations.enabled:true}")
     protected Boolean citationsEnabled;
 
+    /** The size of a downloaded record (bytes) assumed until a download has been measured */
+    @Value("${download.estimate.bytes.per.record:250}")
+    protected double defaultBytesPerRecord = 250;
+
+    /** The records per second assumed until a download has been measured */
+    @Value("${download.estimate.records.per.second:5000}")
+    protected double defaultRecordsPerSecond = 5000;
+
+    /** Downloads estimated to take longer than this (ms) should be performed offline */
+    @Value("${download.estimate.offline.duration:300000}")
+    protected long offlineDuration = 300000;
+
+    private final Throughput indexThroughput = new Throughput();
+    private final Throughput dbThroughput = new Throughput();
+
     /** Stores the current list of downloads that are being performed. */
     private List<DownloadDetailsDTO> currentDownloads = Collections.synchronizedList(new ArrayList<DownloadDetailsDTO>());
 
@@ -81,9 +146,6 @@ public class DownloadService {
     @Value("${registry.url:http://collections.ala.org.au/ws}")
     protected String registryUrl;
 
-    @Value("${citations.url:http://collections.ala.org.au/ws/citations}")
-    protected String citationServiceUrl;
-
     @Value("${media.url:http://biocache.ala.org.au/biocache-media/}")
     public static String biocacheMediaUrl;
 
@@ -95,9 +157,23 @@ public class DownloadService {
         //create the threads that will be used to perform the downloads
         int i = 0;
         while(i < concurrentDownloads){
-            new Thread(new DownloadThread()).start();
+            new Thread(new DownloadThread(Long.MAX_VALUE)).start();
             i++;
         }
+        //small downloads are not held up behind the large ones
+        for(int j = 0; j < fastLaneDownloads; j++){
+            new Thread(new DownloadThread(fastLaneMaxRecords)).start();
+        }
+    }
+
+    /**
+     * Stops the compression threads when the application is shut down.
+     */
+    @PreDestroy
+    public synchronized void shutdownCompression(){
+        if(compressionExecutor != null){
+            compressionExecutor.shutdownNow();
+        }
     }
 
     /**
@@ -130,6 +206,73 @@ public class DownloadService {
         return currentDownloads;
     }
 
+    /**
+     * @return the active download with the supplied id, null when there isn't one
+     */
+    public DownloadDetailsDTO getCurrentDownload(String id){
+        synchronized(currentDownloads){
+            for(DownloadDetailsDTO dd : currentDownloads){
+                if(dd.getId().equals(id)){
+                    return dd;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Cancels an active or queued download. An active download stops after the page it is writing
+     * and its output is left incomplete. A queued download is removed from the queue whether or not
+     * it has started.
+     *
+     * @param id
+     * @return true when the download was found
+     */
+    public boolean cancelDownload(String id){
+        DownloadDetailsDTO dd = getCurrentDownload(id);
+        boolean queued = false;
+        List<DownloadDetailsDTO> queue = persistentQueueDAO.getAllDownloads();
+        synchronized(queue){
+            for(DownloadDetailsDTO queuedDownload : queue){
+                if(queuedDownload.getId().equals(id)){
+                    queued = true;
+                    if(dd == null){
+                        dd = queuedDownload;
+                    }
+                }
+            }
+        }
+        if(dd == null){
+            return false;
+        }
+        logger.info("Cancelling download: " + dd);
+        dd.setCancelled(true);
+        dd.setIncomplete(true);
+        if(queued){
+            //a download running on another node is cancelled when that node sees it has been removed
+            persistentQueueDAO.removeDownloadFromQueue(dd);
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the output of a cancelled offline download and takes it off the queue. The cancelled
+     * flag isn't persisted so a download left on the queue would be performed again after a restart.
+     *
+     * @param dd
+     * @param partialFile the file the download was being written to
+     */
+    void discardCancelledDownload(DownloadDetailsDTO dd, File partialFile){
+        FileUtils.deleteQuietly(partialFile);
+        if(persistentQueueDAO.isLeaseLost(dd)){
+            logger.warn("Offline download was taken over by another node: " + dd);
+        } else {
+            logger.info("Offline download was cancelled: " + dd);
+            FileUtils.deleteQuietly(new File(dd.getFileLocation() + ".part"));
+            persistentQueueDAO.removeDownloadFromQueue(dd);
+        }
+    }
+
     private void writeQueryToStream(DownloadDetailsDTO dd,DownloadRequestParams requestParams, String ip, OutputStream out, boolean includeSensitive, boolean fromIndex) throws Exception {
         writeQueryToStream(dd, requestParams, ip, out, includeSensitive, fromIndex, true);
     }
@@ -147,12 +290,80 @@ public class DownloadService {
      */
     private void writeQueryToStream(DownloadDetailsDTO dd,DownloadRequestParams requestParams, String ip, OutputStream out, boolean includeSensitive, boolean fromIndex, boolean limit) throws Exception {
 
-        String filename = requestParams.getFile();
         String originalParams = requestParams.toString();
+
+        //serve an identical download of the current index from its stored file
+        String cacheKey = getDownloadCacheKey(requestParams, includeSensitive, fromIndex, limit);
+        File cachedFile = cacheKey != null ? downloadCache.getFile(cacheKey) : null;
+        if(cachedFile != null){
+            logger.info("Serving the download from the stored file " + cachedFile.getAbsolutePath());
+            InputStream cachedIn = new FileInputStream(cachedFile);
+            try {
+                IOUtils.copyLarge(cachedIn, out);
+                out.flush();
+            } finally {
+                cachedIn.close();
+                unregisterDownload(dd);
+            }
+            logDownload(requestParams, originalParams, ip, downloadCache.getUidStats(cacheKey));
+            return;
+        }
+        //otherwise keep a copy of the download as it is written
+        File cacheFile = cacheKey != null ? downloadCache.createTempFile(cacheKey) : null;
+        OutputStream cacheOut = null;
+        boolean stored = false;
+        Map<String, Integer> uidStats;
+        try {
+            if(cacheFile != null){
+                cacheOut = new BufferedOutputStream(new FileOutputStream(cacheFile));
+                out = new TeeOutputStream(out, cacheOut);
+            }
+            uidStats = writeZipToStream(dd, requestParams, out, includeSensitive, fromIndex, limit);
+            if(cacheFile != null && !dd.isIncomplete()){
+                cacheOut.close();
+                downloadCache.store(cacheKey, cacheFile, uidStats);
+                stored = true;
+            }
+        } finally {
+            //a failed or incomplete download is not kept
+            IOUtils.closeQuietly(cacheOut);
+            if(cacheFile != null && !stored){
+                FileUtils.deleteQuietly(cacheFile);
+            }
+        }
+
+        logDownload(requestParams, originalParams, ip, uidStats);
+    }
+
+    /**
+     * Writes the zip of the records, readme and citations of the download.
+     *
+     * @return the record counts for each uid in the download
+     */
+    private Map<String, Integer> writeZipToStream(DownloadDetailsDTO dd, DownloadRequestParams requestParams, OutputStream out, boolean includeSensitive, boolean fromIndex, boolean limit) throws Exception {
+        //look up the citations for the sources of the download while the records are exported
+        Future<Void> citationLookup = citationsEnabled ? startCitationLookup(requestParams) : null;
+
+        //measure the download to estimate the ones that follow, a resumed download only took part of the time
+        long start = System.currentTimeMillis();
+        boolean resumed = dd.getCheckpoint() != null && dd.getCheckpoint().getRecords() > 0;
+        CountingOutputStream countingOut = new CountingOutputStream(out);
+
         //Use a zip output stream to include the data and citation together in the download
-        ZipOutputStream zop = new ZipOutputStream(out);
+        ZipOutputStream zop;
+        if(compressionThreads > 1 && "csv".equals(requestParams.getFileType())){
+            //the records are split into parts that are compressed on several threads
+            zop = new ParallelZipOutputStream(countingOut, getCompressionExecutor(), compressionThreads + 1,
+                    compressionPartSize, requestParams.getEsc());
+        } else {
+            zop = new ZipOutputStream(countingOut);
+        }
+        zop.setLevel(fromIndex ? indexCompressionLevel : dbCompressionLevel);
+        String filename = requestParams.getFile();
         String suffix = requestParams.getFileType().equals("shp") ? "zip" : requestParams.getFileType();
         zop.putNextEntry(new java.util.zip.ZipEntry(filename + "." +suffix));
+        //pass the records to the deflater in large blocks rather than one small write per field
+        BufferedOutputStream entryOut = new BufferedOutputStream(zop, compressionBufferSize);
         //put the facets
         if("all".equals(requestParams.getQa())){
             requestParams.setFacets(new String[]{"assertions", "data_resource_uid"});
@@ -161,15 +372,19 @@ public class DownloadService {
         }
         Map<String, Integer> uidStats = null;
         try {
-            if(fromIndex)
-                uidStats = searchDAO.writeResultsFromIndexToStream(requestParams, zop, includeSensitive, dd, limit);
+            if(fromIndex && dd.getCheckpoint() != null)
+                uidStats = writeResumableResultsToStream(dd, requestParams, entryOut, includeSensitive, limit);
+            else if(fromIndex)
+                uidStats = searchDAO.writeResultsFromIndexToStream(requestParams, entryOut, includeSensitive, dd, limit);
             else
-                uidStats = searchDAO.writeResultsToStream(requestParams, zop, 100, includeSensitive ,dd);
+                uidStats = searchDAO.writeResultsToStream(requestParams, entryOut, 100, includeSensitive ,dd);
         } catch (Exception e) {
             logger.error(e.getMessage(),e);
+            dd.setIncomplete(true);
         } finally {
             unregisterDownload(dd);
         }
+        entryOut.flush();
         zop.closeEntry();
         
         //add the Readme for the data field descriptions
@@ -192,6 +407,13 @@ public class DownloadService {
         if (uidStats != null &&!uidStats.isEmpty() && citationsEnabled) {
             //add the citations for the supplied uids
             zop.putNextEntry(new java.util.zip.ZipEntry("citation.csv"));
+            if(citationLookup != null){
+                try {
+                    citationLookup.get();
+                } catch (Exception e) {
+                    logger.warn("Unable to look up the citations during the export. " + e.getMessage());
+                }
+            }
             try {
                 getCitations(uidStats, zop, requestParams.getSep(), requestParams.getEsc());
             } catch (Exception e) {
@@ -203,7 +425,41 @@ public class DownloadService {
         }
         zop.flush();
         zop.close();
-        
+
+        if(!dd.isIncomplete() && !resumed){
+            (fromIndex ? indexThroughput : dbThroughput).add(dd.getRecordsDownloaded(), countingOut.getByteCount(),
+                    System.currentTimeMillis() - start);
+        }
+
+        return uidStats;
+    }
+
+    /**
+     * Estimates the records, size and duration of a download without performing it. The size and
+     * duration are based on the recently completed downloads of the same source.
+     *
+     * @param requestParams
+     * @param fromIndex
+     * @return
+     * @throws Exception
+     */
+    public DownloadEstimateDTO estimateDownload(DownloadRequestParams requestParams, boolean fromIndex) throws Exception {
+        DownloadEstimateDTO estimate = searchDAO.estimateDownload(requestParams, fromIndex);
+        Throughput throughput = fromIndex ? indexThroughput : dbThroughput;
+        double bytesPerRecord = throughput.getBytesPerRecord(defaultBytesPerRecord);
+        double recordsPerSecond = throughput.getRecordsPerSecond(defaultRecordsPerSecond);
+        estimate.setEstimatedBytes((long) (estimate.getRecords() * bytesPerRecord));
+        estimate.setEstimatedDuration((long) (estimate.getRecords() * 1000 / recordsPerSecond));
+        if(estimate.getEstimatedDuration() > offlineDuration){
+            estimate.setOffline(true);
+        }
+        return estimate;
+    }
+
+    /**
+     * Logs the download to the ala logger.
+     */
+    private void logDownload(DownloadRequestParams requestParams, String originalParams, String ip, Map<String, Integer> uidStats){
         //now construct the sourceUrl for the log event
         String sourceUrl = originalParams.contains("qid:")? webservicesRoot + "?"+ requestParams.toString(): webservicesRoot +"?"+ originalParams;
 
@@ -212,6 +468,62 @@ public class DownloadService {
         LogEventVO vo = new LogEventVO(1002,requestParams.getReasonTypeId(), requestParams.getSourceTypeId(), requestParams.getEmail(), requestParams.getReason(), ip,null, uidStats, sourceUrl);        
         logger.log(RestLevel.REMOTE, vo);
     }
+
+    /**
+     * @return the key of the stored file for the download, null when downloads are not being reused
+     */
+    private String getDownloadCacheKey(DownloadRequestParams requestParams, boolean includeSensitive, boolean fromIndex, boolean limit){
+        if(!downloadCache.isEnabled()){
+            return null;
+        }
+        try {
+            return downloadCache.getKey(requestParams, searchDAO.getIndexVersion(), includeSensitive, fromIndex, limit);
+        } catch(Exception e){
+            logger.warn("Unable to get the index version, the download will not be reused. " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Writes the records of a resumable offline download to a staging file next to the download, continuing
+     * from the checkpoint of the download, and then copies the staged records to the supplied stream.
+     */
+    private Map<String, Integer> writeResumableResultsToStream(DownloadDetailsDTO dd, DownloadRequestParams requestParams, OutputStream out, boolean includeSensitive, boolean limit) throws Exception {
+        File stagingFile = new File(dd.getFileLocation() + ".part");
+        if(stagingFile.length() < dd.getCheckpoint().getPosition()){
+            logger.warn("The staged records are missing for " + stagingFile.getAbsolutePath() + ", restarting the download.");
+            dd.setCheckpoint(new DownloadCheckpoint());
+        }
+        //remove any records written after the checkpoint
+        FileUtils.forceMkdir(stagingFile.getParentFile());
+        RandomAccessFile raf = new RandomAccessFile(stagingFile, "rw");
+        try {
+            raf.setLength(dd.getCheckpoint().getPosition());
+        } finally {
+            raf.close();
+        }
+
+        Map<String, Integer> uidStats = null;
+        OutputStream stagingOut = new BufferedOutputStream(new FileOutputStream(stagingFile, true));
+        try {
+            uidStats = searchDAO.writeResultsFromIndexToStream(requestParams, stagingOut, includeSensitive, dd, limit);
+        } finally {
+            stagingOut.close();
+        }
+        if(dd.isCancelled()){
+            //the staged records are kept for the node that took over the download
+            return uidStats;
+        }
+
+        InputStream stagingIn = new FileInputStream(stagingFile);
+        try {
+            IOUtils.copyLarge(stagingIn, out);
+        } finally {
+            stagingIn.close();
+        }
+        FileUtils.deleteQuietly(stagingFile);
+        return uidStats;
+    }
     
     public void writeQueryToStream(DownloadRequestParams requestParams, HttpServletResponse response, String ip, ServletOutputStream out, boolean includeSensitive, boolean fromIndex) throws Exception {
         String filename = requestParams.getFile();
@@ -243,8 +555,8 @@ public class DownloadService {
             }
 
             CSVWriter writer = new CSVWriter(new OutputStreamWriter(out), sep, '"',esc);
-            //Object[] citations = restfulClient.restPost(citationServiceUrl, "text/json", uidStats.keySet());
-            List<LinkedHashMap<String, Object>> entities = restTemplate.postForObject(citationServiceUrl, uidStats.keySet(), List.class);
+            //only the citations that are not cached are requested from the citation service
+            List<Map<String, Object>> entities = citationCache.getCitations(uidStats.keySet());
             if(entities.size()>0){
                 //i18n of the citation header
                 writer.writeNext(new String[]{messageSource.getMessage("citation.uid", null, "UID", null),
@@ -276,6 +588,39 @@ public class DownloadService {
         }
     }
 
+    /** @return the threads that compress the CSV downloads, created on first use */
+    private synchronized ExecutorService getCompressionExecutor(){
+        if(compressionExecutor == null){
+            compressionExecutor = Executors.newFixedThreadPool(compressionThreads, new ThreadFactory(){
+                private int count = 0;
+                @Override
+                public synchronized Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "download-compression-" + (++count));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return compressionExecutor;
+    }
+
+    /**
+     * Starts caching the citations for the sources of the download query.
+     */
+    private Future<Void> startCitationLookup(DownloadRequestParams requestParams){
+        //the download modifies its params while it runs so the lookup uses a copy
+        final SpatialSearchRequestParams sourceParams = new SpatialSearchRequestParams();
+        BeanUtils.copyProperties(requestParams, sourceParams);
+        sourceParams.setFq(requestParams.getFq() == null ? null : requestParams.getFq().clone());
+        return citationCache.submit(new Callable<Void>(){
+            @Override
+            public Void call() throws Exception {
+                citationCache.load(searchDAO.getSourcesForQuery(sourceParams).keySet());
+                return null;
+            }
+        });
+    }
+
     private String getOrElse(Map map, String key, String value){
         if(map.containsKey(key)){
             return map.get(key).toString();
@@ -284,6 +629,37 @@ public class DownloadService {
         }
     }
     
+    /**
+     * The moving average of the size and rate of the completed downloads.
+     */
+    static class Throughput {
+        /** The weight of the latest download in the averages */
+        private static final double WEIGHT = 0.2;
+        /** Smaller downloads are dominated by the time taken to start them */
+        private static final long MIN_RECORDS = 1000;
+
+        private double bytesPerRecord = -1;
+        private double recordsPerSecond = -1;
+
+        synchronized void add(long records, long bytes, long millis){
+            if(records < MIN_RECORDS){
+                return;
+            }
+            double size = (double) bytes / records;
+            double rate = records * 1000d / Math.max(1, millis);
+            bytesPerRecord = bytesPerRecord < 0 ? size : bytesPerRecord + WEIGHT * (size - bytesPerRecord);
+            recordsPerSecond = recordsPerSecond < 0 ? rate : recordsPerSecond + WEIGHT * (rate - recordsPerSecond);
+        }
+
+        synchronized double getBytesPerRecord(double defaultValue){
+            return bytesPerRecord < 0 ? defaultValue : bytesPerRecord;
+        }
+
+        synchronized double getRecordsPerSecond(double defaultValue){
+            return recordsPerSecond < 0 ? defaultValue : recordsPerSecond;
+        }
+    }
+
     /**
      * A thread responsible for creating a records dump offline.
      * 
@@ -292,29 +668,54 @@ public class DownloadService {
     private class DownloadThread implements Runnable {
         
         private DownloadDetailsDTO currentDownload = null;
+        /** The largest download that this thread will perform */
+        private final long maxRecords;
+
+        DownloadThread(long maxRecords){
+            this.maxRecords = maxRecords;
+        }
 
         @Override
         public void run() {
             while(true){
-                if(persistentQueueDAO.getTotalDownloads()==0){
+                currentDownload = persistentQueueDAO.getNextDownload(maxRecords);
+                if(currentDownload == null){
+                    //wait for a download that this thread can perform
                     try {
                         Thread.currentThread().sleep(10000);
                     } catch(InterruptedException e){
                         //I don't care that I have been interrupted.
                     }
                 }
-                currentDownload = persistentQueueDAO.getNextDownload();
                 if(currentDownload != null){
                     logger.info("Starting to download the offline request: " + currentDownload);
                     //we are now ready to start the download
                     //we need to create an output stream to the file system
+                    File partialFile = null;
                     try{
-                        FileOutputStream fos = FileUtils.openOutputStream(new File(currentDownload.getFileLocation()));
+                        //index downloads to CSV save their progress so they can be resumed after a restart
+                        if(currentDownload.getDownloadType() == DownloadType.RECORDS_INDEX && "csv".equals(currentDownload.getRequestParams().getFileType())
+                                && currentDownload.getCheckpoint() == null){
+                            currentDownload.setCheckpoint(new DownloadCheckpoint());
+                        }
+                        persistentQueueDAO.updateDownload(currentDownload);
+                        //the download is moved into place once it is complete so that a node that loses the
+                        //lease on the download doesn't overwrite the file of the node that took it over
+                        File downloadFile = new File(currentDownload.getFileLocation());
+                        FileUtils.forceMkdir(downloadFile.getParentFile());
+                        partialFile = File.createTempFile(downloadFile.getName(), ".tmp", downloadFile.getParentFile());
+                        FileOutputStream fos = new FileOutputStream(partialFile);
                         //register the download
                         currentDownloads.add(currentDownload);
                         writeQueryToStream(currentDownload, currentDownload.getRequestParams(),
                                 currentDownload.getIpAddress(), fos, currentDownload.getIncludeSensitive(), 
                                 currentDownload.getDownloadType() == DownloadType.RECORDS_INDEX, false);
+                        if(currentDownload.isCancelled()){
+                            discardCancelledDownload(currentDownload, partialFile);
+                            continue;
+                        }
+                        FileUtils.deleteQuietly(downloadFile);
+                        FileUtils.moveFile(partialFile, downloadFile);
                         //now that the download is complete email a link to the recipient.
                         String subject = messageSource.getMessage("offlineEmailSubject",null,"Occurrence Download Complete - "+currentDownload.getRequestParams().getFile(),null);
 
@@ -337,6 +738,7 @@ public class DownloadService {
 
                     } catch(Exception e){
                         logger.error("Error in offline download", e);
+                        FileUtils.deleteQuietly(partialFile);
                         //TODO maybe send an email to support saying that the offline email failed??
                     }
                 }
@@ -24,9 +24,14 @@ import org.springframework.stereotype.Component;
 import org.springframework.web.client.RestOperations;
 
 import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Implementation of SpeciesLookupService.java that calls the bie-service application
@@ -54,6 +59,23 @@ public class SpeciesLookupRestService implements SpeciesLookupService {
     @Inject
     private AbstractMessageSource messageSource; // use for i18n of the headers
 
+    /** The maximum number of species whose details are cached */
+    @Value("${service.bie.cache.size:100000}")
+    protected int cacheSize = 100000;
+
+    /** The time (ms) that the details of a species are cached for */
+    @Value("${service.bie.cache.ttl:86400000}")
+    protected long cacheTtl = 86400000;
+
+    /** The details of the species looked up by getSpeciesDetails, by guid, least recently used first */
+    private final Map<String, CachedSpecies> speciesCache = Collections.synchronizedMap(
+            new LinkedHashMap<String, CachedSpecies>(16, 0.75f, true){
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedSpecies> eldest) {
+                    return size() > cacheSize;
+                }
+            });
+
     private String[] baseHeader;
     private String[] countBaseHeader;
     private String[] synonymHeader;
@@ -174,22 +196,26 @@ public class SpeciesLookupRestService implements SpeciesLookupService {
         }
         return results;
     }
+    /**
+     * The details of the species are cached by guid, only the guids that aren't cached are looked up.
+     *
+     * @see SpeciesLookupService#getSpeciesDetails(java.util.List, java.util.List, boolean, boolean)
+     */
     @Override
     public List<String[]> getSpeciesDetails(List<String> guids,List<Long> counts, boolean includeCounts, boolean includeSynonyms){
         List<String[]> details= new  java.util.ArrayList<String[]>(guids.size());
-        List<Map<String,String>> values =getNameDetailsForGuids(guids);
-        Map<String,List<Map<String, String>>> synonyms = includeSynonyms? getSynonymDetailsForGuids(guids):new HashMap<String,List<Map<String,String>>>();
+        Map<String, CachedSpecies> species = lookupSpecies(guids, includeSynonyms);
         int size = includeSynonyms&&includeCounts?13:((includeCounts && !includeSynonyms)||(includeSynonyms && !includeCounts))?12:11;
-
+        int countIdx = includeSynonyms ? 12 : 11;
 
         for(int i =0 ;i<guids.size();i++){
-            int countIdx=11;
             String[] row = new String[size];
             //guid
             String guid = guids.get(i);
             row[0]=guid;
-            if(values!= null && synonyms != null){
-                Map<String,String> map = values.get(i);
+            CachedSpecies cached = species.get(guid);
+            if(cached != null){
+                Map<String,String> map = cached.details;
                 if(map!=null){
                     //scientific name
                     row[1]=map.get("nameComplete");
@@ -203,21 +229,8 @@ public class SpeciesLookupRestService implements SpeciesLookupService {
                     row[9]=map.get("genus");
                     row[10]=map.get("commonNameSingle");
                 }
-
                 if(includeSynonyms){
-                    //retrieve a list of the synonyms
-                    List<Map<String,String>> names =synonyms.get(guid);
-                    StringBuilder sb =new StringBuilder();
-                    for(Map<String,String> n :names){
-                        if(!guid.equals(n.get("guid"))){
-                            if(sb.length()>0){
-                                sb.append(",");
-                            }
-                            sb.append(n.get("name"));
-                        }
-                    }
-                    row[11] =sb.toString();
-                    countIdx=12;
+                    row[11] = cached.synonyms;
                 }
             }
             if(includeCounts){
@@ -226,10 +239,66 @@ public class SpeciesLookupRestService implements SpeciesLookupService {
             details.add(row);
         }
 
-
         return details;
     }
 
+    /**
+     * Looks up the details of the species that aren't cached, or whose details have expired, and
+     * caches them.
+     *
+     * @return the details of the species by guid, without the species that couldn't be looked up
+     */
+    private Map<String, CachedSpecies> lookupSpecies(List<String> guids, boolean includeSynonyms){
+        Map<String, CachedSpecies> species = new HashMap<String, CachedSpecies>();
+        Set<String> missing = new LinkedHashSet<String>();
+        long now = System.currentTimeMillis();
+        for(String guid : guids){
+            CachedSpecies cached = speciesCache.get(guid);
+            if(cached != null && now - cached.time < cacheTtl && (!includeSynonyms || cached.synonyms != null)){
+                species.put(guid, cached);
+            } else {
+                missing.add(guid);
+            }
+        }
+        if(missing.isEmpty()){
+            return species;
+        }
+
+        List<String> lookup = new ArrayList<String>(missing);
+        List<Map<String,String>> values = getNameDetailsForGuids(lookup);
+        Map<String,List<Map<String, String>>> synonyms = includeSynonyms ? getSynonymDetailsForGuids(lookup) : null;
+        //nothing is cached when a lookup fails so that it is tried again
+        if(values == null || (includeSynonyms && synonyms == null)){
+            return species;
+        }
+        for(int i = 0; i < lookup.size(); i++){
+            String guid = lookup.get(i);
+            Map<String, String> map = i < values.size() ? values.get(i) : null;
+            CachedSpecies cached = new CachedSpecies(map, includeSynonyms ? joinSynonyms(guid, synonyms.get(guid)) : null, now);
+            speciesCache.put(guid, cached);
+            species.put(guid, cached);
+        }
+        return species;
+    }
+
+    /**
+     * @return the names of the synonyms of the species, comma separated
+     */
+    private String joinSynonyms(String guid, List<Map<String, String>> names){
+        StringBuilder sb =new StringBuilder();
+        if(names != null){
+            for(Map<String,String> n :names){
+                if(!guid.equals(n.get("guid"))){
+                    if(sb.length()>0){
+                        sb.append(",");
+                    }
+                    sb.append(n.get("name"));
+                }
+            }
+        }
+        return sb.toString();
+    }
+
     @Override
     public String[] getHeaderDetails(String field,boolean includeCounts, boolean includeSynonyms){
         if(baseHeader == null){
@@ -267,4 +336,20 @@ public class SpeciesLookupRestService implements SpeciesLookupService {
         synonymHeader = (String[]) ArrayUtils.add(baseHeader,messageSource.getMessage("species.synonyms", null,"Synonyms", null));
         countSynonymHeader = (String[]) ArrayUtils.add(synonymHeader,messageSource.getMessage("species.count", null,"Number of Records", null));
     }
+
+    /**
+     * The details of a species looked up from the bie, with the time they were looked up.
+     */
+    private static class CachedSpecies {
+        final Map<String, String> details;
+        /** The synonyms, null when they weren't looked up */
+        final String synonyms;
+        final long time;
+
+        CachedSpecies(Map<String, String> details, String synonyms, long time){
+            this.details = details;
+            this.synonyms = synonyms;
+            this.time = time;
+        }
+    }
 }
@@ -57,6 +57,20 @@ public class AlaFileUtils {
             fOut.close();
         }
     } 
+
+    /**
+     * Zips the supplied directory straight into the output stream without creating a zip file.
+     * The output stream is left open.
+     *
+     * @param directoryPath The directory to zip
+     * @param out The stream to write the zip to
+     * @throws IOException
+     */
+    public static void createZip(String directoryPath, OutputStream out) throws IOException {
+        ZipArchiveOutputStream tOut = new ZipArchiveOutputStream(out);
+        addFileToZip(tOut, directoryPath, "");
+        tOut.finish();
+    }
     
     /**
      * Creates a zip entry for the path specified with a name built from the base passed in and the file/directory
@@ -0,0 +1,192 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestOperations;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Caches the citations of the institutions, collections, data providers and data resources from the
+ * collectory citation service.
+ *
+ * Only the uids that are not cached, or whose citation has expired, are requested from the service.
+ * A citation that is used after most of its TTL has passed is refreshed in the background so that
+ * frequently downloaded resources are not left waiting on the service. Uids that the service has no
+ * citation for are cached as well so they are not requested again for every download.
+ */
+@Component("citationCache")
+public class CitationCache {
+
+    private final static Logger logger = Logger.getLogger(CitationCache.class);
+
+    @Value("${citations.url:http://collections.ala.org.au/ws/citations}")
+    protected String citationServiceUrl;
+
+    /** The time (ms) that a citation is cached for */
+    @Value("${citations.cache.ttl:3600000}")
+    protected long ttl = 3600000;
+
+    /** The fraction of the TTL after which a citation that is used is refreshed in the background */
+    @Value("${citations.cache.refresh.ahead:0.75}")
+    protected double refreshAhead = 0.75;
+
+    @Inject
+    protected RestOperations restTemplate;
+
+    private final Map<String, CachedCitation> citations = new ConcurrentHashMap<String, CachedCitation>();
+    private final Set<String> refreshing = java.util.Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ExecutorService executor = Executors.newFixedThreadPool(2, new ThreadFactory(){
+        private int count = 0;
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "citation-lookup-" + (++count));
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Looks up the citations for the uids that are not cached.
+     */
+    public void load(Collection<String> uids){
+        fetch(getMissing(uids));
+    }
+
+    /**
+     * Starts a task on the lookup threads, used to find the uids of a download while its records are exported.
+     */
+    public <T> Future<T> submit(Callable<T> task){
+        return executor.submit(task);
+    }
+
+    /**
+     * Stops the lookup threads when the application is shut down, interrupting the lookups that are still running.
+     */
+    @PreDestroy
+    public void shutdown(){
+        executor.shutdownNow();
+    }
+
+    /**
+     * @param uids
+     * @return the citations for the uids that the service has a citation for, in the order of the uids
+     */
+    public List<Map<String, Object>> getCitations(Collection<String> uids){
+        load(uids);
+
+        List<Map<String, Object>> records = new ArrayList<Map<String, Object>>();
+        final Set<String> stale = new LinkedHashSet<String>();
+        long now = System.currentTimeMillis();
+        for(String uid : uids){
+            CachedCitation cached = citations.get(uid);
+            if(cached != null){
+                if(cached.record != null){
+                    records.add(cached.record);
+                }
+                if(now - cached.fetched > ttl * refreshAhead && refreshing.add(uid)){
+                    stale.add(uid);
+                }
+            }
+        }
+        if(!stale.isEmpty()){
+            executor.submit(new Runnable(){
+                @Override
+                public void run() {
+                    try {
+                        fetch(stale);
+                    } catch(RuntimeException e){
+                        logger.warn("Unable to refresh the citations for " + stale, e);
+                    } finally {
+                        refreshing.removeAll(stale);
+                    }
+                }
+            });
+        }
+        return records;
+    }
+
+    /**
+     * @return the uids that are not cached or have expired
+     */
+    private Set<String> getMissing(Collection<String> uids){
+        Set<String> missing = new LinkedHashSet<String>();
+        long now = System.currentTimeMillis();
+        for(String uid : uids){
+            CachedCitation cached = citations.get(uid);
+            if(cached == null || now - cached.fetched > ttl){
+                missing.add(uid);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Requests the citations for the uids from the citation service and caches them.
+     */
+    private void fetch(Set<String> uids){
+        if(uids.isEmpty()){
+            return;
+        }
+        logger.debug("Requesting " + uids.size() + " citations");
+        List<Map<String, Object>> entities = restTemplate.postForObject(citationServiceUrl, uids, List.class);
+        long now = System.currentTimeMillis();
+        Set<String> found = new LinkedHashSet<String>();
+        if(entities != null){
+            for(Map<String, Object> record : entities){
+                //ensure that the record is not null to prevent NPE on the "get"s
+                if(record != null && record.get("uid") != null){
+                    String uid = record.get("uid").toString();
+                    citations.put(uid, new CachedCitation(record, now));
+                    found.add(uid);
+                } else {
+                    logger.warn("A null record was returned from the collectory citation service: " + entities);
+                }
+            }
+        }
+        for(String uid : uids){
+            if(!found.contains(uid)){
+                citations.put(uid, new CachedCitation(null, now));
+            }
+        }
+    }
+
+    private static class CachedCitation {
+        /** The citation, null when the service doesn't have one for the uid */
+        final Map<String, Object> record;
+        final long fetched;
+
+        CachedCitation(Map<String, Object> record, long fetched){
+            this.record = record;
+            this.fetched = fetched;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import au.org.ala.biocache.dto.DownloadRequestParams;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores completed download files so that identical downloads can be served from disk.
+ *
+ * The files are stored under a hash of the normalised download parameters and the version of the
+ * index, so a change to the index never serves old records. Files expire after the TTL and the
+ * oldest files are removed when the cache is over its size limit.
+ */
+@Component("downloadCache")
+public class DownloadCache {
+
+    private final static Logger logger = Logger.getLogger(DownloadCache.class);
+
+    private static final String ZIP_SUFFIX = ".zip";
+    private static final String STATS_SUFFIX = ".json";
+
+    /** Whether or not completed downloads are reused */
+    @Value("${download.cache.enabled:true}")
+    protected boolean enabled = true;
+
+    /** The directory that the download files are stored in */
+    @Value("${download.cache.dir:/data/cache/download-files}")
+    protected String cacheDirectory = "/data/cache/download-files";
+
+    /** The time (ms) that a download file is reused for */
+    @Value("${download.cache.ttl:21600000}")
+    protected long ttl = 21600000;
+
+    /** The maximum total size (bytes) of the stored download files */
+    @Value("${download.cache.max.size:10737418240}")
+    protected long maxSize = 10737418240L;
+
+    private final ObjectMapper jsonMapper = new ObjectMapper();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Builds the key for the download. Parameters that don't change the content of the download,
+     * e.g. the email and reason, are ignored and the filter queries are sorted.
+     *
+     * @param params The download parameters
+     * @param indexVersion The version of the index being downloaded
+     * @param includeSensitive
+     * @param fromIndex
+     * @param limit
+     * @return a hex hash that identifies the download file
+     */
+    public String getKey(DownloadRequestParams params, long indexVersion, boolean includeSensitive, boolean fromIndex, boolean limit) {
+        String[] fqs = params.getFq() == null ? new String[0] : params.getFq().clone();
+        Arrays.sort(fqs);
+        StringBuilder sb = new StringBuilder();
+        sb.append("q=").append(params.getQ());
+        for(String fq : fqs){
+            if(fq != null && fq.length() > 0){
+                sb.append("&fq=").append(fq);
+            }
+        }
+        sb.append("&qc=").append(params.getQc())
+          .append("&lat=").append(params.getLat())
+          .append("&lon=").append(params.getLon())
+          .append("&radius=").append(params.getRadius())
+          .append("&wkt=").append(params.getWkt())
+          .append("&fields=").append(params.getFields())
+          .append("&extra=").append(params.getExtra())
+          .append("&qa=").append(params.getQa())
+          .append("&fileType=").append(params.getFileType())
+          .append("&file=").append(params.getFile())
+          .append("&sep=").append(params.getSep())
+          .append("&esc=").append(params.getEsc())
+          .append("&sensitive=").append(includeSensitive)
+          .append("&index=").append(fromIndex)
+          .append("&limit=").append(limit)
+          .append("&version=").append(indexVersion);
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(sb.toString().getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder();
+            for(byte b : digest){
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch(Exception e){
+            throw new IllegalStateException("Unable to hash the download parameters", e);
+        }
+    }
+
+    /**
+     * @return the stored download file for the key, null when there isn't a current one
+     */
+    public File getFile(String key) {
+        File file = new File(cacheDirectory, key + ZIP_SUFFIX);
+        if(!file.exists()){
+            return null;
+        }
+        if(isExpired(file)){
+            remove(key);
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * @return the record counts for each uid of the stored download, null when they are not available
+     */
+    public Map<String, Integer> getUidStats(String key) {
+        File file = new File(cacheDirectory, key + STATS_SUFFIX);
+        try {
+            return file.exists() ? (Map<String, Integer>) jsonMapper.readValue(file, new TypeReference<Map<String, Integer>>(){}) : null;
+        } catch(IOException e){
+            logger.warn("Unable to read the stored download stats " + file.getAbsolutePath(), e);
+            return null;
+        }
+    }
+
+    /**
+     * @return a new file that a download can be written to before it is stored
+     */
+    public File createTempFile(String key) throws IOException {
+        File dir = new File(cacheDirectory);
+        FileUtils.forceMkdir(dir);
+        return File.createTempFile(key, ".tmp", dir);
+    }
+
+    /**
+     * Stores a completed download file under the key and removes the files that have expired or
+     * no longer fit in the cache.
+     *
+     * @param key
+     * @param tempFile The completed download, moved into the cache
+     * @param uidStats The record counts for each uid in the download
+     */
+    public void store(String key, File tempFile, Map<String, Integer> uidStats) {
+        File file = new File(cacheDirectory, key + ZIP_SUFFIX);
+        try {
+            if(uidStats != null){
+                jsonMapper.writeValue(new File(cacheDirectory, key + STATS_SUFFIX), uidStats);
+            }
+            FileUtils.deleteQuietly(file);
+            FileUtils.moveFile(tempFile, file);
+        } catch(IOException e){
+            logger.error("Unable to store the download file " + file.getAbsolutePath(), e);
+            FileUtils.deleteQuietly(tempFile);
+        }
+        evict();
+    }
+
+    /**
+     * Removes the expired download files and then the oldest files until the cache is within its size limit.
+     */
+    public synchronized void evict() {
+        File[] files = new File(cacheDirectory).listFiles();
+        if(files == null){
+            return;
+        }
+        List<File> zips = new ArrayList<File>();
+        long size = 0;
+        for(File file : files){
+            if(file.getName().endsWith(ZIP_SUFFIX)){
+                if(isExpired(file)){
+                    remove(getKey(file));
+                } else {
+                    zips.add(file);
+                    size += file.length();
+                }
+            } else if(file.getName().endsWith(".tmp") && isExpired(file)){
+                //left by a download that failed while it was being written
+                FileUtils.deleteQuietly(file);
+            }
+        }
+        java.util.Collections.sort(zips, new Comparator<File>(){
+            @Override
+            public int compare(File f1, File f2) {
+                return f1.lastModified() < f2.lastModified() ? -1 : f1.lastModified() == f2.lastModified() ? 0 : 1;
+            }
+        });
+        for(int i = 0; i < zips.size() && size > maxSize; i++){
+            size -= zips.get(i).length();
+            remove(getKey(zips.get(i)));
+        }
+    }
+
+    private boolean isExpired(File file){
+        return System.currentTimeMillis() - file.lastModified() > ttl;
+    }
+
+    private String getKey(File file){
+        return file.getName().substring(0, file.getName().length() - ZIP_SUFFIX.length());
+    }
+
+    private void remove(String key){
+        logger.debug("Removing stored download " + key);
+        FileUtils.deleteQuietly(new File(cacheDirectory, key + ZIP_SUFFIX));
+        FileUtils.deleteQuietly(new File(cacheDirectory, key + STATS_SUFFIX));
+    }
+}
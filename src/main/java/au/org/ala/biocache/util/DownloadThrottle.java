@@ -0,0 +1,137 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throttles the paging of downloads based on how SOLR is responding.
+ *
+ * The latency of each download page is recorded as a moving average. While the average
+ * stays under the target latency downloads run with the minimum delay. Once SOLR slows
+ * down the delay grows with the excess latency and the number of active downloads, up to
+ * the maximum delay, so that downloads back off and leave capacity for searches.
+ */
+@Component("downloadThrottle")
+public class DownloadThrottle {
+
+    private final static Logger logger = Logger.getLogger(DownloadThrottle.class);
+
+    /** The weight given to the latest page latency in the moving average */
+    private static final double SMOOTHING = 0.2;
+
+    /** The page latency (ms) under which downloads are not slowed down */
+    @Value("${download.throttle.target.latency:500}")
+    protected long targetLatency = 500;
+
+    /** The minimum delay (ms) between download pages */
+    @Value("${download.throttle.min.delay:0}")
+    protected long minDelay = 0;
+
+    /** The maximum delay (ms) between download pages */
+    @Value("${download.throttle.max.delay:1000}")
+    protected long maxDelay = 1000;
+
+    private final AtomicInteger activeDownloads = new AtomicInteger(0);
+    private volatile double averageLatency = 0;
+
+    /**
+     * Registers the start of a download that will be throttled.
+     */
+    public void downloadStarted(){
+        activeDownloads.incrementAndGet();
+    }
+
+    /**
+     * Registers the end of a download.
+     */
+    public void downloadFinished(){
+        activeDownloads.decrementAndGet();
+    }
+
+    /**
+     * Records the time taken by SOLR to return a download page.
+     * @param latency in ms
+     */
+    public synchronized void recordLatency(long latency){
+        averageLatency = averageLatency == 0 ? latency : averageLatency + SMOOTHING * (latency - averageLatency);
+    }
+
+    /**
+     * @return the delay (ms) to wait before requesting the next download page.
+     */
+    public long getDelay(){
+        double excess = averageLatency - targetLatency;
+        if(excess <= 0){
+            return minDelay;
+        }
+        long delay = minDelay + (long)(excess * Math.max(1, activeDownloads.get()));
+        return Math.min(delay, maxDelay);
+    }
+
+    /**
+     * Sleeps for the current delay. An interrupt ends the sleep and is kept on the thread so that
+     * the download can stop.
+     */
+    public void pause(){
+        long delay = getDelay();
+        if(delay > 0){
+            if(logger.isDebugEnabled()){
+                logger.debug("Throttling download by " + delay + "ms. Average page latency: " + (long)averageLatency + "ms, active downloads: " + activeDownloads.get());
+            }
+            try {
+                Thread.sleep(delay);
+            } catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public int getActiveDownloads(){
+        return activeDownloads.get();
+    }
+
+    public long getAverageLatency(){
+        return (long)averageLatency;
+    }
+
+    public long getTargetLatency() {
+        return targetLatency;
+    }
+
+    public void setTargetLatency(long targetLatency) {
+        this.targetLatency = targetLatency;
+    }
+
+    public long getMinDelay() {
+        return minDelay;
+    }
+
+    public void setMinDelay(long minDelay) {
+        this.minDelay = minDelay;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    public void setMaxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+}
@@ -0,0 +1,445 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A zip output stream that compresses the entries of CSV files on several threads.
+ *
+ * An entry is collected into parts of about the part size, split between records, and each part is
+ * compressed on the executor while the next one is collected. A deflate stream can't be continued by
+ * another thread without a sync flush, so an entry that outgrows a part is written as several
+ * entries named name-0001.csv, name-0002.csv, ... that each start with the header of the entry.
+ * Unzipping them and appending the parts without their header gives the original file. An entry
+ * smaller than a part keeps its name.
+ *
+ * A record ends with a newline outside of the quotes of a value, as the records are written by a
+ * CSVWriter that quotes the values. An entry without records is held in memory until it is closed.
+ *
+ * The compressed parts are written in order, with the local header in front of each as the sizes
+ * and CRC are known, and the central directory when the stream is closed. Zip64 records are used
+ * once the archive is too large or has too many entries for a plain zip.
+ *
+ * This can be used in place of a ZipOutputStream, the STORED method and comments are not supported.
+ */
+public class ParallelZipOutputStream extends ZipOutputStream {
+
+    private static final long MAX_ZIP32 = 0xFFFFFFFFL;
+    private static final int MAX_ZIP32_ENTRIES = 0xFFFF;
+    private static final int VERSION_ZIP = 20;
+    private static final int VERSION_ZIP64 = 45;
+    /** The names are UTF-8 */
+    private static final int FLAG_UTF8 = 0x0800;
+
+    private final ExecutorService executor;
+    private final int maxInFlight;
+    private final int partSize;
+    private final byte quote;
+    private final byte esc;
+
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private long written = 0;
+    private final LinkedList<Part> inFlight = new LinkedList<Part>();
+    private final List<Written> centralDirectory = new ArrayList<Written>();
+
+    /** The entry being collected */
+    private Entry entry;
+    private PartBuffer part;
+    private boolean inQuotes;
+    private boolean escaped;
+    private boolean finished = false;
+
+    private static class Entry {
+        final String name;
+        final long time;
+        int parts = 0;
+        boolean closed = false;
+        byte[] header;
+
+        Entry(String name, long time){
+            this.name = name;
+            this.time = time;
+        }
+    }
+
+    /** A part of an entry that is being compressed */
+    private static class Part {
+        final Entry entry;
+        final int number;
+        final Future<Deflated> deflated;
+
+        Part(Entry entry, int number, Future<Deflated> deflated){
+            this.entry = entry;
+            this.number = number;
+            this.deflated = deflated;
+        }
+    }
+
+    private static class Deflated {
+        final PartBuffer data;
+        final long crc;
+        final long size;
+
+        Deflated(PartBuffer data, long crc, long size){
+            this.data = data;
+            this.crc = crc;
+            this.size = size;
+        }
+    }
+
+    /** The entry that has been written, for the central directory */
+    private static class Written {
+        final byte[] name;
+        final long time;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final long offset;
+
+        Written(byte[] name, long time, long crc, long compressedSize, long size, long offset){
+            this.name = name;
+            this.time = time;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+        }
+    }
+
+    /** Gives the compressor the buffer without copying it */
+    private static class PartBuffer extends ByteArrayOutputStream {
+        PartBuffer(int size){
+            super(size);
+        }
+
+        byte[] getBuffer(){
+            return buf;
+        }
+    }
+
+    /**
+     * @param out
+     * @param executor the threads that compress the parts
+     * @param maxInFlight the number of parts that can be compressed at once, more are held until they have been written
+     * @param partSize the size (bytes) of the uncompressed records after which a part is started
+     * @param esc the character the CSVWriter escapes quotes with
+     */
+    public ParallelZipOutputStream(OutputStream out, ExecutorService executor, int maxInFlight, int partSize, char esc){
+        super(out);
+        this.executor = executor;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.partSize = Math.max(1, partSize);
+        this.quote = (byte) '"';
+        this.esc = (byte) esc;
+    }
+
+    @Override
+    public void setLevel(int level){
+        if(level != Deflater.DEFAULT_COMPRESSION && (level < 0 || level > 9)){
+            throw new IllegalArgumentException("invalid compression level");
+        }
+        this.level = level;
+    }
+
+    @Override
+    public void putNextEntry(ZipEntry zipEntry) throws IOException {
+        closeEntry();
+        entry = new Entry(zipEntry.getName(), zipEntry.getTime() != -1 ? zipEntry.getTime() : System.currentTimeMillis());
+        part = new PartBuffer(Math.min(partSize, 65536));
+        inQuotes = false;
+        escaped = false;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if(entry == null){
+            throw new IOException("no current ZIP entry");
+        }
+        int start = off;
+        for(int i = off; i < off + len; i++){
+            byte c = b[i];
+            if(escaped){
+                escaped = false;
+            } else if(inQuotes && c == esc && esc != quote){
+                escaped = true;
+            } else if(c == quote){
+                inQuotes = !inQuotes;
+            } else if(c == '\n' && !inQuotes){
+                int end = i + 1;
+                if(entry.header == null){
+                    part.write(b, start, end - start);
+                    start = end;
+                    entry.header = part.toByteArray();
+                }
+                //a part has at least one record after the header
+                int size = part.size() + end - start;
+                if(size >= partSize && size > entry.header.length){
+                    part.write(b, start, end - start);
+                    start = end;
+                    submit();
+                }
+            }
+        }
+        part.write(b, start, off + len - start);
+    }
+
+    @Override
+    public void closeEntry() throws IOException {
+        if(entry != null){
+            //the last part is dropped when it only has the header that starts each part
+            if(entry.parts == 0 || part.size() > entry.header.length){
+                submit();
+            }
+            entry.closed = true;
+            entry = null;
+            part = null;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if(finished){
+            return;
+        }
+        closeEntry();
+        while(!inFlight.isEmpty()){
+            writeNext();
+        }
+        writeCentralDirectory();
+        finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            def.end();
+            out.close();
+        }
+    }
+
+    /**
+     * Starts compressing the part that has been collected, writing the oldest parts when too many are in flight.
+     */
+    private void submit() throws IOException {
+        final PartBuffer data = part;
+        final int partLevel = level;
+        Entry current = entry;
+        current.parts++;
+        while(inFlight.size() >= maxInFlight){
+            writeNext();
+        }
+        inFlight.add(new Part(current, current.parts, executor.submit(new Callable<Deflated>(){
+            @Override
+            public Deflated call() throws Exception {
+                return deflate(data, partLevel);
+            }
+        })));
+        part = new PartBuffer(Math.min(partSize, 65536));
+        if(current.header != null){
+            part.write(current.header);
+        }
+    }
+
+    private static Deflated deflate(PartBuffer data, int level){
+        CRC32 crc = new CRC32();
+        crc.update(data.getBuffer(), 0, data.size());
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(data.getBuffer(), 0, data.size());
+            deflater.finish();
+            PartBuffer compressed = new PartBuffer(Math.max(64, data.size() / 4));
+            byte[] buffer = new byte[Math.min(65536, data.size() + 64)];
+            while(!deflater.finished()){
+                int length = deflater.deflate(buffer);
+                compressed.write(buffer, 0, length);
+            }
+            return new Deflated(compressed, crc.getValue(), data.size());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Waits for the oldest part to be compressed and writes it.
+     */
+    private void writeNext() throws IOException {
+        Part next = inFlight.removeFirst();
+        Deflated deflated;
+        try {
+            deflated = next.deflated.get();
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing " + next.entry.name);
+        } catch(ExecutionException e){
+            IOException failure = new IOException("Unable to compress " + next.entry.name);
+            failure.initCause(e.getCause());
+            throw failure;
+        }
+        //the entry is only known to fit in one part once it is closed, a second part is counted before the first is written
+        String name = next.entry.closed && next.entry.parts == 1 ? next.entry.name : getPartName(next.entry.name, next.number);
+        if(deflated.size >= MAX_ZIP32 || deflated.data.size() >= MAX_ZIP32){
+            throw new IOException("The part " + name + " is too large for a zip entry");
+        }
+        byte[] nameBytes = name.getBytes("UTF-8");
+        long offset = written;
+        long time = dosTime(next.entry.time);
+        writeInt(0x04034b50L);
+        writeShort(VERSION_ZIP);
+        writeShort(FLAG_UTF8);
+        writeShort(ZipEntry.DEFLATED);
+        writeInt(time);
+        writeInt(deflated.crc);
+        writeInt(deflated.data.size());
+        writeInt(deflated.size);
+        writeShort(nameBytes.length);
+        writeShort(0);
+        writeBytes(nameBytes, 0, nameBytes.length);
+        writeBytes(deflated.data.getBuffer(), 0, deflated.data.size());
+        centralDirectory.add(new Written(nameBytes, time, deflated.crc, deflated.data.size(), deflated.size, offset));
+    }
+
+    /**
+     * @return the name of a part of an entry, e.g. data-0001.csv
+     */
+    static String getPartName(String name, int number){
+        int extension = name.lastIndexOf('.');
+        if(extension <= name.lastIndexOf('/')){
+            extension = name.length();
+        }
+        return name.substring(0, extension) + String.format("-%04d", number) + name.substring(extension);
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long start = written;
+        for(Written entry : centralDirectory){
+            boolean zip64 = entry.offset >= MAX_ZIP32;
+            writeInt(0x02014b50L);
+            writeShort(VERSION_ZIP64);
+            writeShort(zip64 ? VERSION_ZIP64 : VERSION_ZIP);
+            writeShort(FLAG_UTF8);
+            writeShort(ZipEntry.DEFLATED);
+            writeInt(entry.time);
+            writeInt(entry.crc);
+            writeInt(entry.compressedSize);
+            writeInt(entry.size);
+            writeShort(entry.name.length);
+            writeShort(zip64 ? 12 : 0);
+            //comment, disk, internal and external attributes
+            writeShort(0);
+            writeShort(0);
+            writeShort(0);
+            writeInt(0);
+            writeInt(zip64 ? MAX_ZIP32 : entry.offset);
+            writeBytes(entry.name, 0, entry.name.length);
+            if(zip64){
+                writeShort(0x0001);
+                writeShort(8);
+                writeLong(entry.offset);
+            }
+        }
+        long size = written - start;
+        long entries = centralDirectory.size();
+        if(entries >= MAX_ZIP32_ENTRIES || start >= MAX_ZIP32 || size >= MAX_ZIP32){
+            long zip64End = written;
+            writeInt(0x06064b50L);
+            writeLong(44);
+            writeShort(VERSION_ZIP64);
+            writeShort(VERSION_ZIP64);
+            writeInt(0);
+            writeInt(0);
+            writeLong(entries);
+            writeLong(entries);
+            writeLong(size);
+            writeLong(start);
+            //the locator of the zip64 end of the central directory
+            writeInt(0x07064b50L);
+            writeInt(0);
+            writeLong(zip64End);
+            writeInt(1);
+        }
+        writeInt(0x06054b50L);
+        writeShort(0);
+        writeShort(0);
+        writeShort((int) Math.min(entries, MAX_ZIP32_ENTRIES));
+        writeShort((int) Math.min(entries, MAX_ZIP32_ENTRIES));
+        writeInt(Math.min(size, MAX_ZIP32));
+        writeInt(Math.min(start, MAX_ZIP32));
+        writeShort(0);
+        out.flush();
+    }
+
+    /**
+     * @return the time in the MS-DOS format of a zip entry
+     */
+    private static long dosTime(long time){
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if(year < 1980){
+            return (1 << 21) | (1 << 16);
+        }
+        return (long) (year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16 | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5 | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    private void writeShort(int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+        written += 2;
+    }
+
+    private void writeInt(long value) throws IOException {
+        writeShort((int) (value & 0xffff));
+        writeShort((int) ((value >>> 16) & 0xffff));
+    }
+
+    private void writeLong(long value) throws IOException {
+        writeInt(value & MAX_ZIP32);
+        writeInt(value >>> 32);
+    }
+
+    private void writeBytes(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        written += len;
+    }
+}
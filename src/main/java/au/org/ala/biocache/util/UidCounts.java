@@ -0,0 +1,136 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the records downloaded for each institution, collection, data provider and data resource uid.
+ *
+ * The counts can be incremented from any number of download threads without locking. Each uid has
+ * a set of counters striped by thread so that threads downloading records of the same data resource
+ * don't compete for a single counter. The stripes are summed when the counts are read.
+ */
+public class UidCounts {
+
+    /** The number of longs in a cache line, used to keep the stripes of a uid on separate lines */
+    private static final int PADDING = 8;
+
+    private final ConcurrentMap<String, AtomicLongArray> counts = new ConcurrentHashMap<String, AtomicLongArray>();
+    private final int stripes;
+
+    /**
+     * Creates counts that are striped for the number of processors available.
+     */
+    public UidCounts(){
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * @param stripes The number of counters for each uid, use 1 when the counts are only updated by a single thread
+     */
+    public UidCounts(int stripes){
+        int size = 1;
+        while(size < stripes){
+            size <<= 1;
+        }
+        this.stripes = size;
+    }
+
+    /**
+     * Adds one to the count for the uid, ignoring a null uid.
+     */
+    public void increment(Object uid){
+        add(uid, 1);
+    }
+
+    /**
+     * Adds to the count for the uid, ignoring a null uid.
+     */
+    public void add(Object uid, long count){
+        if(uid == null){
+            return;
+        }
+        String key = uid.toString();
+        AtomicLongArray counters = counts.get(key);
+        if(counters == null){
+            AtomicLongArray created = new AtomicLongArray(stripes == 1 ? 1 : stripes * PADDING);
+            counters = counts.putIfAbsent(key, created);
+            if(counters == null){
+                counters = created;
+            }
+        }
+        counters.addAndGet(stripes == 1 ? 0 : getStripe() * PADDING, count);
+    }
+
+    /**
+     * Adds all the supplied counts.
+     */
+    public void addAll(UidCounts other){
+        for(Map.Entry<String, AtomicLongArray> entry : other.counts.entrySet()){
+            add(entry.getKey(), sum(entry.getValue()));
+        }
+    }
+
+    /**
+     * Adds all the supplied counts.
+     */
+    public void addAll(Map<String, Integer> other){
+        for(Map.Entry<String, Integer> entry : other.entrySet()){
+            add(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @return the count for the uid
+     */
+    public long get(String uid){
+        AtomicLongArray counters = counts.get(uid);
+        return counters == null ? 0 : sum(counters);
+    }
+
+    /**
+     * @return a copy of the counts, as used by the download citations and log events
+     */
+    public Map<String, Integer> toMap(){
+        Map<String, Integer> map = new HashMap<String, Integer>();
+        for(Map.Entry<String, AtomicLongArray> entry : counts.entrySet()){
+            map.put(entry.getKey(), (int) sum(entry.getValue()));
+        }
+        return map;
+    }
+
+    private int getStripe(){
+        long id = Thread.currentThread().getId();
+        return (int) ((id ^ (id >>> 16)) & (stripes - 1));
+    }
+
+    private static long sum(AtomicLongArray counters){
+        long total = 0;
+        for(int i = 0; i < counters.length(); i += PADDING){
+            total += counters.get(i);
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+}
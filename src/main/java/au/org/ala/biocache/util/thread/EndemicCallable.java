@@ -15,21 +15,20 @@
 package au.org.ala.biocache.util.thread;
 
 import java.util.concurrent.Callable;
-import java.util.List;
 
 import au.org.ala.biocache.dao.SearchDAO;
-import au.org.ala.biocache.dto.FieldResultDTO;
+import au.org.ala.biocache.dto.FacetValues;
 import au.org.ala.biocache.dto.SpatialSearchRequestParams;
 import org.apache.log4j.Logger;
 
 /**
  * The class essentially wraps the extraction of a set of endemic facets into 
  * a thread.  In order to support a return value from the thread we are making use of
- * the Callable interface.  Which will return a Future<List<FieldResultDTO>>.
+ * the Callable interface.  Which will return a Future<FacetValues>.
  * 
  * @author "Natasha Carter <Natasha.Carter@csiro.au>"
  */
-public class EndemicCallable implements Callable<List<FieldResultDTO>> {
+public class EndemicCallable implements Callable<FacetValues> {
 
     private static final Logger logger = Logger.getLogger(EndemicCallable.class);
     private SpatialSearchRequestParams srp;
@@ -42,16 +41,19 @@ public class EndemicCallable implements Callable<List<FieldResultDTO>> {
         this.searchDAO = searchDAO;
     }
   
+    /**
+     * @throws Exception when the batch fails, so that the species it was checking aren't reported as endemic
+     */
     @Override
-    public List<FieldResultDTO> call() {
+    public FacetValues call() throws Exception {
         try {
             logger.debug("Starting the endemic callable for " +batch);
-            List<FieldResultDTO> results = searchDAO.getValuesForFacet(srp);
+            FacetValues results = searchDAO.getFacetValues(srp);
             logger.debug("Finished endemic callable for " + batch + " ("+ results.size()+ ")");
             return results;
         } catch(Exception e) {
             logger.error("Unable to get facets for the endemic call " , e);
-            return null;
+            throw e;
         }
     }
 }
@@ -18,14 +18,21 @@ import au.org.ala.biocache.dao.PersistentQueueDAO;
 import au.org.ala.biocache.dao.SearchDAO;
 import au.org.ala.biocache.dto.DownloadDetailsDTO;
 import au.org.ala.biocache.dto.DownloadDetailsDTO.DownloadType;
+import au.org.ala.biocache.dto.DownloadEstimateDTO;
 import au.org.ala.biocache.dto.DownloadRequestParams;
+import au.org.ala.biocache.dto.SpatialSearchRequestParams;
+import au.org.ala.biocache.service.DownloadService;
 import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.springframework.beans.BeanUtils;
 import org.springframework.stereotype.Controller;
+import org.springframework.validation.BindingResult;
 import org.springframework.web.bind.annotation.*;
 
 import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.validation.Valid;
 import java.util.List;
 
 /**
@@ -40,12 +47,17 @@ import java.util.List;
 @Controller
 public class DownloadController extends AbstractSecureController {
 
+    private final static Logger logger = Logger.getLogger(DownloadController.class);
+
     /** Fulltext search DAO */
     @Inject
     protected SearchDAO searchDAO;
     
     @Inject
     protected PersistentQueueDAO persistentQueueDAO;
+
+    @Inject
+    protected DownloadService downloadService;
     
     /** Stores whether or not additional offline downloads can be requested    */
     private boolean isOfflineAvailable;
@@ -58,6 +70,72 @@ public class DownloadController extends AbstractSecureController {
     public @ResponseBody List<DownloadDetailsDTO> getCurrentDownloads(){
         return persistentQueueDAO.getAllDownloads();
     }
+
+    /**
+     * Returns the progress of an active download: the records and bytes per second, the time spent
+     * waiting on SOLR and writing, and the estimated completion time.
+     * @param id
+     * @param response
+     * @return
+     * @throws Exception
+     */
+    @RequestMapping("/active/download/{id}/stats")
+    public @ResponseBody DownloadDetailsDTO getActiveDownload(@PathVariable("id") String id, HttpServletResponse response) throws Exception {
+        DownloadDetailsDTO dd = downloadService.getCurrentDownload(id);
+        if(dd == null){
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No active download with the id " + id);
+        }
+        return dd;
+    }
+
+    /**
+     * Cancels an active or queued download.
+     * @param id
+     * @param apiKey
+     * @param response
+     * @throws Exception
+     */
+    @RequestMapping(value = "/active/download/{id}/cancel", method = RequestMethod.POST)
+    public void cancelDownload(@PathVariable("id") String id,
+            @RequestParam(value="apiKey", required=true) String apiKey,
+            HttpServletResponse response) throws Exception {
+        if(shouldPerformOperation(apiKey, response)){
+            if(downloadService.cancelDownload(id)){
+                response.setStatus(HttpServletResponse.SC_OK);
+            } else {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, "No active or queued download with the id " + id);
+            }
+        }
+    }
+
+    /**
+     * Estimates the cost of a download without performing it: the number of records, the records
+     * left out by the download limits, the split queries, and the size and duration based on the
+     * recent downloads. Downloads that are estimated to be offline should be added to the offline queue.
+     * @param requestParams
+     * @param result
+     * @param type index or db
+     * @param response
+     * @return
+     * @throws Exception
+     */
+    @RequestMapping(value = "occurrences/estimate/{type}/download*", method = RequestMethod.GET)
+    public @ResponseBody DownloadEstimateDTO estimateDownload(
+            @Valid DownloadRequestParams requestParams,
+            BindingResult result,
+            @PathVariable("type") String type,
+            HttpServletResponse response) throws Exception {
+        if(result.hasErrors()){
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, result.getAllErrors().toString());
+            return null;
+        }
+        if (requestParams.getQ().isEmpty() && requestParams.getFormattedQuery().isEmpty()) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unable to estimate a download without a query");
+            return null;
+        }
+        return downloadService.estimateDownload(requestParams, "index".equals(type.toLowerCase()));
+    }
+
     /**
      * Add a download to the offline queue
      * @param requestParams
@@ -92,8 +170,29 @@ public class DownloadController extends AbstractSecureController {
         //create a new task
         DownloadDetailsDTO dd = new DownloadDetailsDTO(requestParams, ip, downloadType);
         dd.setIncludeSensitive(sensitive);
+        //the size of the download is used to schedule it
+        dd.setTotalRecords(estimateDownloadSize(requestParams));
         
         persistentQueueDAO.addDownloadToQueue(dd);
         return null;
     }
+
+    /**
+     * Counts the records that match the download query.
+     *
+     * @param requestParams
+     * @return the number of records or -1 when the count failed
+     */
+    private long estimateDownloadSize(DownloadRequestParams requestParams){
+        try {
+            SpatialSearchRequestParams countParams = new SpatialSearchRequestParams();
+            BeanUtils.copyProperties(requestParams, countParams);
+            countParams.setPageSize(0);
+            countParams.setFacet(false);
+            return searchDAO.findByFulltextSpatialQuery(countParams, null).getTotalRecords();
+        } catch(Exception e){
+            logger.warn("Unable to estimate the size of the offline download: " + requestParams, e);
+            return -1;
+        }
+    }
 }
@@ -500,12 +500,25 @@ public class OccurrenceController extends AbstractSecureController {
         searchDAO.refreshCaches();
         return null;
     }
+
+    /**
+     * Returns the statistics of the search result cache, including its hit ratio.
+     *
+     * @return
+     */
+    @RequestMapping(value = {"/cache/search/stats"}, method = RequestMethod.GET)
+    public @ResponseBody Map<String, Object> searchCacheStats() {
+        return searchDAO.getSearchResultCacheStats();
+    }
     
     /**
      * Downloads the complete list of values in the supplied facet
      *
      * ONLY 1 facet should be included in the params.
      *
+     * With fsort=index the values are streamed in a single pass, which is much faster for facets
+     * with a large number of values.
+     *
      * @param requestParams
      * @param response
      * @throws Exception
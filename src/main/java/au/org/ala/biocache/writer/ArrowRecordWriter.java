@@ -0,0 +1,403 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.writer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+
+import au.org.ala.biocache.RecordWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A record writer that produces a typed, columnar Apache Arrow file, the IPC file format that is
+ * also known as Feather version 2. It can be read by pyarrow, pandas.read_feather, R's arrow package
+ * and the other Arrow libraries.
+ *
+ * The records are buffered by column and written out as record batches, so only one batch is held
+ * in memory however large the download is. The columns are strings, doubles, 64 bit integers,
+ * dates (days since 1970-01-01) or booleans, a value that doesn't parse as the type of its column
+ * is written as null.
+ *
+ * The Arrow metadata is written by FlatTable rather than the Arrow libraries, which need a later
+ * Java. Arrow only compresses the buffers with LZ4 or ZSTD so the file isn't compressed here, it
+ * is compressed by the zip of the download.
+ */
+public class ArrowRecordWriter implements RecordWriter {
+
+    private final static Logger logger = LoggerFactory.getLogger(ArrowRecordWriter.class);
+
+    public static final byte STRING = 0;
+    public static final byte DOUBLE = 1;
+    public static final byte LONG = 2;
+    public static final byte DATE = 3;
+    public static final byte BOOLEAN = 4;
+
+    private static final byte[] MAGIC = new byte[]{'A', 'R', 'R', 'O', 'W', '1'};
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    /** The metadata version V5 */
+    private static final int METADATA_VERSION = 4;
+    /** The MessageHeader union */
+    private static final int SCHEMA_MESSAGE = 1;
+    private static final int RECORD_BATCH_MESSAGE = 3;
+    /** The Type union */
+    private static final int INT_TYPE = 2;
+    private static final int FLOATING_POINT_TYPE = 3;
+    private static final int UTF8_TYPE = 5;
+    private static final int BOOL_TYPE = 6;
+    private static final int DATE_TYPE = 8;
+
+    private final OutputStream out;
+    private final byte[] types;
+    private final int batchSize;
+    private final ColumnBuffer[] columns;
+    private final FlatTable schema;
+    /** The offset, metadata length and body length of each record batch, as the Blocks of the footer */
+    private final List<Long> blocks = new ArrayList<Long>();
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+    private long position = 0;
+    private int rows = 0;
+    private long invalidValues = 0;
+    private boolean finalised = false;
+
+    /**
+     * @param out The stream that the file is written to
+     * @param header The names of the columns
+     * @param types The type of each column, null to write all the columns as strings
+     * @param batchSize The number of records held in memory before they are written
+     */
+    public ArrowRecordWriter(OutputStream out, String[] header, byte[] types, int batchSize){
+        this.out = out;
+        this.types = types != null ? types : new byte[header.length];
+        this.batchSize = batchSize;
+        this.columns = new ColumnBuffer[header.length];
+        List<FlatTable> fields = new ArrayList<FlatTable>();
+        for(int i = 0; i < header.length; i++){
+            columns[i] = new ColumnBuffer(this.types[i], batchSize);
+            fields.add(new FlatTable()
+                    .addString(0, header[i] != null ? header[i] : "")
+                    .addBool(1, true)
+                    .addByte(2, getArrowType(this.types[i]))
+                    .addTable(3, getArrowTypeTable(this.types[i]))
+                    .addTables(5, new ArrayList<FlatTable>()));
+        }
+        //little endian
+        schema = new FlatTable().addShort(0, 0).addTables(1, fields);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        dateFormat.setLenient(false);
+        try {
+            write(MAGIC, MAGIC.length);
+            write(new byte[2], 2);
+            writeMessage(SCHEMA_MESSAGE, schema);
+        } catch(IOException e){
+            throw new IllegalStateException("Unable to write the Arrow schema", e);
+        }
+    }
+
+    /**
+     * @return the column type used for a SOLR field type
+     */
+    public static byte getColumnType(String solrType){
+        if(solrType == null){
+            return STRING;
+        }
+        //the numeric and date types have trie (t) and sortable (s) variants
+        if(solrType.matches("[ts]?(double|float)")){
+            return DOUBLE;
+        }
+        if(solrType.matches("[ts]?(int|long)")){
+            return LONG;
+        }
+        if(solrType.matches("t?date")){
+            return DATE;
+        }
+        if(solrType.equals("boolean")){
+            return BOOLEAN;
+        }
+        return STRING;
+    }
+
+    private static int getArrowType(byte type){
+        switch(type){
+            case DOUBLE: return FLOATING_POINT_TYPE;
+            case LONG: return INT_TYPE;
+            case DATE: return DATE_TYPE;
+            case BOOLEAN: return BOOL_TYPE;
+            default: return UTF8_TYPE;
+        }
+    }
+
+    private static FlatTable getArrowTypeTable(byte type){
+        switch(type){
+            //double precision
+            case DOUBLE: return new FlatTable().addShort(0, 2);
+            //signed 64 bit
+            case LONG: return new FlatTable().addInt(0, 64).addBool(1, true);
+            //days
+            case DATE: return new FlatTable().addShort(0, 0);
+            default: return new FlatTable();
+        }
+    }
+
+    /**
+     * Adds the record to the current batch, writing the batch once it is full.
+     */
+    @Override
+    public void write(String[] record) {
+        for(int i = 0; i < columns.length; i++){
+            String value = i < record.length ? record[i] : null;
+            if(value != null && value.length() == 0){
+                value = null;
+            }
+            columns[i].add(rows, value);
+        }
+        rows++;
+        if(rows >= batchSize){
+            writeBatch();
+        }
+    }
+
+    /**
+     * Writes the last batch and the footer of the file.
+     */
+    @Override
+    public void finalise() {
+        if(finalised){
+            return;
+        }
+        finalised = true;
+        writeBatch();
+        try {
+            //the end of the stream then the footer that locates the batches
+            writeInt(0xFFFFFFFF);
+            writeInt(0);
+            long[] recordBatches = new long[blocks.size()];
+            for(int i = 0; i < recordBatches.length; i++){
+                recordBatches[i] = blocks.get(i);
+            }
+            byte[] footer = new FlatTable()
+                    .addShort(0, METADATA_VERSION)
+                    .addTable(1, schema)
+                    .addStructs(2, new long[0], 3)
+                    .addStructs(3, recordBatches, 3)
+                    .serialise();
+            write(footer, footer.length);
+            writeInt(footer.length);
+            write(MAGIC, MAGIC.length);
+            out.flush();
+        } catch(IOException e){
+            throw new IllegalStateException("Unable to complete the Arrow file", e);
+        }
+        if(invalidValues > 0){
+            logger.warn(invalidValues + " values did not match their column type and were written as null");
+        }
+    }
+
+    private void writeBatch(){
+        if(rows == 0){
+            return;
+        }
+        long[] nodes = new long[columns.length * 2];
+        List<Long> buffers = new ArrayList<Long>();
+        body.reset();
+        for(int i = 0; i < columns.length; i++){
+            nodes[i * 2] = rows;
+            nodes[i * 2 + 1] = columns[i].nulls;
+            columns[i].writeTo(body, rows, buffers);
+            columns[i].reset();
+        }
+        long[] bufferArray = new long[buffers.size()];
+        for(int i = 0; i < bufferArray.length; i++){
+            bufferArray[i] = buffers.get(i);
+        }
+        try {
+            writeMessage(RECORD_BATCH_MESSAGE, new FlatTable()
+                    .addLong(0, rows)
+                    .addStructs(1, nodes, 2)
+                    .addStructs(2, bufferArray, 2));
+        } catch(IOException e){
+            throw new IllegalStateException("Unable to write a record batch to the Arrow file", e);
+        }
+        rows = 0;
+    }
+
+    /**
+     * Writes an encapsulated message, the metadata and then the body collected for it.
+     */
+    private void writeMessage(int headerType, FlatTable header) throws IOException {
+        long bodyLength = headerType == RECORD_BATCH_MESSAGE ? body.size() : 0;
+        byte[] metadata = new FlatTable()
+                .addShort(0, METADATA_VERSION)
+                .addByte(1, headerType)
+                .addTable(2, header)
+                .addLong(3, bodyLength)
+                .serialise();
+        if(headerType == RECORD_BATCH_MESSAGE){
+            blocks.add(position);
+            blocks.add(8L + metadata.length);
+            blocks.add(bodyLength);
+        }
+        writeInt(0xFFFFFFFF);
+        writeInt(metadata.length);
+        write(metadata, metadata.length);
+        if(bodyLength > 0){
+            body.writeTo(out);
+            position += bodyLength;
+        }
+    }
+
+    private void writeInt(int value) throws IOException {
+        write(new byte[]{(byte) value, (byte) (value >>> 8), (byte) (value >>> 16), (byte) (value >>> 24)}, 4);
+    }
+
+    private void write(byte[] bytes, int length) throws IOException {
+        out.write(bytes, 0, length);
+        position += length;
+    }
+
+    /**
+     * Holds the values of one column for the current batch.
+     */
+    private class ColumnBuffer {
+        final byte type;
+        final byte[] validity;
+        final byte[] booleans;
+        final long[] values;
+        final int[] offsets;
+        final ByteArrayOutputStream strings;
+        int nulls = 0;
+
+        ColumnBuffer(byte type, int batchSize){
+            this.type = type;
+            this.validity = new byte[(batchSize + 7) / 8];
+            this.booleans = type == BOOLEAN ? new byte[validity.length] : null;
+            this.values = type == STRING || type == BOOLEAN ? null : new long[batchSize];
+            this.offsets = type == STRING ? new int[batchSize + 1] : null;
+            this.strings = type == STRING ? new ByteArrayOutputStream() : null;
+        }
+
+        void add(int row, String value){
+            if(type == STRING){
+                if(value != null){
+                    try {
+                        strings.write(value.getBytes("UTF-8"));
+                    } catch(IOException e){
+                        //not thrown by a ByteArrayOutputStream
+                        throw new IllegalStateException(e);
+                    }
+                }
+                offsets[row + 1] = strings.size();
+            } else if(value != null){
+                try {
+                    switch(type){
+                        case DOUBLE:
+                            values[row] = Double.doubleToLongBits(Double.parseDouble(value));
+                            break;
+                        case LONG:
+                            values[row] = Long.parseLong(value);
+                            break;
+                        case DATE:
+                            values[row] = dateFormat.parse(value).getTime() / MILLIS_PER_DAY;
+                            break;
+                        default:
+                            if(Boolean.parseBoolean(value)){
+                                setBit(booleans, row);
+                            }
+                    }
+                } catch(NumberFormatException e){
+                    invalidValues++;
+                    value = null;
+                } catch(ParseException e){
+                    invalidValues++;
+                    value = null;
+                }
+            }
+            if(value != null){
+                setBit(validity, row);
+            } else {
+                nulls++;
+            }
+        }
+
+        /**
+         * Writes the buffers of the column to the body, adding their offset and length to the buffers.
+         */
+        void writeTo(ByteArrayOutputStream body, int rowCount, List<Long> buffers){
+            int bitmapLength = (rowCount + 7) / 8;
+            addBuffer(body, buffers, validity, bitmapLength);
+            if(type == STRING){
+                byte[] bytes = new byte[4 * (rowCount + 1)];
+                for(int i = 0; i <= rowCount; i++){
+                    setLittleEndian(bytes, i * 4, 4, offsets[i]);
+                }
+                addBuffer(body, buffers, bytes, bytes.length);
+                addBuffer(body, buffers, strings.toByteArray(), strings.size());
+            } else if(type == BOOLEAN){
+                addBuffer(body, buffers, booleans, bitmapLength);
+            } else {
+                int size = type == DATE ? 4 : 8;
+                byte[] bytes = new byte[size * rowCount];
+                for(int i = 0; i < rowCount; i++){
+                    setLittleEndian(bytes, i * size, size, values[i]);
+                }
+                addBuffer(body, buffers, bytes, bytes.length);
+            }
+        }
+
+        void reset(){
+            Arrays.fill(validity, (byte) 0);
+            if(values != null){
+                Arrays.fill(values, 0);
+            }
+            if(strings != null){
+                strings.reset();
+            }
+            if(booleans != null){
+                Arrays.fill(booleans, (byte) 0);
+            }
+            nulls = 0;
+        }
+
+        private void setBit(byte[] bits, int row){
+            bits[row / 8] |= 1 << (row % 8);
+        }
+    }
+
+    /**
+     * Adds a buffer to the body, padded to a multiple of 8 bytes.
+     */
+    private static void addBuffer(ByteArrayOutputStream body, List<Long> buffers, byte[] bytes, int length){
+        buffers.add((long) body.size());
+        buffers.add((long) length);
+        body.write(bytes, 0, length);
+        for(int i = length; i % 8 != 0; i++){
+            body.write(0);
+        }
+    }
+
+    private static void setLittleEndian(byte[] bytes, int offset, int size, long value){
+        for(int i = 0; i < size; i++){
+            bytes[offset + i] = (byte) (value >>> (8 * i));
+        }
+    }
+}
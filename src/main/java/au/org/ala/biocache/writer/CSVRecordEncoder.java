@@ -0,0 +1,190 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.writer;
+
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.solr.common.SolrDocument;
+
+/**
+ * Encodes SOLR documents as CSV lines straight into a reusable byte buffer.
+ *
+ * The output is the same as the CSVRecordWriter: every value is quoted, quotes and escape
+ * characters within a value are escaped and dates are written as yyyy-MM-dd. Values are
+ * encoded without building a String[] for the record, and the assertions of a record are
+ * matched against the QA fields with a precomputed index.
+ *
+ * An encoder is not thread safe, each download thread uses its own.
+ */
+public class CSVRecordEncoder {
+
+    private static final byte[] TRUE = "true".getBytes();
+    private static final byte[] FALSE = "false".getBytes();
+
+    private final String[] fields;
+    private final Map<String, Integer> qaIndex = new HashMap<String, Integer>();
+    private final boolean[] qaFlags;
+    private final char sep;
+    private final char esc;
+    private final char quote = '"';
+    private final Charset charset;
+    private final Calendar calendar = Calendar.getInstance();
+    private byte[] buffer = new byte[65536];
+    private int count = 0;
+
+    /**
+     * @param fields The index fields written for each record
+     * @param qaFields The assertions written as true/false columns after the fields
+     * @param sep The separator between values
+     * @param esc The character used to escape quotes within a value
+     */
+    public CSVRecordEncoder(String[] fields, String[] qaFields, char sep, char esc){
+        this.fields = fields;
+        for(int i = 0; i < qaFields.length; i++){
+            qaIndex.put(qaFields[i], i);
+        }
+        this.qaFlags = new boolean[qaFields.length];
+        this.sep = sep;
+        this.esc = esc;
+        //the same charset as the writer used by the CSVRecordWriter
+        this.charset = Charset.defaultCharset();
+    }
+
+    /**
+     * Appends the document to the buffer as a CSV line.
+     */
+    public void encode(SolrDocument sd){
+        for(int j = 0; j < fields.length; j++){
+            if(j > 0){
+                writeChar(sep);
+            }
+            writeChar(quote);
+            Object value = sd.getFirstValue(fields[j]);
+            if(value instanceof Date){
+                writeDate((Date) value);
+            } else if(value != null){
+                writeEscaped(value.toString());
+            }
+            writeChar(quote);
+        }
+
+        //set the flags of the QA fields that have been asserted against the record
+        java.util.Arrays.fill(qaFlags, false);
+        Collection<Object> assertions = sd.getFieldValues("assertions");
+        if(assertions != null){
+            for(Object assertion : assertions){
+                Integer k = qaIndex.get(assertion);
+                if(k != null){
+                    qaFlags[k] = true;
+                }
+            }
+        }
+        for(int k = 0; k < qaFlags.length; k++){
+            if(fields.length > 0 || k > 0){
+                writeChar(sep);
+            }
+            writeChar(quote);
+            writeBytes(qaFlags[k] ? TRUE : FALSE);
+            writeChar(quote);
+        }
+        writeChar('\n');
+    }
+
+    /**
+     * @return the number of bytes encoded since the buffer was last taken
+     */
+    public int size(){
+        return count;
+    }
+
+    /**
+     * @return a copy of the encoded records, the buffer is cleared to be reused for the next records
+     */
+    public byte[] toByteArray(){
+        byte[] bytes = new byte[count];
+        System.arraycopy(buffer, 0, bytes, 0, count);
+        count = 0;
+        return bytes;
+    }
+
+    private void writeDate(Date date){
+        calendar.setTime(date);
+        writeDigits(calendar.get(Calendar.YEAR), 4);
+        writeChar('-');
+        writeDigits(calendar.get(Calendar.MONTH) + 1, 2);
+        writeChar('-');
+        writeDigits(calendar.get(Calendar.DAY_OF_MONTH), 2);
+    }
+
+    private void writeDigits(int value, int width){
+        String digits = Integer.toString(value);
+        for(int i = digits.length(); i < width; i++){
+            writeChar('0');
+        }
+        writeEscaped(digits);
+    }
+
+    private void writeEscaped(String value){
+        int length = value.length();
+        int i = 0;
+        while(i < length){
+            char c = value.charAt(i);
+            if(c == quote || c == esc){
+                writeChar(esc);
+                writeChar(c);
+                i++;
+            } else if(c < 0x80){
+                writeChar(c);
+                i++;
+            } else {
+                //encode a run of non ASCII characters together so that surrogate pairs are kept intact
+                int end = i + 1;
+                while(end < length && value.charAt(end) >= 0x80 && value.charAt(end) != quote && value.charAt(end) != esc){
+                    end++;
+                }
+                writeBytes(value.substring(i, end).getBytes(charset));
+                i = end;
+            }
+        }
+    }
+
+    private void writeChar(char c){
+        if(c >= 0x80){
+            writeBytes(String.valueOf(c).getBytes(charset));
+            return;
+        }
+        ensureCapacity(1);
+        buffer[count++] = (byte) c;
+    }
+
+    private void writeBytes(byte[] bytes){
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    private void ensureCapacity(int extra){
+        if(count + extra > buffer.length){
+            byte[] grown = new byte[Math.max(buffer.length * 2, count + extra)];
+            System.arraycopy(buffer, 0, grown, 0, count);
+            buffer = grown;
+        }
+    }
+}
@@ -14,6 +14,8 @@
  ***************************************************************************/
 package au.org.ala.biocache.writer;
 
+import java.io.Flushable;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 
@@ -28,19 +30,24 @@ import org.slf4j.LoggerFactory;
  * 
  * @author Natasha Carter
  */
-public class CSVRecordWriter implements RecordWriter{
+public class CSVRecordWriter implements RecordWriter, Flushable {
     private final static Logger logger = LoggerFactory.getLogger(CSVRecordWriter.class);
 
     private CSVWriter csvWriter;
+    private OutputStream out;
+    /** true when there are records in the csv writer that haven't been flushed to the output stream */
+    private boolean pending = false;
 
     public CSVRecordWriter(OutputStream out, String[] header){
+        this.out = out;
         csvWriter = new CSVWriter(new OutputStreamWriter(out), ',', '"');  
-        csvWriter.writeNext(header);
+        write(header);
     }
 
     public CSVRecordWriter(OutputStream out, String[] header, char sep, char esc){
+        this.out = out;
         csvWriter = new CSVWriter(new OutputStreamWriter(out), sep, '"', esc);
-        csvWriter.writeNext(header);
+        write(header);
     }
     
     /**
@@ -48,7 +55,27 @@ public class CSVRecordWriter implements RecordWriter{
      */
     @Override
     public void write(String[] record) {
-       csvWriter.writeNext(record);       
+       csvWriter.writeNext(record);
+       pending = true;
+    }
+
+    /**
+     * Writes records that have already been encoded by a CSVRecordEncoder using the same separator and escape.
+     */
+    public void writeEncoded(byte[] records) throws IOException {
+        if(pending){
+            csvWriter.flush();
+            pending = false;
+        }
+        out.write(records);
+    }
+
+    /**
+     * Flushes the records written so far to the output stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        csvWriter.flush();
     }
 
     @Override
@@ -0,0 +1,270 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.writer;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A FlatBuffers table, enough of the FlatBuffers format to write the metadata of an Arrow file
+ * without the FlatBuffers library.
+ *
+ * The fields are set by their id in the schema and the table is serialised front to back, each
+ * table, string and vector is written before the ones it refers to so that the offsets to them
+ * are positive. The vtable of a table is written just before the table and isn't shared.
+ */
+class FlatTable {
+
+    /** The value of a field, a scalar or what an offset field refers to */
+    private static class Field {
+        final int size;
+        final long scalar;
+        final Object child;
+
+        Field(int size, long scalar, Object child){
+            this.size = size;
+            this.scalar = scalar;
+            this.child = child;
+        }
+    }
+
+    /** A vector of structs that are made of longs */
+    private static class Structs {
+        final long[] values;
+        final int count;
+
+        Structs(long[] values, int count){
+            this.values = values;
+            this.count = count;
+        }
+    }
+
+    private final Map<Integer, Field> fields = new TreeMap<Integer, Field>();
+
+    FlatTable addBool(int id, boolean value){
+        return addScalar(id, 1, value ? 1 : 0);
+    }
+
+    FlatTable addByte(int id, int value){
+        return addScalar(id, 1, value);
+    }
+
+    FlatTable addShort(int id, int value){
+        return addScalar(id, 2, value);
+    }
+
+    FlatTable addInt(int id, int value){
+        return addScalar(id, 4, value);
+    }
+
+    FlatTable addLong(int id, long value){
+        return addScalar(id, 8, value);
+    }
+
+    FlatTable addString(int id, String value){
+        try {
+            fields.put(id, new Field(4, 0, value.getBytes("UTF-8")));
+        } catch(UnsupportedEncodingException e){
+            throw new IllegalStateException(e);
+        }
+        return this;
+    }
+
+    FlatTable addTable(int id, FlatTable table){
+        fields.put(id, new Field(4, 0, table));
+        return this;
+    }
+
+    FlatTable addTables(int id, List<FlatTable> tables){
+        fields.put(id, new Field(4, 0, new ArrayList<FlatTable>(tables)));
+        return this;
+    }
+
+    /**
+     * Adds a vector of structs where each struct is made of longs, or of fields padded to 8 bytes
+     * that are written as the longs that hold them.
+     *
+     * @param values the longs of the structs one after the other
+     * @param longsPerStruct the number of longs in each struct
+     */
+    FlatTable addStructs(int id, long[] values, int longsPerStruct){
+        fields.put(id, new Field(4, 0, new Structs(values, values.length / longsPerStruct)));
+        return this;
+    }
+
+    private FlatTable addScalar(int id, int size, long value){
+        fields.put(id, new Field(size, value, null));
+        return this;
+    }
+
+    /**
+     * @return the buffer with this table as its root, the length is a multiple of 8
+     */
+    byte[] serialise(){
+        Buffer buffer = new Buffer();
+        buffer.putInt(0);
+        int root = buffer.place(this);
+        buffer.setInt(0, root);
+        buffer.align(8);
+        return Arrays.copyOf(buffer.bytes, buffer.length);
+    }
+
+    /**
+     * A little endian buffer that the tables are laid out in.
+     */
+    private static class Buffer {
+        byte[] bytes = new byte[256];
+        int length = 0;
+
+        /**
+         * @return the position of the table
+         */
+        int place(FlatTable table){
+            //the inline fields are laid out largest first so that each is aligned
+            List<Integer> ids = new ArrayList<Integer>(table.fields.keySet());
+            int maxId = ids.isEmpty() ? -1 : ids.get(ids.size() - 1);
+            int[] offsets = new int[maxId + 1];
+            int tableSize = 4;
+            for(int size = 8; size >= 1; size /= 2){
+                for(Integer id : ids){
+                    Field field = table.fields.get(id);
+                    if(field.size == size){
+                        tableSize = (tableSize + size - 1) / size * size;
+                        offsets[id] = tableSize;
+                        tableSize += size;
+                    }
+                }
+            }
+            //the vtable then the table, aligned for its longs
+            align(2);
+            int vtable = length;
+            putShort(4 + 2 * offsets.length);
+            putShort(tableSize);
+            for(int offset : offsets){
+                putShort(offset);
+            }
+            align(8);
+            int position = length;
+            putInt(position - vtable);
+            grow(position + tableSize);
+            length = position + tableSize;
+            for(Integer id : ids){
+                Field field = table.fields.get(id);
+                if(field.child == null){
+                    set(position + offsets[id], field.size, field.scalar);
+                }
+            }
+            //then what the offset fields refer to
+            for(Integer id : ids){
+                Field field = table.fields.get(id);
+                if(field.child != null){
+                    int at = position + offsets[id];
+                    setInt(at, placeChild(field.child) - at);
+                }
+            }
+            return position;
+        }
+
+        @SuppressWarnings("unchecked")
+        private int placeChild(Object child){
+            if(child instanceof FlatTable){
+                return place((FlatTable) child);
+            }
+            if(child instanceof byte[]){
+                byte[] string = (byte[]) child;
+                align(4);
+                int position = length;
+                putInt(string.length);
+                grow(length + string.length + 1);
+                System.arraycopy(string, 0, bytes, length, string.length);
+                length += string.length + 1;
+                return position;
+            }
+            if(child instanceof Structs){
+                Structs structs = (Structs) child;
+                //the structs are aligned for their longs after the length
+                align(8);
+                putInt(0);
+                int position = length;
+                putInt(structs.count);
+                for(long value : structs.values){
+                    putLong(value);
+                }
+                return position;
+            }
+            List<FlatTable> tables = (List<FlatTable>) child;
+            align(4);
+            int position = length;
+            putInt(tables.size());
+            int first = length;
+            length += 4 * tables.size();
+            grow(length);
+            for(int i = 0; i < tables.size(); i++){
+                int at = first + 4 * i;
+                setInt(at, place(tables.get(i)) - at);
+            }
+            return position;
+        }
+
+        void align(int alignment){
+            while(length % alignment != 0){
+                putByte(0);
+            }
+        }
+
+        void putByte(int value){
+            grow(length + 1);
+            bytes[length++] = (byte) value;
+        }
+
+        void putShort(int value){
+            grow(length + 2);
+            set(length, 2, value);
+            length += 2;
+        }
+
+        void putInt(int value){
+            grow(length + 4);
+            set(length, 4, value);
+            length += 4;
+        }
+
+        void putLong(long value){
+            grow(length + 8);
+            set(length, 8, value);
+            length += 8;
+        }
+
+        void setInt(int position, int value){
+            set(position, 4, value);
+        }
+
+        private void set(int position, int size, long value){
+            for(int i = 0; i < size; i++){
+                bytes[position + i] = (byte) (value >>> (8 * i));
+            }
+        }
+
+        private void grow(int size){
+            if(size > bytes.length){
+                bytes = Arrays.copyOf(bytes, Math.max(size, bytes.length * 2));
+            }
+        }
+    }
+}
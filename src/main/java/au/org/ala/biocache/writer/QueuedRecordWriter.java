@@ -0,0 +1,203 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.writer;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import au.org.ala.biocache.RecordWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A RecordWriter that hands batches of records over a bounded queue to a single
+ * writer thread which feeds the wrapped RecordWriter.
+ *
+ * Download threads convert their pages into record batches without holding any lock
+ * and then block in {@link #writeBatch(List)} while the queue is full, so memory use
+ * is bounded by the queue size.
+ *
+ * A batch of a CSV download can be queued already encoded by a CSVRecordEncoder, in which
+ * case the writer thread only copies the bytes to the output.
+ *
+ * A batch can carry a callback that the writer thread runs once the records have been
+ * written, allowing the progress of the download to be tracked in the order it is written.
+ */
+public class QueuedRecordWriter implements RecordWriter {
+
+    private final static Logger logger = LoggerFactory.getLogger(QueuedRecordWriter.class);
+
+    /** Marks the end of the records on the queue */
+    private static final Batch END_OF_RECORDS = new Batch(Collections.<String[]>emptyList(), null, null);
+
+    private final RecordWriter writer;
+    private final BlockingQueue<Batch> queue;
+    private final Thread writerThread;
+    private volatile Throwable error = null;
+    private boolean finalised = false;
+
+    /**
+     * @param writer The writer that will receive all the records
+     * @param queueSize The maximum number of batches waiting to be written
+     */
+    public QueuedRecordWriter(RecordWriter writer, int queueSize){
+        this.writer = writer;
+        this.queue = new ArrayBlockingQueue<Batch>(queueSize);
+        this.writerThread = new Thread(new Runnable(){
+            @Override
+            public void run() {
+                writeQueuedRecords();
+            }
+        }, "download-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    private void writeQueuedRecords(){
+        try {
+            Batch batch = queue.take();
+            while(batch != END_OF_RECORDS){
+                //once the writer has failed keep draining the queue so that the producers are not blocked
+                if(error == null){
+                    try {
+                        if(batch.encoded != null){
+                            ((CSVRecordWriter) writer).writeEncoded(batch.encoded);
+                        }
+                        for(String[] record : batch.records){
+                            writer.write(record);
+                        }
+                        if(batch.afterWrite != null){
+                            batch.afterWrite.run();
+                        }
+                    } catch(Throwable e){
+                        error = e;
+                        logger.error("Unable to write records to the download", e);
+                    }
+                }
+                batch = queue.take();
+            }
+        } catch(InterruptedException e){
+            logger.warn("Download writer thread interrupted");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues the supplied batch of records to be written. Blocks while the queue is full.
+     *
+     * @param records
+     * @throws InterruptedException
+     */
+    public void writeBatch(List<String[]> records) throws InterruptedException {
+        writeBatch(records, null);
+    }
+
+    /**
+     * Queues the supplied batch of records to be written. Blocks while the queue is full.
+     *
+     * @param records
+     * @param afterWrite Run by the writer thread after the records have been written, may be null
+     * @throws InterruptedException
+     */
+    public void writeBatch(List<String[]> records, Runnable afterWrite) throws InterruptedException {
+        if(!records.isEmpty() || afterWrite != null){
+            queue.put(new Batch(records, null, afterWrite));
+        }
+    }
+
+    /**
+     * Queues a batch of records that have been encoded by a CSVRecordEncoder. Blocks while the queue is full.
+     *
+     * @param encoded
+     * @param afterWrite Run by the writer thread after the records have been written, may be null
+     * @throws InterruptedException
+     */
+    public void writeEncoded(byte[] encoded, Runnable afterWrite) throws InterruptedException {
+        if(!(writer instanceof CSVRecordWriter)){
+            throw new IllegalStateException("Encoded records can only be written to a CSVRecordWriter");
+        }
+        queue.put(new Batch(Collections.<String[]>emptyList(), encoded, afterWrite));
+    }
+
+    /**
+     * Queues a single record.
+     */
+    @Override
+    public void write(String[] record) {
+        try {
+            writeBatch(Collections.singletonList(record));
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while queuing a record for the download", e);
+        }
+    }
+
+    /**
+     * Waits for all the queued records to be written and then finalises the wrapped writer.
+     *
+     * When the calling thread is interrupted the writer thread is interrupted too, leaving the
+     * records that are still queued unwritten. The wrapped writer is only finalised once the
+     * writer thread has stopped, and the interrupt is kept for the caller.
+     */
+    @Override
+    public synchronized void finalise() {
+        if(finalised){
+            return;
+        }
+        finalised = true;
+        boolean interrupted = false;
+        try {
+            queue.put(END_OF_RECORDS);
+        } catch(InterruptedException e){
+            interrupted = true;
+        }
+        while(writerThread.isAlive()){
+            if(interrupted){
+                writerThread.interrupt();
+            }
+            try {
+                writerThread.join();
+            } catch(InterruptedException e){
+                interrupted = true;
+            }
+        }
+        if(interrupted){
+            logger.warn("Interrupted while waiting for the download writer to finish");
+            Thread.currentThread().interrupt();
+        }
+        writer.finalise();
+    }
+
+    /**
+     * @return the error that stopped the writer thread, null when all records were written.
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    private static class Batch {
+        final List<String[]> records;
+        final byte[] encoded;
+        final Runnable afterWrite;
+
+        Batch(List<String[]> records, byte[] encoded, Runnable afterWrite){
+            this.records = records;
+            this.encoded = encoded;
+            this.afterWrite = afterWrite;
+        }
+    }
+}
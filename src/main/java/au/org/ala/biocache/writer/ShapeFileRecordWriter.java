@@ -21,14 +21,11 @@ import java.util.*;
 
 import au.org.ala.biocache.util.AlaFileUtils;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang3.ArrayUtils;
+import org.geotools.data.FeatureWriter;
+import org.geotools.data.Transaction;
 import org.geotools.data.shapefile.*;
-import org.geotools.data.simple.SimpleFeatureCollection;
-import org.geotools.data.simple.SimpleFeatureSource;
-import org.geotools.data.simple.SimpleFeatureStore;
-import org.geotools.feature.FeatureCollections;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.geometry.jts.JTSFactoryFinder;
@@ -47,6 +44,10 @@ import au.org.ala.biocache.RecordWriter;
 
 /**
  * A record writer that produces a shapefile.
+ *
+ * The features are appended to the shapefile as the records are written so that the memory
+ * used does not grow with the size of the download. The shapefile is zipped straight into the
+ * output stream when the download is finalised.
  * 
  * @author Natasha Carter
  */
@@ -61,7 +62,7 @@ public class ShapeFileRecordWriter implements RecordWriter {
     private OutputStream outputStream;
     private File temporaryShapeFile;
     private int latIdx,longIdx;
-    private SimpleFeatureCollection collection = FeatureCollections.newCollection();
+    private FeatureWriter<SimpleFeatureType, SimpleFeature> featureWriter;
     private Map<String,String> headerMappings = null;
 
     /**
@@ -94,12 +95,30 @@ public class ShapeFileRecordWriter implements RecordWriter {
                 logger.error("The invalid header..." + StringUtils.join(header, "|"));
                 throw new IllegalArgumentException("A Shape File Export needs to include latitude and longitude in the headers.");
             }
+
+            featureWriter = createFeatureWriter();
             
         } catch (java.io.IOException e){
             logger.error("Unable to create the temporary file necessary for ShapeFile exporting.",e);
         }
     }
     
+    /**
+     * Creates the shapefile and returns a writer that appends the features to it. The features are
+     * written to disk as they are added (AUTO_COMMIT) rather than held in a transaction state in memory,
+     * and the shapefile is completed when the writer is closed.
+     */
+    private FeatureWriter<SimpleFeatureType, SimpleFeature> createFeatureWriter() throws java.io.IOException {
+        Map<String, Serializable> params = new HashMap<String, Serializable>();
+        params.put("url", temporaryShapeFile.toURI().toURL());
+        params.put("create spatial index", Boolean.TRUE);
+
+        ShapefileDataStore newDataStore = (ShapefileDataStore) dataStoreFactory.createNewDataStore(params);
+        newDataStore.createSchema(simpleFeature);
+        String typeName = newDataStore.getTypeNames()[0];
+        return newDataStore.getFeatureWriterAppend(typeName, Transaction.AUTO_COMMIT);
+    }
+    
     /**
      * dynamically creates the feature type based on the headers for the download
      * @param features
@@ -135,63 +154,30 @@ public class ShapeFileRecordWriter implements RecordWriter {
     }
     
     /**
-     * Indicates that the download has completed and the shape file should be generated and 
+     * Indicates that the download has completed and the shape file should be completed and 
      * written to the supplied output stream.
      */
     @Override
     public void finalise() {
-        // stream the contents of the file into the supplied outputStream
-      //Properties for the shape file construction
-        java.io.FileInputStream inputStream=null;
         try{
-            Map<String, Serializable> params = new HashMap<String, Serializable>();
-            params.put("url", temporaryShapeFile.toURI().toURL());
-            params.put("create spatial index", Boolean.TRUE);
-            
-            ShapefileDataStore newDataStore = (ShapefileDataStore) dataStoreFactory.createNewDataStore(params);
-            newDataStore.createSchema(simpleFeature);
-            String typeName = newDataStore.getTypeNames()[0];
-            SimpleFeatureSource featureSource = newDataStore.getFeatureSource(typeName);
-            //inputStream = new java.io.FileInputStream(temporaryShapeFile);
-            
-            if (featureSource instanceof SimpleFeatureStore) {
-                SimpleFeatureStore featureStore = (SimpleFeatureStore) featureSource;
-
-               // featureStore.setTransaction(transaction);
-                try {
-                    featureStore.addFeatures(collection);
-                 //   transaction.commit();
-
-                } catch (Exception problem) {
-                    logger.error(problem.getMessage(), problem);
-                   // transaction.rollback();
-
-                } finally {
-                   // transaction.close();
-                }
-                //zip the parent directory
-                String targetZipFile = temporaryShapeFile.getParentFile().getParent()+File.separator+temporaryShapeFile.getName().replace(".shp", ".zip");                
-                AlaFileUtils.createZip(temporaryShapeFile.getParent(), targetZipFile);
-                inputStream = new java.io.FileInputStream(targetZipFile);
-                //write the shapefile to the supplied output stream
-                logger.info("Copying Shape zip file to outputstream");
-                IOUtils.copy(inputStream,outputStream);
-                //now remove the temporary directory
-                FileUtils.deleteDirectory(temporaryShapeFile.getParentFile().getParentFile());
-                
-            } else {
-                logger.error(typeName + " does not support read/write access");                
+            if(featureWriter != null){
+                //completes the shapefile
+                featureWriter.close();
+                featureWriter = null;
+                //zip the parent directory straight into the supplied output stream
+                logger.info("Writing Shape zip file to outputstream");
+                AlaFileUtils.createZip(temporaryShapeFile.getParent(), outputStream);
             }
-            
         } catch (java.io.IOException e){
             logger.error("Unable to create ShapeFile", e);
         } finally {
             try {
                 outputStream.flush();
-                IOUtils.closeQuietly(inputStream);                
             } catch(Exception e){
                 logger.error("Unable to flush the file " , e);
             }
+            //now remove the temporary directory
+            FileUtils.deleteQuietly(temporaryShapeFile.getParentFile().getParentFile());
         }
     }
     
@@ -221,9 +207,15 @@ public class ShapeFileRecordWriter implements RecordWriter {
                 }
                 i++;
             }
-            //build the feature and add it to the collection
+            //build the feature and append it to the shapefile
             SimpleFeature feature = featureBuilder.buildFeature(null);
-            collection.add(feature);
+            try {
+                SimpleFeature toWrite = featureWriter.next();
+                toWrite.setAttributes(feature.getAttributes());
+                featureWriter.write();
+            } catch (java.io.IOException e){
+                throw new IllegalStateException("Unable to write the feature to the ShapeFile", e);
+            }
         } else {
             logger.debug("Not adding record with missing lat/long: " + record[0]);
         }
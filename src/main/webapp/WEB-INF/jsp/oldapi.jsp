@@ -127,7 +127,7 @@
             <li><strong>fields</strong> - a CSV list of fields to include in the download (contains a list of default)</li>
             <li><strong>extra</strong> - a CSV list of fields in include in addition to the "fields"</li>
             <li><strong>reasonTypeId</strong> - a mandatory value that indicates the reason for the download. See <a href="http://logger.ala.org.au/service/logger/reasons">reasons</a> for valid id's
-            <li><strong>fileType</strong> - the file format for the download. Valid values are csv and shp. If no value is supplied csv is assumed.
+            <li><strong>fileType</strong> - the file format for the download. Valid values are csv, shp and arrow (an Apache Arrow file that pyarrow, pandas and R can read). If no value is supplied csv is assumed.
             <li><strong>qa</strong> - A CSV list of record issues to include in the download. See <a href="${webservicesRoot}/occurrences/search?q=*:*&facets=assertions&pageSize=0&flimit=500">assertions</a> for possible values to include.  By default it will include all applicable issues. To include no issue supply none as the value (eg &qa=none)
         </ul>
         <p>
@@ -0,0 +1,141 @@
+package au.org.ala.biocache.dao;
+
+import au.org.ala.biocache.dto.DownloadDetailsDTO;
+import org.apache.commons.io.FileUtils;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadQueueJournalTest {
+
+    private File dir;
+    private File file;
+    private ObjectMapper jsonMapper;
+
+    @Before
+    public void setup() throws Exception {
+        dir = new File(System.getProperty("java.io.tmpdir"), "download-queue-journal-test");
+        FileUtils.deleteQuietly(dir);
+        FileUtils.forceMkdir(dir);
+        file = new File(dir, "queue.journal");
+        jsonMapper = new ObjectMapper();
+        jsonMapper.configure(org.codehaus.jackson.map.DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    }
+
+    private DownloadDetailsDTO createDownload(String email){
+        DownloadDetailsDTO dd = new DownloadDetailsDTO("?q=" + email, "127.0.0.1", DownloadDetailsDTO.DownloadType.RECORDS_INDEX);
+        dd.setEmail(email);
+        return dd;
+    }
+
+    private List<String> getEmails(List<DownloadDetailsDTO> downloads){
+        List<String> emails = new ArrayList<String>();
+        for(DownloadDetailsDTO dd : downloads){
+            emails.add(dd.getEmail());
+        }
+        return emails;
+    }
+
+    @Test
+    public void testReplayKeepsTheOrderTheDownloadsWereAdded() throws Exception {
+        DownloadQueueJournal journal = new DownloadQueueJournal(file, jsonMapper);
+        journal.replay();
+        DownloadDetailsDTO first = createDownload("a@test.org");
+        DownloadDetailsDTO second = createDownload("b@test.org");
+        DownloadDetailsDTO third = createDownload("c@test.org");
+        journal.add(first);
+        journal.add(second);
+        journal.add(third);
+        //saving the progress of a download doesn't move it in the queue
+        first.setTotalRecords(100);
+        journal.update(first);
+        journal.remove(second);
+        journal.close();
+
+        List<DownloadDetailsDTO> downloads = new DownloadQueueJournal(file, jsonMapper).replay();
+        assertEquals(java.util.Arrays.asList("a@test.org", "c@test.org"), getEmails(downloads));
+        assertEquals(100, downloads.get(0).getTotalRecords());
+        assertEquals(first.getId(), downloads.get(0).getId());
+    }
+
+    @Test
+    public void testPartlyWrittenLineIsIgnored() throws Exception {
+        DownloadQueueJournal journal = new DownloadQueueJournal(file, jsonMapper);
+        journal.replay();
+        journal.add(createDownload("a@test.org"));
+        journal.add(createDownload("b@test.org"));
+        journal.close();
+
+        //lose the end of the last line as if the service stopped while it was written
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 10);
+        raf.close();
+
+        journal = new DownloadQueueJournal(file, jsonMapper);
+        assertEquals(java.util.Arrays.asList("a@test.org"), getEmails(journal.replay()));
+        //the journal can be appended to after the partial line
+        journal.add(createDownload("c@test.org"));
+        journal.close();
+        assertEquals(java.util.Arrays.asList("a@test.org", "c@test.org"), getEmails(new DownloadQueueJournal(file, jsonMapper).replay()));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        DownloadQueueJournal journal = new DownloadQueueJournal(file, jsonMapper);
+        journal.replay();
+        DownloadDetailsDTO running = createDownload("a@test.org");
+        journal.add(running);
+        journal.add(createDownload("b@test.org"));
+        for(int i = 0; i < 5000; i++){
+            running.setTotalRecords(i);
+            journal.update(running);
+        }
+        //the progress updates were compacted away
+        assertTrue(file.length() < 2000 * 4 * 1024);
+        assertEquals(2, journal.size());
+        journal.close();
+
+        List<DownloadDetailsDTO> downloads = new DownloadQueueJournal(file, jsonMapper).replay();
+        assertEquals(java.util.Arrays.asList("a@test.org", "b@test.org"), getEmails(downloads));
+        assertEquals(4999, downloads.get(0).getTotalRecords());
+    }
+
+    @Test
+    public void testConcurrentAppends() throws Exception {
+        final DownloadQueueJournal journal = new DownloadQueueJournal(file, jsonMapper);
+        journal.replay();
+        //the failures of the threads, which JUnit wouldn't see
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[8];
+        for(int t = 0; t < threads.length; t++){
+            final int thread = t;
+            threads[t] = new Thread(){
+                public void run(){
+                    try {
+                        for(int i = 0; i < 100; i++){
+                            journal.add(createDownload(thread + "-" + i + "@test.org"));
+                        }
+                    } catch(Throwable e){
+                        failures.add(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for(Thread thread : threads){
+            thread.join();
+        }
+        journal.close();
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertEquals(800, new DownloadQueueJournal(file, jsonMapper).replay().size());
+    }
+}
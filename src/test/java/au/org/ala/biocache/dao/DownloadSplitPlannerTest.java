@@ -0,0 +1,168 @@
+package au.org.ala.biocache.dao;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadSplitPlannerTest {
+
+    private static final int WORKERS = 6;
+    private static final Set<String> NUMERIC_FIELDS = new HashSet<String>(Arrays.asList("month", "year"));
+
+    /**
+     * @return the time for the workers to download the splits when each one takes the next split from
+     * the queue as it finishes, with the time of a split proportional to its records.
+     */
+    private long getWallTime(List<Long> splitSizes){
+        PriorityQueue<Long> workers = new PriorityQueue<Long>();
+        for(int w = 0; w < WORKERS; w++){
+            workers.add(0L);
+        }
+        for(Long size : splitSizes){
+            workers.add(workers.poll() + size);
+        }
+        long wallTime = 0;
+        for(Long time : workers){
+            wallTime = Math.max(wallTime, time);
+        }
+        return wallTime;
+    }
+
+    private long getTotal(List<DownloadSplitPlanner.Split> splits){
+        long total = 0;
+        for(DownloadSplitPlanner.Split split : splits){
+            total += split.count;
+        }
+        return total;
+    }
+
+    /**
+     * A download where almost all the records are from one month of one year in one data resource.
+     */
+    private Map<String, Map<String, Long>> createSkewedCounts(){
+        Map<String, Map<String, Long>> counts = new LinkedHashMap<String, Map<String, Long>>();
+        Map<String, Long> months = new LinkedHashMap<String, Long>();
+        months.put("10", 900000L);
+        for(int m = 1; m <= 9; m++){
+            months.put("0" + m, 5000L);
+        }
+        counts.put("month", months);
+        Map<String, Long> years = new LinkedHashMap<String, Long>();
+        years.put("2010", 850000L);
+        years.put("2011", 95000L);
+        counts.put("year", years);
+        Map<String, Long> resources = new LinkedHashMap<String, Long>();
+        resources.put("dr359", 700000L);
+        resources.put("dr376", 300000L);
+        counts.put("data_resource_uid", resources);
+        return counts;
+    }
+
+    @Test
+    public void testSkewedDownloadIsBalanced() {
+        Map<String, Map<String, Long>> counts = createSkewedCounts();
+        List<DownloadSplitPlanner.Split> splits = new DownloadSplitPlanner(WORKERS * 4).plan(1000000, counts, NUMERIC_FIELDS);
+        assertEquals(1000000, getTotal(splits), 100);
+
+        //the old plan: one split for each month and one for the records without a month
+        List<Long> monthSplits = new ArrayList<Long>(counts.get("month").values());
+        monthSplits.add(55000L);
+        List<Long> plannedSplits = new ArrayList<Long>();
+        for(DownloadSplitPlanner.Split split : splits){
+            plannedSplits.add(split.count);
+        }
+        long monthWallTime = getWallTime(monthSplits);
+        long plannedWallTime = getWallTime(plannedSplits);
+
+        //within 30% of a perfect split between the workers
+        assertTrue(plannedWallTime < 1000000 / WORKERS * 1.3);
+        assertTrue(plannedWallTime * 4 < monthWallTime);
+        //the largest splits are handed out first
+        assertTrue(splits.get(0).count >= splits.get(splits.size() - 1).count);
+    }
+
+    @Test
+    public void testPicksTheMostEvenField() {
+        Map<String, Map<String, Long>> counts = new LinkedHashMap<String, Map<String, Long>>();
+        Map<String, Long> months = new LinkedHashMap<String, Long>();
+        months.put("01", 90L);
+        months.put("02", 10L);
+        counts.put("month", months);
+        Map<String, Long> years = new LinkedHashMap<String, Long>();
+        for(int y = 2000; y < 2010; y++){
+            years.put(Integer.toString(y), 10L);
+        }
+        counts.put("year", years);
+
+        List<DownloadSplitPlanner.Split> splits = new DownloadSplitPlanner(5).plan(100, counts, NUMERIC_FIELDS);
+        assertEquals(5, splits.size());
+        for(DownloadSplitPlanner.Split split : splits){
+            assertTrue(split.filter, split.filter.startsWith("year:[\""));
+            assertEquals(20, split.count);
+        }
+        assertEquals("year:[\"2000\" TO \"2001\"]", splits.get(0).filter);
+    }
+
+    @Test
+    public void testSplitsRecordsWithoutTheField() {
+        Map<String, Map<String, Long>> counts = new LinkedHashMap<String, Map<String, Long>>();
+        Map<String, Long> months = new LinkedHashMap<String, Long>();
+        months.put("01", 10L);
+        counts.put("month", months);
+
+        List<DownloadSplitPlanner.Split> splits = new DownloadSplitPlanner(4).plan(100, counts, NUMERIC_FIELDS);
+        assertEquals(100, getTotal(splits), 4);
+        assertTrue(splits.toString(), splits.size() >= 4);
+        assertEquals("+id:[* TO \"4\"} -month:[* TO *]", splits.get(0).filter);
+        assertEquals("month:\"01\"", splits.get(splits.size() - 1).filter);
+    }
+
+    @Test
+    public void testSmallDownloadsAreNotSplit() {
+        List<DownloadSplitPlanner.Split> splits = new DownloadSplitPlanner(1).plan(100, new LinkedHashMap<String, Map<String, Long>>(), NUMERIC_FIELDS);
+        assertEquals(1, splits.size());
+        assertEquals("*:*", splits.get(0).filter);
+    }
+
+    @Test
+    public void testStringFieldsAreSortedAsStrings() {
+        Map<String, Map<String, Long>> counts = new LinkedHashMap<String, Map<String, Long>>();
+        Map<String, Long> values = new LinkedHashMap<String, Long>();
+        for(int v = 1; v <= 12; v++){
+            values.put(Integer.toString(v), 10L);
+        }
+        counts.put("collector", values);
+
+        List<DownloadSplitPlanner.Split> splits = new DownloadSplitPlanner(4).plan(120, counts, NUMERIC_FIELDS);
+        assertEquals(4, splits.size());
+        //each value is in exactly one of the ranges when they are compared as strings
+        for(String value : values.keySet()){
+            int matches = 0;
+            for(DownloadSplitPlanner.Split split : splits){
+                if(isInRange(value, split.filter)){
+                    matches++;
+                }
+            }
+            assertEquals(value, 1, matches);
+        }
+        assertEquals("collector:[\"1\" TO \"11\"]", splits.get(0).filter);
+    }
+
+    /**
+     * @return whether the value is within a collector:["from" TO "to"] filter, comparing strings
+     */
+    private boolean isInRange(String value, String filter){
+        String[] bounds = filter.substring("collector:[\"".length(), filter.length() - "\"]".length()).split("\" TO \"");
+        return value.compareTo(bounds[0]) >= 0 && value.compareTo(bounds[1]) <= 0;
+    }
+}
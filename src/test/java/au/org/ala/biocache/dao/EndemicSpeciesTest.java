@@ -0,0 +1,76 @@
+package au.org.ala.biocache.dao;
+
+import au.org.ala.biocache.dto.FacetValues;
+import au.org.ala.biocache.dto.FieldResultDTO;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class EndemicSpeciesTest {
+
+    private static final int BATCH_SIZE = 1000;
+
+    /**
+     * @return the synthetic species of an area
+     */
+    private FacetValues createSpecies(int count){
+        FacetValues species = new FacetValues(count);
+        for(int i = 0; i < count; i++){
+            species.add("urn:lsid:biodiversity.org.au:afd.taxon:" + i, i % 100 + 1);
+        }
+        return species;
+    }
+
+    /**
+     * @return the batches of the species that also occur outside the area, every species but one in eight
+     */
+    private List<FacetValues> createBatchesOutside(FacetValues species){
+        Random random = new Random(1);
+        List<FacetValues> batches = new ArrayList<FacetValues>();
+        for(int start = 0; start < species.size(); start += BATCH_SIZE){
+            FacetValues batch = new FacetValues();
+            for(int i = start; i < Math.min(species.size(), start + BATCH_SIZE); i++){
+                if(i % 8 != 0){
+                    batch.add(species.getValue(i), random.nextInt(1000));
+                }
+            }
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    private List<FieldResultDTO> getEndemic(FacetValues species, List<FacetValues> batches){
+        EndemicSpecies endemic = new EndemicSpecies(species);
+        for(FacetValues batch : batches){
+            endemic.addOccurringOutside(batch);
+        }
+        return endemic.getEndemic();
+    }
+
+    /**
+     * The list difference the endemic species used to be worked out with.
+     */
+    private List<FieldResultDTO> getEndemicWithRemoveAll(FacetValues species, List<FacetValues> batches){
+        List<FieldResultDTO> endemic = species.toFieldResults();
+        for(FacetValues batch : batches){
+            endemic.removeAll(batch.toFieldResults());
+        }
+        return endemic;
+    }
+
+    @Test
+    public void testEndemicSpecies(){
+        FacetValues species = createSpecies(5000);
+        List<FacetValues> batches = createBatchesOutside(species);
+        List<FieldResultDTO> endemic = getEndemic(species, batches);
+        assertEquals(625, endemic.size());
+        //in the order of the species of the area, with their counts in the area
+        assertEquals(species.getValue(8), endemic.get(1).getLabel());
+        assertEquals(species.getCount(8), endemic.get(1).getCount());
+        assertEquals(getEndemicWithRemoveAll(species, batches), endemic);
+    }
+}
@@ -0,0 +1,148 @@
+package au.org.ala.biocache.dao;
+
+import org.apache.solr.client.solrj.response.FacetField;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FacetExportCursorTest {
+
+    private static final int PAGE_SIZE = 10;
+
+    /**
+     * Facets the records the way Solr does with facet.sort=index, restricted to the records that
+     * have a value after the filter value.
+     */
+    private List<FacetField.Count> facet(List<List<String>> records, final FacetExportCursor cursor, String after, int offset){
+        Map<String, Long> counts = new TreeMap<String, Long>(new Comparator<String>(){
+            public int compare(String value, String other){
+                return cursor.compare(value, other);
+            }
+        });
+        for(List<String> record : records){
+            boolean matches = after == null;
+            for(int v = 0; v < record.size() && !matches; v++){
+                matches = cursor.compare(record.get(v), after) > 0;
+            }
+            if(matches){
+                for(String value : record){
+                    Long count = counts.get(value);
+                    counts.put(value, count == null ? 1 : count + 1);
+                }
+            }
+        }
+        FacetField ff = new FacetField("field");
+        int i = 0;
+        for(Map.Entry<String, Long> entry : counts.entrySet()){
+            if(i >= offset && i < offset + PAGE_SIZE){
+                ff.add(entry.getKey(), entry.getValue());
+            }
+            i++;
+        }
+        return ff.getValues();
+    }
+
+    /**
+     * Walks the values with the cursor, putting them with their counts in exported.
+     *
+     * @return the number of pages it took
+     */
+    private int export(List<List<String>> records, boolean numeric, Map<String, Long> exported){
+        FacetExportCursor cursor = new FacetExportCursor("field", numeric, PAGE_SIZE);
+        String after = null;
+        int pages = 0;
+        while(!cursor.isFinished()){
+            pages++;
+            for(FacetField.Count value : cursor.next(facet(records, cursor, after, cursor.getOffset()))){
+                assertTrue("Exported twice " + value.getName(), !exported.containsKey(value.getName()));
+                exported.put(value.getName(), value.getCount());
+            }
+            String filter = cursor.getFilter();
+            after = filter == null ? null : filter.substring("field:{".length(), filter.length() - " TO *]".length()).replace("\\", "");
+        }
+        return pages;
+    }
+
+    private Map<String, Long> count(List<List<String>> records){
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for(List<String> record : records){
+            for(String value : record){
+                Long count = counts.get(value);
+                counts.put(value, count == null ? 1 : count + 1);
+            }
+        }
+        return counts;
+    }
+
+    @Test
+    public void testSingleValuedField(){
+        List<List<String>> records = new ArrayList<List<String>>();
+        for(int i = 0; i < 95; i++){
+            records.add(Arrays.asList("Species " + (i % 45)));
+        }
+        Map<String, Long> exported = new LinkedHashMap<String, Long>();
+        int pages = export(records, false, exported);
+        assertEquals(new TreeMap<String, Long>(count(records)), new TreeMap<String, Long>(exported));
+        //one page per PAGE_SIZE values
+        assertEquals(5, pages);
+    }
+
+    @Test
+    public void testMultiValuedField(){
+        Random random = new Random(1);
+        List<List<String>> records = new ArrayList<List<String>>();
+        for(int i = 0; i < 200; i++){
+            List<String> record = new ArrayList<String>();
+            for(int v = random.nextInt(4); v >= 0; v--){
+                String value = "value-" + random.nextInt(120);
+                if(!record.contains(value)){
+                    record.add(value);
+                }
+            }
+            records.add(record);
+        }
+        //records that span the whole range of values
+        records.add(Arrays.asList("value-0", "value-119"));
+        records.add(Arrays.asList("value-1", "value-5", "value-9", "value-99"));
+        Map<String, Long> exported = new LinkedHashMap<String, Long>();
+        export(records, false, exported);
+        assertEquals(new TreeMap<String, Long>(count(records)), new TreeMap<String, Long>(exported));
+    }
+
+    @Test
+    public void testNumericField(){
+        List<List<String>> records = new ArrayList<List<String>>();
+        for(int year = 1990; year < 2015; year++){
+            records.add(Arrays.asList(Integer.toString(year), "-" + year));
+        }
+        records.add(Arrays.asList("5", "2000"));
+        Map<String, Long> exported = new LinkedHashMap<String, Long>();
+        export(records, true, exported);
+        assertEquals(new TreeMap<String, Long>(count(records)), new TreeMap<String, Long>(exported));
+        //the values are walked in numeric order
+        List<String> values = new ArrayList<String>(exported.keySet());
+        assertEquals("-2014", values.get(0));
+        assertEquals("5", values.get(25));
+        assertEquals("2014", values.get(values.size() - 1));
+    }
+
+    @Test
+    public void testCodePointOrder(){
+        FacetExportCursor cursor = new FacetExportCursor("field", false, PAGE_SIZE);
+        assertTrue(cursor.compare("a", "b") < 0);
+        assertTrue(cursor.compare("ab", "a") > 0);
+        assertEquals(0, cursor.compare("abc", "abc"));
+        //a supplementary character comes after every character in the basic plane, as it does in the index
+        assertTrue(cursor.compare(new String(Character.toChars(0x1F600)), "\uFFFD") > 0);
+    }
+}
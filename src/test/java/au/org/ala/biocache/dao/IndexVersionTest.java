@@ -0,0 +1,105 @@
+package au.org.ala.biocache.dao;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class IndexVersionTest {
+
+    /**
+     * An index whose version is the number of times it has been read.
+     */
+    private static class TestIndexVersion extends IndexVersion {
+        final AtomicInteger reads = new AtomicInteger();
+        volatile boolean failing = false;
+        /** When set the reads after the first wait for it */
+        volatile CountDownLatch release;
+
+        @Override
+        protected long read() throws Exception {
+            int read = reads.incrementAndGet();
+            if(release != null && read > 1){
+                release.await(10, TimeUnit.SECONDS);
+            }
+            if(failing){
+                throw new Exception("The index is unavailable");
+            }
+            return read;
+        }
+    }
+
+    @Test
+    public void testCheckedOncePerInterval() throws Exception {
+        TestIndexVersion version = new TestIndexVersion();
+        assertEquals(1, version.get(60000));
+        assertEquals(1, version.get(60000));
+        assertEquals(1, version.reads.get());
+        Thread.sleep(20);
+        assertEquals(2, version.get(10));
+        assertEquals(2, version.reads.get());
+    }
+
+    @Test
+    public void testSearchesDontWaitForACheck() throws Exception {
+        final TestIndexVersion version = new TestIndexVersion();
+        assertEquals(1, version.get(0));
+        version.release = new CountDownLatch(1);
+        Thread.sleep(5);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Long> check = executor.submit(new Callable<Long>(){
+                @Override
+                public Long call() throws Exception {
+                    return version.get(0);
+                }
+            });
+            while(version.reads.get() < 2){
+                Thread.sleep(5);
+            }
+            //the version of the last check is used while the index is checked again
+            for(int i = 0; i < 10; i++){
+                assertEquals(1, version.get(0));
+            }
+            assertEquals(2, version.reads.get());
+            version.release.countDown();
+            assertEquals(Long.valueOf(2), check.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testBackOffAfterAFailure() throws Exception {
+        TestIndexVersion version = new TestIndexVersion();
+        version.failing = true;
+        for(int i = 0; i < 3; i++){
+            try {
+                version.get(60000);
+                fail("The version was never read");
+            } catch(Exception e){
+                //expected
+            }
+        }
+        //the index isn't read again until the interval has passed
+        assertEquals(1, version.reads.get());
+        version.failing = false;
+        Thread.sleep(20);
+        assertEquals(2, version.get(10));
+
+        //the last version is used when a check fails
+        version.failing = true;
+        Thread.sleep(20);
+        assertEquals(2, version.get(10));
+        assertEquals(2, version.get(10));
+        assertEquals(3, version.reads.get());
+    }
+}
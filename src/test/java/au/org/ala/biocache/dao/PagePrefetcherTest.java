@@ -0,0 +1,119 @@
+package au.org.ala.biocache.dao;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PagePrefetcherTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setup(){
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown(){
+        executor.shutdownNow();
+    }
+
+    /**
+     * Numbers the pages up to the last one.
+     */
+    private static class NumberedPages implements PagePrefetcher.Pages<Integer> {
+        final int last;
+
+        NumberedPages(int last){
+            this.last = last;
+        }
+
+        public Integer first() throws Exception {
+            return 1;
+        }
+
+        public Integer next(Integer previous) throws Exception {
+            return previous < last ? previous + 1 : null;
+        }
+    }
+
+    @Test
+    public void testAllPages() throws Exception {
+        PagePrefetcher<Integer> pages = new PagePrefetcher<Integer>(executor, 2, new NumberedPages(100));
+        for(int i = 1; i <= 100; i++){
+            assertEquals(Integer.valueOf(i), pages.take());
+        }
+        assertNull(pages.take());
+        assertNull(pages.take());
+    }
+
+    @Test
+    public void testConsumerStopsEarly() throws Exception {
+        PagePrefetcher<Integer> pages = new PagePrefetcher<Integer>(executor, 2, new NumberedPages(Integer.MAX_VALUE));
+        assertEquals(Integer.valueOf(1), pages.take());
+        //lets the producer fill the queue and block on it
+        Thread.sleep(200);
+        pages.cancel();
+        //the producer's thread is returned to the executor
+        assertTrue(executor.submit(new Callable<Boolean>(){
+            public Boolean call(){
+                return true;
+            }
+        }).get(5, TimeUnit.SECONDS));
+        assertTrue(pages.isDone());
+    }
+
+    @Test
+    public void testConsumerStopsEarlyWhenTheInterruptIsSwallowed() throws Exception {
+        //a query that swallows the interrupt, as a SOLR client can
+        PagePrefetcher<Integer> pages = new PagePrefetcher<Integer>(executor, 1, new NumberedPages(Integer.MAX_VALUE){
+            public Integer next(Integer previous) throws Exception {
+                try {
+                    Thread.sleep(50);
+                } catch(InterruptedException e){
+                    //swallowed
+                }
+                return super.next(previous);
+            }
+        });
+        assertEquals(Integer.valueOf(1), pages.take());
+        Thread.sleep(200);
+        pages.cancel();
+        assertTrue(executor.submit(new Callable<Boolean>(){
+            public Boolean call(){
+                return true;
+            }
+        }).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFailedQuery() throws Exception {
+        PagePrefetcher<Integer> pages = new PagePrefetcher<Integer>(executor, 2, new NumberedPages(Integer.MAX_VALUE){
+            public Integer next(Integer previous) throws Exception {
+                if(previous == 5){
+                    throw new IllegalStateException("The query failed");
+                }
+                return super.next(previous);
+            }
+        });
+        try {
+            for(int i = 1; i <= 5; i++){
+                assertEquals(Integer.valueOf(i), pages.take());
+            }
+            pages.take();
+            fail("The failed query should fail the download");
+        } catch(IllegalStateException e){
+            assertEquals("The query failed", e.getMessage());
+        }
+    }
+}
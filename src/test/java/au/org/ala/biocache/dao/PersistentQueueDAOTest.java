@@ -1,5 +1,6 @@
 package au.org.ala.biocache.dao;
 
+import au.org.ala.biocache.dto.DownloadCheckpoint;
 import au.org.ala.biocache.dto.DownloadDetailsDTO;
 import au.org.ala.biocache.dto.DownloadDetailsDTO.DownloadType;
 import au.org.ala.biocache.dto.DownloadRequestParams;
@@ -7,7 +8,12 @@ import org.apache.commons.io.FileUtils;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 public class PersistentQueueDAOTest {
 
@@ -65,4 +71,56 @@ public class PersistentQueueDAOTest {
         queueDAO.refreshFromPersistent();
         assertEquals(1,queueDAO.getTotalDownloads());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testResumeAfterRestart(){
+        addQueue("test1");
+        DownloadDetailsDTO dd = queueDAO.getNextDownload();
+        //a started download is not handed out again
+        assertNull(queueDAO.getNextDownload());
+
+        Map<String, String> lastKeys = new HashMap<String, String>();
+        lastKeys.put("month:01", "abc");
+        Map<String, Integer> uidStats = new HashMap<String, Integer>();
+        uidStats.put("dr1", 10);
+        dd.setCheckpoint(new DownloadCheckpoint(100, 10, java.util.Arrays.asList("month:01", "month:02"), lastKeys, Collections.singleton("month:02"), uidStats));
+        queueDAO.updateDownload(dd);
+
+        //reloading the queue simulates a restart, the download is handed out again with its progress
+        queueDAO.refreshFromPersistent();
+        DownloadDetailsDTO resumed = queueDAO.getNextDownload();
+        assertEquals(dd.getFileLocation(), resumed.getFileLocation());
+        assertEquals(100, resumed.getCheckpoint().getPosition());
+        assertEquals("abc", resumed.getCheckpoint().getLastKeys().get("month:01"));
+        assertEquals(Collections.singleton("month:02"), resumed.getCheckpoint().getCompletedSplits());
+        assertEquals(java.util.Arrays.asList("month:01", "month:02"), resumed.getCheckpoint().getSplits());
+        assertEquals(Integer.valueOf(10), resumed.getCheckpoint().getUidStats().get("dr1"));
+    }
+
+    private DownloadDetailsDTO addQueue(String title, String email, long size){
+        DownloadRequestParams params = getParams(title);
+        params.setEmail(email);
+        DownloadDetailsDTO dd = new DownloadDetailsDTO(params, "127.0.0.1", DownloadType.RECORDS_INDEX);
+        dd.setTotalRecords(size);
+        queueDAO.addDownloadToQueue(dd);
+        return dd;
+    }
+
+    @Test
+    public void testFairScheduling(){
+        DownloadDetailsDTO large1 = addQueue("large1", "a@test.org", 1000000);
+        DownloadDetailsDTO large2 = addQueue("large2", "a@test.org", 1000000);
+        DownloadDetailsDTO small = addQueue("small", "b@test.org", 100);
+        DownloadDetailsDTO unknown = addQueue("unknown", "c@test.org", -1);
+
+        //the fast lane only gets the small download
+        assertEquals(small, queueDAO.getNextDownload(1000));
+        assertNull(queueDAO.getNextDownload(1000));
+
+        assertEquals(large1, queueDAO.getNextDownload());
+        //the user with no running downloads goes before the second download of the first user
+        assertEquals(unknown, queueDAO.getNextDownload());
+        assertEquals(large2, queueDAO.getNextDownload());
+        assertNull(queueDAO.getNextDownload());
+    }
+}
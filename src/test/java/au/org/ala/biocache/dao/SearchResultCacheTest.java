@@ -0,0 +1,129 @@
+package au.org.ala.biocache.dao;
+
+import au.org.ala.biocache.dto.OccurrenceIndex;
+import au.org.ala.biocache.dto.SearchResultDTO;
+import au.org.ala.biocache.dto.SpatialSearchRequestParams;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SearchResultCacheTest {
+
+    private SpatialSearchRequestParams params(String q, String... fq){
+        SpatialSearchRequestParams params = new SpatialSearchRequestParams();
+        params.setQ(q);
+        params.setFq(fq);
+        return params;
+    }
+
+    private SearchResultDTO result(int occurrences){
+        SearchResultDTO result = new SearchResultDTO();
+        List<OccurrenceIndex> values = new ArrayList<OccurrenceIndex>();
+        for(int i = 0; i < occurrences; i++){
+            OccurrenceIndex occurrence = new OccurrenceIndex();
+            occurrence.setUuid("uuid-" + i);
+            values.add(occurrence);
+        }
+        result.setOccurrences(values);
+        result.setTotalRecords(occurrences);
+        return result;
+    }
+
+    @Test
+    public void testNormalisedKeys(){
+        String key = SearchResultCache.getKey(params("lsid:abc", "state:Victoria", "year:2000"), false, null);
+        //the order of the filters and blank filters don't matter
+        assertEquals(key, SearchResultCache.getKey(params("lsid:abc ", "year:2000", "", "state:Victoria"), false, null));
+
+        //the defaults are filled in
+        SpatialSearchRequestParams blank = params("lsid:abc", "state:Victoria", "year:2000");
+        blank.setSort("");
+        blank.setDir(null);
+        blank.setStart(null);
+        assertEquals(key, SearchResultCache.getKey(blank, false, null));
+
+        //the parameters that change the results
+        assertTrue(!key.equals(SearchResultCache.getKey(params("lsid:abc", "state:Victoria"), false, null)));
+        assertTrue(!key.equals(SearchResultCache.getKey(params("lsid:abc", "state:Victoria", "year:2000"), true, null)));
+        SpatialSearchRequestParams page = params("lsid:abc", "state:Victoria", "year:2000");
+        page.setStart(10);
+        assertTrue(!key.equals(SearchResultCache.getKey(page, false, null)));
+        Map<String, String[]> extra = new HashMap<String, String[]>();
+        extra.put("facet.method", new String[]{"enum"});
+        assertTrue(!key.equals(SearchResultCache.getKey(params("lsid:abc", "state:Victoria", "year:2000"), false, extra)));
+    }
+
+    @Test
+    public void testHitsAreCopies(){
+        SearchResultCache cache = new SearchResultCache(1000000, 1000000);
+        SpatialSearchRequestParams searched = params("lsid:abc");
+        searched.setFormattedQuery("lsid:abc OR lsid:def");
+        cache.put("key", 1, searched, result(2));
+
+        SpatialSearchRequestParams params = params("lsid:abc");
+        SearchResultDTO hit = cache.get("key", 1, params);
+        assertNotNull(hit);
+        assertEquals(2, hit.getOccurrences().size());
+        //the params are updated as the search would have
+        assertEquals("lsid:abc OR lsid:def", params.getFormattedQuery());
+
+        //changing a hit doesn't change the cached results
+        hit.getOccurrences().get(0).setUuid("changed");
+        SearchResultDTO again = cache.get("key", 1, params("lsid:abc"));
+        assertTrue(hit != again);
+        assertEquals("uuid-0", again.getOccurrences().get(0).getUuid());
+
+        assertNull(cache.get("other", 1, params("lsid:abc")));
+        assertEquals(2L, cache.getStats().get("hits"));
+        assertEquals(1L, cache.getStats().get("misses"));
+        assertEquals(2.0 / 3, (Double) cache.getStats().get("hitRatio"), 0.001);
+    }
+
+    @Test
+    public void testIndexVersionChange(){
+        SearchResultCache cache = new SearchResultCache(1000000, 1000000);
+        cache.put("key", 1, params("*:*"), result(1));
+        assertNotNull(cache.get("key", 1, params("*:*")));
+        //the index changed
+        assertNull(cache.get("key", 2, params("*:*")));
+        assertEquals(0, cache.getStats().get("entries"));
+        cache.put("key", 2, params("*:*"), result(1));
+        assertNotNull(cache.get("key", 2, params("*:*")));
+
+        //a search on an older version is neither cached nor given the cached results
+        cache.put("old", 1, params("*:*"), result(1));
+        assertNull(cache.get("key", 1, params("*:*")));
+        assertEquals(1, cache.getStats().get("entries"));
+        assertEquals(2L, cache.getStats().get("indexVersion"));
+        assertNotNull(cache.get("key", 2, params("*:*")));
+        assertNull(cache.get("old", 2, params("*:*")));
+    }
+
+    @Test
+    public void testSizeBound(){
+        long entrySize = SearchResultCache.estimateSize(result(10));
+        assertTrue(entrySize > SearchResultCache.estimateSize(result(1)));
+        SearchResultCache cache = new SearchResultCache(entrySize * 3, entrySize * 2);
+        for(int i = 0; i < 5; i++){
+            cache.put("key" + i, 1, params("*:*"), result(10));
+            //keeps the first entry in use
+            assertNotNull(cache.get("key0", 1, params("*:*")));
+        }
+        assertEquals(3, cache.getStats().get("entries"));
+        assertEquals(2L, cache.getStats().get("evictions"));
+        assertNotNull(cache.get("key4", 1, params("*:*")));
+        assertNull(cache.get("key1", 1, params("*:*")));
+
+        //results bigger than an entry can be aren't cached
+        cache.put("big", 1, params("*:*"), result(30));
+        assertNull(cache.get("big", 1, params("*:*")));
+    }
+}
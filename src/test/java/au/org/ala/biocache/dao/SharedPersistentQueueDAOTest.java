@@ -0,0 +1,208 @@
+package au.org.ala.biocache.dao;
+
+import au.org.ala.biocache.dto.DownloadCheckpoint;
+import au.org.ala.biocache.dto.DownloadDetailsDTO;
+import au.org.ala.biocache.dto.DownloadDetailsDTO.DownloadType;
+import au.org.ala.biocache.dto.DownloadRequestParams;
+import org.apache.commons.io.FileUtils;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Several nodes sharing an offline download queue, all in the one JVM.
+ */
+public class SharedPersistentQueueDAOTest {
+
+    private static final long LEASE_DURATION = 1000;
+
+    private File directory;
+    private List<JsonPersistentQueueDAOImpl> nodes = new ArrayList<JsonPersistentQueueDAOImpl>();
+
+    @Before
+    public void setup() throws Exception {
+        directory = new File(System.getProperty("java.io.tmpdir"), "shared-download-queue-test");
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @After
+    public void tearDown(){
+        for(JsonPersistentQueueDAOImpl node : nodes){
+            node.shutdown();
+        }
+    }
+
+    private JsonPersistentQueueDAOImpl createNode(String nodeId){
+        JsonPersistentQueueDAOImpl node = new JsonPersistentQueueDAOImpl();
+        node.setCacheDirectory(directory.getAbsolutePath());
+        node.setNodeId(nodeId);
+        node.setLeaseDuration(LEASE_DURATION);
+        node.init();
+        nodes.add(node);
+        return node;
+    }
+
+    private DownloadDetailsDTO addDownload(JsonPersistentQueueDAOImpl node, String query) throws Exception {
+        DownloadRequestParams params = new DownloadRequestParams();
+        params.setQ(query);
+        params.setFile(query);
+        params.setEmail(query + "@test.org");
+        DownloadDetailsDTO dd = new DownloadDetailsDTO(params, "127.0.0.1", DownloadType.RECORDS_INDEX);
+        node.addDownloadToQueue(dd);
+        //the downloads are ordered by the time they were requested
+        Thread.sleep(5);
+        return dd;
+    }
+
+    @Test
+    public void testNodesShareTheQueue() throws Exception {
+        JsonPersistentQueueDAOImpl a = createNode("a");
+        JsonPersistentQueueDAOImpl b = createNode("b");
+        DownloadDetailsDTO first = addDownload(a, "first");
+        DownloadDetailsDTO second = addDownload(a, "second");
+
+        //the idle node performs the download queued by the other node
+        DownloadDetailsDTO taken = b.getNextDownload();
+        assertEquals(first.getId(), taken.getId());
+        assertEquals(second.getId(), a.getNextDownload().getId());
+        assertNull(a.getNextDownload());
+        assertNull(b.getNextDownload());
+
+        //the node that queued the download removes it from its journal once it has been performed
+        b.removeDownloadFromQueue(taken);
+        assertNull(a.getNextDownload());
+        assertEquals(1, a.getTotalDownloads());
+        assertEquals(1, createNode("c").getTotalDownloads());
+    }
+
+    @Test
+    public void testLeaseIsRenewed() throws Exception {
+        JsonPersistentQueueDAOImpl a = createNode("a");
+        JsonPersistentQueueDAOImpl b = createNode("b");
+        addDownload(a, "first");
+        assertNotNull(b.getNextDownload());
+        Thread.sleep(LEASE_DURATION * 2);
+        assertNull(a.getNextDownload());
+    }
+
+    @Test
+    public void testLeaseIsReclaimedFromADeadNode() throws Exception {
+        JsonPersistentQueueDAOImpl a = createNode("a");
+        JsonPersistentQueueDAOImpl b = createNode("b");
+        addDownload(a, "first");
+        DownloadDetailsDTO taken = b.getNextDownload();
+        taken.setCheckpoint(new DownloadCheckpoint(100, 10, Collections.singletonList("*:*"), new HashMap<String, String>(),
+                new HashSet<String>(), new HashMap<String, Integer>()));
+        b.updateDownload(taken);
+        //the node stops renewing its leases
+        b.shutdown();
+        assertNull(a.getNextDownload());
+
+        Thread.sleep(LEASE_DURATION + 500);
+        DownloadDetailsDTO reclaimed = a.getNextDownload();
+        assertEquals(taken.getId(), reclaimed.getId());
+        //the download resumes from the progress of the dead node
+        assertEquals(100, reclaimed.getCheckpoint().getPosition());
+        assertEquals(taken.getFileLocation(), reclaimed.getFileLocation());
+
+        //the node that lost the lease stops the download
+        b.renewLeases();
+        assertTrue(taken.isCancelled());
+        assertTrue(b.isLeaseLost(taken));
+        assertFalse(a.isLeaseLost(reclaimed));
+    }
+
+    @Test
+    public void testLeaseReclaimedByAnotherNodeFirst() throws Exception {
+        File leaseDirectory = new File(directory, "leases");
+        FileUtils.forceMkdir(leaseDirectory);
+        DownloadLeases a = new DownloadLeases(leaseDirectory, "a", LEASE_DURATION, new ObjectMapper());
+        DownloadLeases b = new DownloadLeases(leaseDirectory, "b", LEASE_DURATION, new ObjectMapper());
+        DownloadLeases c = new DownloadLeases(leaseDirectory, "c", LEASE_DURATION, new ObjectMapper());
+        DownloadDetailsDTO dd = new DownloadDetailsDTO("?q=*:*", "127.0.0.1", DownloadType.RECORDS_INDEX);
+        assertTrue(b.acquire(dd));
+        //the node stops renewing its lease
+        File lease = new File(leaseDirectory, dd.getId() + ".lease");
+        assertTrue(lease.setLastModified(System.currentTimeMillis() - LEASE_DURATION * 2));
+        long expired = lease.lastModified();
+
+        //a finds the lease of b has expired, then c reclaims it before a does
+        assertTrue(c.acquire(dd));
+        assertFalse(a.reclaim(dd.getId(), "b", expired));
+        assertEquals("c", FileUtils.readFileToString(lease, "UTF-8"));
+        assertTrue(a.isLeased(dd.getId()));
+        assertTrue(c.renew().isEmpty());
+        assertEquals(1, b.renew().size());
+        assertEquals(1, leaseDirectory.list().length);
+
+        //the lease that was found is reclaimed
+        assertTrue(lease.setLastModified(expired));
+        assertTrue(a.reclaim(dd.getId(), "c", expired));
+        assertFalse(lease.exists());
+        assertEquals(0, leaseDirectory.list().length);
+    }
+
+    @Test
+    public void testCancelledOnAnotherNode() throws Exception {
+        JsonPersistentQueueDAOImpl a = createNode("a");
+        JsonPersistentQueueDAOImpl b = createNode("b");
+        DownloadDetailsDTO queued = addDownload(a, "first");
+        DownloadDetailsDTO taken = b.getNextDownload();
+        a.removeDownloadFromQueue(queued);
+        b.renewLeases();
+        assertTrue(taken.isCancelled());
+        assertFalse(b.isLeaseLost(taken));
+    }
+
+    @Test
+    public void testEachDownloadIsPerformedOnce() throws Exception {
+        final JsonPersistentQueueDAOImpl a = createNode("a");
+        for(int i = 0; i < 30; i++){
+            addDownload(a, "download" + i);
+        }
+        final Set<String> performed = Collections.synchronizedSet(new HashSet<String>());
+        final AtomicInteger duplicates = new AtomicInteger();
+        List<Thread> workers = new ArrayList<Thread>();
+        for(int n = 0; n < 3; n++){
+            final JsonPersistentQueueDAOImpl node = n == 0 ? a : createNode("worker" + n);
+            for(int t = 0; t < 2; t++){
+                Thread worker = new Thread(){
+                    public void run(){
+                        DownloadDetailsDTO dd;
+                        while((dd = node.getNextDownload()) != null){
+                            if(!performed.add(dd.getId())){
+                                duplicates.incrementAndGet();
+                            }
+                            node.removeDownloadFromQueue(dd);
+                        }
+                    }
+                };
+                workers.add(worker);
+                worker.start();
+            }
+        }
+        for(Thread worker : workers){
+            worker.join();
+        }
+        assertEquals(0, duplicates.get());
+        assertEquals(30, performed.size());
+        assertNull(a.getNextDownload());
+        assertEquals(0, a.getTotalDownloads());
+    }
+}
@@ -0,0 +1,188 @@
+package au.org.ala.biocache.dao;
+
+import au.org.ala.biocache.dto.FacetValues;
+import au.org.ala.biocache.dto.FieldResultDTO;
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SpeciesGridIndexTest {
+
+    /**
+     * A box in the south east of Australia.
+     */
+    private static final SpeciesGridIndex.Area BOX = new SpeciesGridIndex.Area(){
+        public boolean contains(double lat, double lng){
+            return lat >= -38 && lat <= -34 && lng >= 145 && lng <= 151;
+        }
+    };
+
+    private SpeciesGridIndex index(){
+        SpeciesGridIndex.Builder builder = new SpeciesGridIndex.Builder(0.1);
+        //only in the box
+        builder.add("a", "-35.3,149.1", 10);
+        builder.add("a", "-37.8,145.0", 5);
+        //in and out of the box
+        builder.add("b", "-35.3,149.1", 2);
+        builder.add("b", "-27.5,153.0", 7);
+        //only out of the box
+        builder.add("c", "-31.9,115.9", 3);
+        //the same cell twice
+        builder.add("d", "-36.0,147.0", 1);
+        builder.add("d", "-36.0,147.0", 4);
+        return builder.build();
+    }
+
+    private void assertValues(FacetValues values, Object... expected){
+        assertEquals(expected.length / 2, values.size());
+        for(int i = 0; i < values.size(); i++){
+            assertEquals(expected[i * 2], values.getValue(i));
+            assertEquals(((Number) expected[i * 2 + 1]).longValue(), values.getCount(i));
+        }
+    }
+
+    @Test
+    public void testSpeciesInArea(){
+        SpeciesGridIndex index = index();
+        assertEquals(4, index.getSpeciesCount());
+        assertEquals(5, index.getCellCount());
+
+        BitSet box = index.getCells(-38, 145, -34, 151, BOX);
+        assertEquals(3, box.cardinality());
+        assertValues(index.getSpeciesIn(box), "a", 15, "b", 2, "d", 5);
+    }
+
+    @Test
+    public void testEndemicToArea(){
+        SpeciesGridIndex index = index();
+        assertValues(index.getEndemicTo(index.getCells(-38, 145, -34, 151, BOX)), "a", 15, "d", 5);
+        //nothing is endemic to an empty area
+        assertValues(index.getEndemicTo(new BitSet()));
+        //everything is endemic to the world
+        BitSet world = index.getCells(-90, -180, 90, 180, new SpeciesGridIndex.Area(){
+            public boolean contains(double lat, double lng){
+                return true;
+            }
+        });
+        assertValues(index.getEndemicTo(world), "a", 15, "b", 9, "c", 3, "d", 5);
+    }
+
+    @Test
+    public void testRecordsWithoutPoint(){
+        SpeciesGridIndex.Builder builder = new SpeciesGridIndex.Builder(0.1);
+        builder.add("a", "-35.3,149.1", 10);
+        builder.add("b", "-35.3,149.1", 2);
+        builder.addWithoutPoint("b", 1);
+        builder.addWithoutPoint("c", 4);
+        SpeciesGridIndex index = builder.build();
+        assertEquals(1, index.getCellCount());
+
+        //a species with records without coordinates is in the area but not endemic to it
+        BitSet box = index.getCells(-38, 145, -34, 151, BOX);
+        assertValues(index.getSpeciesIn(box), "a", 10, "b", 2);
+        assertValues(index.getEndemicTo(box), "a", 10);
+        BitSet world = index.getCells(-90, -180, 90, 180, new SpeciesGridIndex.Area(){
+            public boolean contains(double lat, double lng){
+                return true;
+            }
+        });
+        assertValues(index.getEndemicTo(world), "a", 10);
+    }
+
+    /**
+     * The endemic species of the grid index are the species of the area less the species that
+     * occur outside it, as they are worked out from SOLR.
+     */
+    @Test
+    public void testEndemicMatchesTheSetDifference(){
+        Random random = new Random(1);
+        SpeciesGridIndex.Builder builder = new SpeciesGridIndex.Builder(0.1);
+        Map<String, Long> inside = new LinkedHashMap<String, Long>();
+        FacetValues outside = new FacetValues();
+        for(int i = 0; i < 20000; i++){
+            int s = random.nextInt(500);
+            String species = "species" + s;
+            //the records are at the centres of the cells in and around the box, the first species only in the box
+            int row = s < 100 ? 21 + random.nextInt(39) : random.nextInt(100);
+            int col = s < 100 ? 21 + random.nextInt(59) : random.nextInt(100);
+            if(row == 20 || row == 60 || col == 20 || col == 80){
+                //not on the edge of the box
+                continue;
+            }
+            double lat = -40 + row / 10.0;
+            double lng = 143 + col / 10.0;
+            if(random.nextInt(200) == 0){
+                builder.addWithoutPoint(species, 1);
+                outside.add(species, 1);
+            } else {
+                builder.add(species, lat + "," + lng, 1);
+                if(BOX.contains(lat, lng)){
+                    inside.put(species, inside.containsKey(species) ? inside.get(species) + 1 : 1);
+                } else {
+                    outside.add(species, 1);
+                }
+            }
+        }
+        SpeciesGridIndex index = builder.build();
+        FacetValues species = new FacetValues();
+        for(Map.Entry<String, Long> entry : inside.entrySet()){
+            species.add(entry.getKey(), entry.getValue());
+        }
+        EndemicSpecies expected = new EndemicSpecies(species);
+        expected.addOccurringOutside(outside);
+        List<FieldResultDTO> endemic = expected.getEndemic();
+        //some of the species only in the box have records without a point
+        assertTrue(endemic.size() > 0 && endemic.size() < 100);
+
+        FacetValues actual = index.getEndemicTo(index.getCells(-38, 145, -34, 151, BOX));
+        assertEquals(endemic.size(), actual.size());
+        for(FieldResultDTO result : endemic){
+            int i = actual.getValues().indexOf(result.getLabel());
+            assertTrue(result.getLabel(), i >= 0);
+            assertEquals(result.getCount(), actual.getCount(i));
+        }
+    }
+
+    @Test
+    public void testRadius(){
+        SpeciesGridIndex index = index();
+        //Canberra to Sydney is about 250km
+        assertEquals(247, SpeciesGridIndex.distance(-35.3, 149.1, -33.9, 151.2), 5);
+        assertValues(index.getSpeciesIn(index.getCellsWithin(-35.28, 149.13, 10)), "a", 10, "b", 2);
+        assertValues(index.getSpeciesIn(index.getCellsWithin(-35.28, 149.13, 250)), "a", 10, "b", 2, "d", 5);
+        assertValues(index.getEndemicTo(index.getCellsWithin(-35.28, 149.13, 250)), "d", 5);
+        //a circle across the date line
+        SpeciesGridIndex.Builder builder = new SpeciesGridIndex.Builder(1);
+        builder.add("fiji", "-17,179", 1);
+        builder.add("samoa", "-14,-172", 1);
+        SpeciesGridIndex pacific = builder.build();
+        assertValues(pacific.getSpeciesIn(pacific.getCellsWithin(-17, 180, 200)), "fiji", 1);
+    }
+
+    @Test
+    public void testInvalidPoints(){
+        SpeciesGridIndex.Builder builder = new SpeciesGridIndex.Builder(0.1);
+        for(String point : new String[]{"-35.3", "-91,0", "0,181"}){
+            try {
+                builder.add("a", point, 1);
+                fail("Accepted " + point);
+            } catch(IllegalArgumentException e){
+                assertTrue(e.getMessage().contains(point));
+            }
+        }
+        try {
+            new SpeciesGridIndex.Builder(0.0001);
+            fail("Accepted a grid with more cells than can be numbered");
+        } catch(IllegalArgumentException e){
+            //expected
+        }
+    }
+}
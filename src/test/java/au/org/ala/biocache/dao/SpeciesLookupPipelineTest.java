@@ -0,0 +1,152 @@
+package au.org.ala.biocache.dao;
+
+import au.org.ala.biocache.RecordWriter;
+import au.org.ala.biocache.service.SpeciesLookupService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SpeciesLookupPipelineTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setup(){
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown(){
+        executor.shutdownNow();
+    }
+
+    /**
+     * Looks up species after a random delay, recording how many lookups run at once.
+     */
+    private static class SlowSpeciesLookupService implements SpeciesLookupService {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger lookups = new AtomicInteger();
+        final Random random = new Random(1);
+        volatile long latency;
+        String failOn = null;
+
+        SlowSpeciesLookupService(long latency){
+            this.latency = latency;
+        }
+
+        public List<String[]> getSpeciesDetails(List<String> guids, List<Long> counts, boolean includeCounts, boolean includeSynonyms){
+            int now = running.incrementAndGet();
+            synchronized(maxRunning){
+                maxRunning.set(Math.max(maxRunning.get(), now));
+            }
+            lookups.incrementAndGet();
+            try {
+                long delay;
+                synchronized(random){
+                    delay = latency + random.nextInt(5);
+                }
+                Thread.sleep(delay);
+            } catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            } finally {
+                running.decrementAndGet();
+            }
+            List<String[]> rows = new ArrayList<String[]>();
+            for(int i = 0; i < guids.size(); i++){
+                if(guids.get(i).equals(failOn)){
+                    throw new IllegalStateException("The lookup of " + failOn + " failed");
+                }
+                rows.add(new String[]{guids.get(i), "Species " + guids.get(i), counts.get(i).toString()});
+            }
+            return rows;
+        }
+
+        public String getGuidForName(String name){ return null; }
+        public String getAcceptedNameForGuid(String guid){ return null; }
+        public List<String> getNamesForGuids(List<String> guids){ return null; }
+        public List<Map<String, String>> getNameDetailsForGuids(List<String> guids){ return null; }
+        public Map<String, List<Map<String, String>>> getSynonymDetailsForGuids(List<String> guids){ return null; }
+        public String[] getHeaderDetails(String field, boolean includeCounts, boolean includeSynonyms){ return null; }
+    }
+
+    private static class ListRecordWriter implements RecordWriter {
+        final List<String[]> rows = Collections.synchronizedList(new ArrayList<String[]>());
+        public void write(String[] record){
+            rows.add(record);
+        }
+        public void finalise(){}
+    }
+
+    @Test
+    public void testRowsAreWrittenInOrder() throws Exception {
+        SlowSpeciesLookupService service = new SlowSpeciesLookupService(5);
+        ListRecordWriter writer = new ListRecordWriter();
+        SpeciesLookupPipeline pipeline = new SpeciesLookupPipeline(service, executor, 3, true, false, writer);
+        for(int i = 0; i < 5000; i++){
+            pipeline.add("guid" + i, i);
+        }
+        pipeline.finish();
+
+        assertEquals(5000, writer.rows.size());
+        for(int i = 0; i < 5000; i++){
+            assertEquals("guid" + i, writer.rows.get(i)[0]);
+            assertEquals(Integer.toString(i), writer.rows.get(i)[2]);
+        }
+        //the lookups ran concurrently, but no more than were allowed in flight
+        assertTrue(service.maxRunning.get() > 1);
+        assertTrue(service.maxRunning.get() <= 3);
+    }
+
+    @Test
+    public void testBatchSizeAdapts() throws Exception {
+        SlowSpeciesLookupService fast = new SlowSpeciesLookupService(1);
+        SpeciesLookupPipeline pipeline = new SpeciesLookupPipeline(fast, executor, 2, false, false, new ListRecordWriter());
+        for(int i = 0; i < 20000; i++){
+            pipeline.add("guid" + i, i);
+        }
+        pipeline.finish();
+        assertEquals(SpeciesLookupPipeline.MAX_BATCH_SIZE, pipeline.getBatchSize());
+        //far fewer lookups than batches of the minimum size
+        assertTrue(fast.lookups.get() < 20000 / SpeciesLookupPipeline.MIN_BATCH_SIZE / 4);
+
+        //the batches shrink again once the lookups slow down
+        fast.latency = SpeciesLookupPipeline.TARGET_LATENCY + 100;
+        for(int i = 0; i < SpeciesLookupPipeline.MAX_BATCH_SIZE * 2; i++){
+            pipeline.add("guid" + i, i);
+        }
+        pipeline.finish();
+        assertTrue(pipeline.getBatchSize() < SpeciesLookupPipeline.MAX_BATCH_SIZE);
+    }
+
+    @Test
+    public void testFailedLookup() throws Exception {
+        SlowSpeciesLookupService service = new SlowSpeciesLookupService(1);
+        service.failOn = "guid100";
+        SpeciesLookupPipeline pipeline = new SpeciesLookupPipeline(service, executor, 2, false, false, new ListRecordWriter());
+        try {
+            for(int i = 0; i < 1000; i++){
+                pipeline.add("guid" + i, i);
+            }
+            pipeline.finish();
+            fail("The failed lookup should fail the download");
+        } catch(IllegalStateException e){
+            assertEquals("The lookup of guid100 failed", e.getMessage());
+        } finally {
+            pipeline.cancel();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package au.org.ala.biocache.dto;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DownloadEstimateDTOTest {
+
+    @Test
+    public void testDownloadLimits(){
+        DownloadEstimateDTO estimate = new DownloadEstimateDTO();
+        estimate.setTotalRecords(1000);
+        estimate.setRecords(1000);
+        estimate.addDownloadLimit("dr1", 600, 100);
+        estimate.addDownloadLimit("dr2", 300, 250);
+
+        assertEquals(1000, estimate.getTotalRecords());
+        assertEquals(450, estimate.getRecords());
+        assertEquals(Integer.valueOf(100), estimate.getDownloadLimits().get("dr1"));
+        assertEquals(Integer.valueOf(250), estimate.getDownloadLimits().get("dr2"));
+        assertEquals(Long.valueOf(500), estimate.getLimitedRecords().get("dr1"));
+        assertEquals(Long.valueOf(50), estimate.getLimitedRecords().get("dr2"));
+    }
+}
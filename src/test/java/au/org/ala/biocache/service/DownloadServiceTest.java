@@ -0,0 +1,188 @@
+package au.org.ala.biocache.service;
+
+import au.org.ala.biocache.dao.PersistentQueueDAO;
+import au.org.ala.biocache.dao.SearchDAO;
+import au.org.ala.biocache.dto.DownloadDetailsDTO;
+import au.org.ala.biocache.dto.DownloadDetailsDTO.DownloadType;
+import au.org.ala.biocache.dto.DownloadEstimateDTO;
+import au.org.ala.biocache.dto.DownloadRequestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadServiceTest {
+
+    private DownloadService downloadService;
+    private QueueDAO queue;
+
+    /**
+     * A queue held in memory.
+     */
+    private static class QueueDAO implements PersistentQueueDAO {
+        final List<DownloadDetailsDTO> downloads = Collections.synchronizedList(new ArrayList<DownloadDetailsDTO>());
+        final List<DownloadDetailsDTO> removed = new ArrayList<DownloadDetailsDTO>();
+        boolean leaseLost = false;
+
+        public void addDownloadToQueue(DownloadDetailsDTO download){
+            downloads.add(download);
+        }
+
+        public void updateDownload(DownloadDetailsDTO download){
+        }
+
+        public DownloadDetailsDTO getNextDownload(){
+            return null;
+        }
+
+        public DownloadDetailsDTO getNextDownload(long maxRecords){
+            return null;
+        }
+
+        public int getTotalDownloads(){
+            return downloads.size();
+        }
+
+        public void removeDownloadFromQueue(DownloadDetailsDTO download){
+            downloads.remove(download);
+            removed.add(download);
+        }
+
+        public boolean isLeaseLost(DownloadDetailsDTO download){
+            return leaseLost;
+        }
+
+        public List<DownloadDetailsDTO> getAllDownloads(){
+            return downloads;
+        }
+
+        public void refreshFromPersistent(){
+        }
+    }
+
+    @Before
+    public void setup(){
+        downloadService = new DownloadService();
+        queue = new QueueDAO();
+        downloadService.persistentQueueDAO = queue;
+    }
+
+    @Test
+    public void testCancelQueuedDownload(){
+        //a download that is waiting for a download thread has no file yet
+        DownloadDetailsDTO dd = new DownloadDetailsDTO("?q=*:*", "127.0.0.1", DownloadType.RECORDS_INDEX);
+        queue.addDownloadToQueue(dd);
+
+        assertTrue(downloadService.cancelDownload(dd.getId()));
+        assertTrue(dd.isCancelled());
+        assertEquals(0, queue.getTotalDownloads());
+        assertEquals(1, queue.removed.size());
+    }
+
+    @Test
+    public void testCancelActiveDownload(){
+        DownloadDetailsDTO dd = new DownloadDetailsDTO("?q=*:*", "127.0.0.1", DownloadType.RECORDS_INDEX);
+        downloadService.getCurrentDownloads().add(dd);
+
+        assertTrue(downloadService.cancelDownload(dd.getId()));
+        assertTrue(dd.isCancelled());
+        assertTrue(dd.isIncomplete());
+        //an online download isn't queued
+        assertTrue(queue.removed.isEmpty());
+
+        assertFalse(downloadService.cancelDownload("unknown"));
+    }
+
+    @Test
+    public void testCancelledOfflineDownloadLeavesTheQueue() throws Exception {
+        DownloadDetailsDTO dd = new DownloadDetailsDTO("?q=*:*", "127.0.0.1", DownloadType.RECORDS_INDEX);
+        File partialFile = File.createTempFile("download", ".tmp");
+        dd.setFileLocation(partialFile.getAbsolutePath() + ".zip");
+        queue.addDownloadToQueue(dd);
+        dd.setCancelled(true);
+
+        downloadService.discardCancelledDownload(dd, partialFile);
+        assertFalse(partialFile.exists());
+        //so it isn't performed again after a restart
+        assertEquals(0, queue.getTotalDownloads());
+    }
+
+    @Test
+    public void testDownloadTakenOverByAnotherNodeStaysQueued() throws Exception {
+        DownloadDetailsDTO dd = new DownloadDetailsDTO("?q=*:*", "127.0.0.1", DownloadType.RECORDS_INDEX);
+        File partialFile = File.createTempFile("download", ".tmp");
+        dd.setFileLocation(partialFile.getAbsolutePath() + ".zip");
+        queue.addDownloadToQueue(dd);
+        queue.leaseLost = true;
+        dd.setCancelled(true);
+
+        downloadService.discardCancelledDownload(dd, partialFile);
+        assertFalse(partialFile.exists());
+        assertEquals(1, queue.getTotalDownloads());
+    }
+
+    @Test
+    public void testThroughput(){
+        DownloadService.Throughput throughput = new DownloadService.Throughput();
+        assertEquals(250, throughput.getBytesPerRecord(250), 0);
+        assertEquals(5000, throughput.getRecordsPerSecond(5000), 0);
+
+        //too small to measure
+        throughput.add(999, 1000000, 1);
+        assertEquals(250, throughput.getBytesPerRecord(250), 0);
+
+        throughput.add(10000, 1000000, 2000);
+        assertEquals(100, throughput.getBytesPerRecord(250), 0);
+        assertEquals(5000, throughput.getRecordsPerSecond(1), 0);
+
+        //the latest download has a weight of 0.2
+        throughput.add(10000, 2000000, 1000);
+        assertEquals(120, throughput.getBytesPerRecord(250), 0.0001);
+        assertEquals(6000, throughput.getRecordsPerSecond(1), 0.0001);
+
+        //a download measured at no time at all
+        throughput.add(1000, 100000, 0);
+        assertEquals(116, throughput.getBytesPerRecord(250), 0.0001);
+        assertEquals(6000 + 0.2 * (1000000 - 6000), throughput.getRecordsPerSecond(1), 0.0001);
+    }
+
+    @Test
+    public void testEstimateDownload() throws Exception {
+        downloadService.searchDAO = (SearchDAO) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{SearchDAO.class}, new InvocationHandler(){
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args){
+                assertEquals("estimateDownload", method.getName());
+                DownloadEstimateDTO counts = new DownloadEstimateDTO();
+                counts.setTotalRecords(1200000);
+                counts.setRecords(1200000);
+                counts.addDownloadLimit("dr1", 300000, 100000);
+                return counts;
+            }
+        });
+
+        //the defaults until a download has been measured
+        DownloadEstimateDTO estimate = downloadService.estimateDownload(new DownloadRequestParams(), false);
+        assertEquals(1000000, estimate.getRecords());
+        assertEquals(250000000, estimate.getEstimatedBytes());
+        assertEquals(200000, estimate.getEstimatedDuration());
+        assertFalse(estimate.isOffline());
+
+        //downloads that take longer than the offline duration should be offline
+        downloadService.offlineDuration = 100000;
+        assertTrue(downloadService.estimateDownload(new DownloadRequestParams(), false).isOffline());
+        downloadService.defaultRecordsPerSecond = 10000;
+        assertEquals(100000, downloadService.estimateDownload(new DownloadRequestParams(), false).getEstimatedDuration());
+        assertFalse(downloadService.estimateDownload(new DownloadRequestParams(), false).isOffline());
+    }
+}
@@ -0,0 +1,134 @@
+package au.org.ala.biocache.util;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.client.RestOperations;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CitationCacheTest {
+
+    private CitationCache citationCache;
+    private CitationService service;
+
+    /**
+     * A citation service that has a citation for every uid except "unknown" and records the uids
+     * of each request.
+     */
+    private static class CitationService implements InvocationHandler {
+        final List<Set<String>> requests = Collections.synchronizedList(new ArrayList<Set<String>>());
+        /** When set the requests made in the background wait for it */
+        volatile CountDownLatch release;
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            assertEquals("postForObject", method.getName());
+            Set<String> uids = new LinkedHashSet<String>((Collection<String>) args[1]);
+            requests.add(uids);
+            if(release != null && Thread.currentThread().getName().startsWith("citation-lookup")){
+                release.await(10, TimeUnit.SECONDS);
+            }
+            List<Map<String, Object>> records = new ArrayList<Map<String, Object>>();
+            for(String uid : uids){
+                if(!"unknown".equals(uid)){
+                    Map<String, Object> record = new HashMap<String, Object>();
+                    record.put("uid", uid);
+                    record.put("name", "Resource " + uid);
+                    records.add(record);
+                }
+            }
+            return records;
+        }
+    }
+
+    @Before
+    public void setup(){
+        service = new CitationService();
+        citationCache = new CitationCache();
+        citationCache.restTemplate = (RestOperations) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{RestOperations.class}, service);
+    }
+
+    @Test
+    public void testOnlyMissingUidsAreRequested(){
+        List<Map<String, Object>> citations = citationCache.getCitations(Arrays.asList("dr1", "dr2", "unknown"));
+        assertEquals(2, citations.size());
+        assertEquals("dr1", citations.get(0).get("uid"));
+        assertEquals("dr2", citations.get(1).get("uid"));
+
+        citations = citationCache.getCitations(Arrays.asList("dr2", "dr3", "unknown", "dr1"));
+        assertEquals(3, citations.size());
+        assertEquals("dr3", citations.get(1).get("uid"));
+        //a uid without a citation is cached as well
+        assertEquals(2, service.requests.size());
+        assertEquals(new LinkedHashSet<String>(Arrays.asList("dr3")), service.requests.get(1));
+
+        citationCache.load(Arrays.asList("dr1", "dr3"));
+        assertEquals(2, service.requests.size());
+    }
+
+    @Test
+    public void testExpiredCitationIsRequestedAgain() throws Exception {
+        citationCache.ttl = 20;
+        citationCache.getCitations(Arrays.asList("dr1"));
+        citationCache.getCitations(Arrays.asList("dr1"));
+        assertEquals(1, service.requests.size());
+
+        Thread.sleep(50);
+        assertEquals(2, citationCache.getCitations(Arrays.asList("dr1", "dr2")).size());
+        assertEquals(2, service.requests.size());
+        assertEquals(new LinkedHashSet<String>(Arrays.asList("dr1", "dr2")), service.requests.get(1));
+    }
+
+    @Test
+    public void testRefreshAheadOncePerUid() throws Exception {
+        //every use of a cached citation is old enough to refresh it
+        citationCache.refreshAhead = 0;
+        service.release = new CountDownLatch(1);
+        citationCache.getCitations(Arrays.asList("dr1", "dr2"));
+        Thread.sleep(5);
+
+        //the cached citations are returned while they are refreshed
+        for(int i = 0; i < 3; i++){
+            assertEquals(2, citationCache.getCitations(Arrays.asList("dr1", "dr2")).size());
+        }
+        waitForRequests(2);
+        assertEquals(new LinkedHashSet<String>(Arrays.asList("dr1", "dr2")), service.requests.get(1));
+
+        //a uid that isn't being refreshed has its own refresh
+        assertEquals(3, citationCache.getCitations(Arrays.asList("dr1", "dr2", "dr3")).size());
+        Thread.sleep(5);
+        citationCache.getCitations(Arrays.asList("dr3"));
+        waitForRequests(4);
+        assertEquals(new LinkedHashSet<String>(Arrays.asList("dr3")), service.requests.get(2));
+        assertEquals(new LinkedHashSet<String>(Arrays.asList("dr3")), service.requests.get(3));
+
+        service.release.countDown();
+        Thread.sleep(100);
+        assertEquals(4, service.requests.size());
+    }
+
+    private void waitForRequests(int count) throws InterruptedException {
+        for(int i = 0; i < 100 && service.requests.size() < count; i++){
+            Thread.sleep(20);
+        }
+        assertTrue(service.requests.size() >= count);
+    }
+}
@@ -0,0 +1,70 @@
+package au.org.ala.biocache.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadThrottleTest {
+
+    private DownloadThrottle throttle(){
+        DownloadThrottle throttle = new DownloadThrottle();
+        throttle.setTargetLatency(500);
+        throttle.setMinDelay(10);
+        throttle.setMaxDelay(1000);
+        return throttle;
+    }
+
+    @Test
+    public void testAverageLatency(){
+        DownloadThrottle throttle = throttle();
+        throttle.recordLatency(400);
+        assertEquals(400, throttle.getAverageLatency());
+        //the latest latency has a weight of 0.2
+        throttle.recordLatency(900);
+        assertEquals(500, throttle.getAverageLatency());
+        throttle.recordLatency(1000);
+        assertEquals(600, throttle.getAverageLatency());
+    }
+
+    @Test
+    public void testDelay(){
+        DownloadThrottle throttle = throttle();
+        assertEquals(10, throttle.getDelay());
+        //under the target latency
+        throttle.recordLatency(500);
+        assertEquals(10, throttle.getDelay());
+
+        //the excess latency for each active download
+        throttle.recordLatency(1000);
+        assertEquals(600, throttle.getAverageLatency());
+        assertEquals(110, throttle.getDelay());
+        throttle.downloadStarted();
+        throttle.downloadStarted();
+        throttle.downloadStarted();
+        assertEquals(3, throttle.getActiveDownloads());
+        assertEquals(310, throttle.getDelay());
+
+        //up to the maximum delay
+        for(int i = 0; i < 10; i++){
+            throttle.downloadStarted();
+        }
+        assertEquals(1000, throttle.getDelay());
+        for(int i = 0; i < 13; i++){
+            throttle.downloadFinished();
+        }
+        assertEquals(0, throttle.getActiveDownloads());
+        assertEquals(110, throttle.getDelay());
+    }
+
+    @Test
+    public void testPauseKeepsTheInterrupt(){
+        DownloadThrottle throttle = throttle();
+        throttle.setMinDelay(10000);
+        long start = System.currentTimeMillis();
+        Thread.currentThread().interrupt();
+        throttle.pause();
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertTrue(Thread.interrupted());
+    }
+}
@@ -0,0 +1,144 @@
+package au.org.ala.biocache.util;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelZipOutputStreamTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setup(){
+        executor = Executors.newFixedThreadPool(3);
+    }
+
+    @After
+    public void tearDown(){
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the records as a CSVWriter writes them, with quotes and newlines in some of the values
+     */
+    private String records(int count, char esc){
+        StringBuilder csv = new StringBuilder("\"uuid\",\"remarks\"\n");
+        for(int i = 0; i < count; i++){
+            String remarks = i % 3 == 0 ? "seen\nnear the " + esc + "\"creek" + esc + "\"" : "value " + i;
+            csv.append("\"").append(i).append("\",\"").append(remarks).append("\"\n");
+        }
+        return csv.toString();
+    }
+
+    /**
+     * Reads the entries back, the parts without their header are appended to the first.
+     */
+    private List<String[]> unzip(byte[] zip) throws Exception {
+        List<String[]> entries = new ArrayList<String[]>();
+        ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip));
+        for(ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()){
+            entries.add(new String[]{entry.getName(), IOUtils.toString(in, "UTF-8")});
+        }
+        return entries;
+    }
+
+    @Test
+    public void testSplitBetweenRecords() throws Exception {
+        for(char esc : new char[]{'"', '\\'}){
+            String csv = records(1000, esc);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ZipOutputStream zop = new ParallelZipOutputStream(bytes, executor, 2, 1000, esc);
+            zop.putNextEntry(new ZipEntry("data.csv"));
+            //small writes that start and end in the middle of the records
+            byte[] data = csv.getBytes("UTF-8");
+            for(int i = 0; i < data.length; i += 7){
+                zop.write(data, i, Math.min(7, data.length - i));
+            }
+            zop.putNextEntry(new ZipEntry("README.html"));
+            zop.write("For more information".getBytes("UTF-8"));
+            zop.close();
+
+            List<String[]> entries = unzip(bytes.toByteArray());
+            assertTrue(entries.size() > 10);
+            String header = "\"uuid\",\"remarks\"\n";
+            StringBuilder joined = new StringBuilder();
+            for(int i = 0; i < entries.size() - 1; i++){
+                assertEquals(ParallelZipOutputStream.getPartName("data.csv", i + 1), entries.get(i)[0]);
+                //each part is a CSV file of whole records
+                assertTrue(entries.get(i)[1].startsWith(header));
+                assertTrue(entries.get(i)[1].endsWith("\"\n"));
+                joined.append(i == 0 ? entries.get(i)[1] : entries.get(i)[1].substring(header.length()));
+            }
+            assertEquals(csv, joined.toString());
+            assertEquals("README.html", entries.get(entries.size() - 1)[0]);
+            assertEquals("For more information", entries.get(entries.size() - 1)[1]);
+        }
+    }
+
+    @Test
+    public void testSmallEntries() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zop = new ParallelZipOutputStream(bytes, executor, 1, 1 << 20, '"');
+        String csv = records(10, '"');
+        zop.putNextEntry(new ZipEntry("data.csv"));
+        zop.write(csv.getBytes("UTF-8"));
+        zop.closeEntry();
+        zop.putNextEntry(new ZipEntry("empty.csv"));
+        zop.putNextEntry(new ZipEntry("citation.csv"));
+        zop.setLevel(9);
+        zop.write("\"uid\"\n\"dr1\"\n".getBytes("UTF-8"));
+        zop.close();
+
+        List<String[]> entries = unzip(bytes.toByteArray());
+        assertEquals(3, entries.size());
+        assertEquals("data.csv", entries.get(0)[0]);
+        assertEquals(csv, entries.get(0)[1]);
+        assertEquals("empty.csv", entries.get(1)[0]);
+        assertEquals("", entries.get(1)[1]);
+        assertEquals("citation.csv", entries.get(2)[0]);
+        assertEquals("\"uid\"\n\"dr1\"\n", entries.get(2)[1]);
+    }
+
+    @Test
+    public void testZip64() throws Exception {
+        //more entries than a plain zip can list
+        File file = File.createTempFile("parallel", ".zip");
+        try {
+            ZipOutputStream zop = new ParallelZipOutputStream(new FileOutputStream(file), executor, 4, 1, '"');
+            zop.putNextEntry(new ZipEntry("data.csv"));
+            zop.write(records(70000, '"').getBytes("UTF-8"));
+            zop.close();
+
+            ZipFile zip = new ZipFile(file);
+            try {
+                assertEquals(70000, zip.size());
+                ZipEntry last = zip.getEntry(ParallelZipOutputStream.getPartName("data.csv", 70000));
+                String records = IOUtils.toString(zip.getInputStream(last), "UTF-8");
+                assertTrue(records.startsWith("\"uuid\",\"remarks\"\n\"69999\","));
+                assertNull(zip.getEntry(ParallelZipOutputStream.getPartName("data.csv", 70001)));
+            } finally {
+                zip.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
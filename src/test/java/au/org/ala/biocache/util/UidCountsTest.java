@@ -0,0 +1,79 @@
+package au.org.ala.biocache.util;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+
+public class UidCountsTest {
+
+    private static final String[] UIDS = new String[]{"in4", "co12", "dp20", "dr359", "dr376"};
+
+    /**
+     * Increments the counts from the supplied number of threads.
+     */
+    private void count(final UidCounts counts, int threads, final int increments) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for(int t = 0; t < threads; t++){
+            workers[t] = new Thread(){
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch(InterruptedException e){
+                        return;
+                    }
+                    for(int i = 0; i < increments; i++){
+                        //every record of a resource counts against the same uids
+                        for(String uid : UIDS){
+                            counts.increment(uid);
+                        }
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        start.countDown();
+        for(Thread worker : workers){
+            worker.join();
+        }
+    }
+
+    @Test
+    public void testConcurrentIncrements() throws Exception {
+        UidCounts counts = new UidCounts();
+        count(counts, 8, 100000);
+
+        Map<String, Integer> map = counts.toMap();
+        assertEquals(UIDS.length, map.size());
+        for(String uid : UIDS){
+            assertEquals(800000, map.get(uid).intValue());
+            assertEquals(800000, counts.get(uid));
+        }
+    }
+
+    @Test
+    public void testMerge() {
+        UidCounts counts = new UidCounts();
+        counts.increment("dr359");
+        counts.increment(null);
+
+        UidCounts batch = new UidCounts(1);
+        batch.increment("dr359");
+        batch.increment("dr376");
+        counts.addAll(batch);
+
+        Map<String, Integer> checkpoint = new HashMap<String, Integer>();
+        checkpoint.put("dr376", 10);
+        counts.addAll(checkpoint);
+
+        assertEquals(2, counts.get("dr359"));
+        assertEquals(11, counts.get("dr376"));
+        assertEquals(0, counts.get("dr1"));
+        assertEquals(2, counts.toMap().size());
+    }
+}
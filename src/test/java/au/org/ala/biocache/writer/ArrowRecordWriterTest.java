@@ -0,0 +1,183 @@
+package au.org.ala.biocache.writer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ArrowRecordWriterTest {
+
+    private static final String[] HEADER = new String[]{"Scientific Name", "Latitude", "Year", "Event Date", "Zero Coordinates"};
+    private static final byte[] TYPES = new byte[]{ArrowRecordWriter.STRING, ArrowRecordWriter.DOUBLE,
+            ArrowRecordWriter.LONG, ArrowRecordWriter.DATE, ArrowRecordWriter.BOOLEAN};
+
+    /**
+     * Reads a table of a FlatBuffers buffer as the FlatBuffers library would.
+     */
+    private static class Table {
+        final ByteBuffer buffer;
+        final int position;
+        final int vtable;
+
+        Table(ByteBuffer buffer, int position){
+            this.buffer = buffer;
+            this.position = position;
+            this.vtable = position - buffer.getInt(position);
+            //the tables are aligned for their longs
+            assertEquals(0, position % 8);
+        }
+
+        static Table root(ByteBuffer buffer, int start){
+            return new Table(buffer, start + buffer.getInt(start));
+        }
+
+        int field(int id){
+            int entry = 4 + 2 * id;
+            return entry < buffer.getShort(vtable) ? buffer.getShort(vtable + entry) : 0;
+        }
+
+        long getLong(int id){
+            return buffer.getLong(position + field(id));
+        }
+
+        int getInt(int id){
+            return buffer.getInt(position + field(id));
+        }
+
+        int getShort(int id){
+            return buffer.getShort(position + field(id));
+        }
+
+        int getByte(int id){
+            return buffer.get(position + field(id));
+        }
+
+        int ref(int id){
+            int at = position + field(id);
+            return at + buffer.getInt(at);
+        }
+
+        Table getTable(int id){
+            return new Table(buffer, ref(id));
+        }
+
+        String getString(int id) throws Exception {
+            int at = ref(id);
+            byte[] bytes = new byte[buffer.getInt(at)];
+            for(int i = 0; i < bytes.length; i++){
+                bytes[i] = buffer.get(at + 4 + i);
+            }
+            return new String(bytes, "UTF-8");
+        }
+
+        int getVectorLength(int id){
+            return buffer.getInt(ref(id));
+        }
+
+        Table getTable(int id, int index){
+            int at = ref(id) + 4 + 4 * index;
+            return new Table(buffer, at + buffer.getInt(at));
+        }
+
+        long getStructLong(int id, int index){
+            assertEquals(0, (ref(id) + 4) % 8);
+            return buffer.getLong(ref(id) + 4 + 8 * index);
+        }
+    }
+
+    @Test
+    public void testArrowFile() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ArrowRecordWriter writer = new ArrowRecordWriter(out, HEADER, TYPES, 2);
+        writer.write(new String[]{"Acacia dealbata", "-35.5", "2001", "2001-02-03", "false"});
+        writer.write(new String[]{"", "", "", "", "true"});
+        writer.write(new String[]{"Eucalyptus", "12.25", "not a year", "1970-01-02", ""});
+        writer.finalise();
+
+        ByteBuffer file = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals("ARROW1", new String(out.toByteArray(), 0, 6, "ASCII"));
+        assertEquals("ARROW1", new String(out.toByteArray(), file.limit() - 6, 6, "ASCII"));
+        int footerLength = file.getInt(file.limit() - 10);
+        Table footer = Table.root(file, file.limit() - 10 - footerLength);
+        assertEquals(4, footer.getShort(0));
+
+        //the schema
+        Table schema = footer.getTable(1);
+        assertEquals(HEADER.length, schema.getVectorLength(1));
+        int[] arrowTypes = new int[]{5, 3, 2, 8, 6};
+        for(int i = 0; i < HEADER.length; i++){
+            Table field = schema.getTable(1, i);
+            assertEquals(HEADER[i], field.getString(0));
+            assertEquals(arrowTypes[i], field.getByte(2));
+            assertEquals(0, field.getVectorLength(5));
+        }
+        assertEquals(64, schema.getTable(1, 2).getTable(3).getInt(0));
+        assertEquals(2, schema.getTable(1, 1).getTable(3).getShort(0));
+
+        //the first record batch of 2 rows
+        assertEquals(2, footer.getVectorLength(3));
+        int offset = (int) footer.getStructLong(3, 0);
+        int metadataLength = (int) footer.getStructLong(3, 1);
+        assertEquals(-1, file.getInt(offset));
+        assertEquals(metadataLength - 8, file.getInt(offset + 4));
+        Table message = Table.root(file, offset + 8);
+        assertEquals(3, message.getByte(1));
+        assertEquals(footer.getStructLong(3, 2), message.getLong(3));
+        Table batch = message.getTable(2);
+        assertEquals(2, batch.getLong(0));
+        assertEquals(HEADER.length, batch.getVectorLength(1));
+        //the names have one null
+        assertEquals(2, batch.getStructLong(1, 0));
+        assertEquals(1, batch.getStructLong(1, 1));
+        int body = offset + metadataLength;
+
+        //validity, offsets and data of the names
+        assertEquals(1, file.get(body + (int) batch.getStructLong(2, 0)));
+        int offsets = body + (int) batch.getStructLong(2, 2);
+        assertEquals(0, file.getInt(offsets));
+        assertEquals(15, file.getInt(offsets + 4));
+        assertEquals(15, file.getInt(offsets + 8));
+        assertEquals("Acacia dealbata", new String(out.toByteArray(), body + (int) batch.getStructLong(2, 4), 15, "UTF-8"));
+        //the latitudes, years and dates
+        assertEquals(-35.5, file.getDouble(body + (int) batch.getStructLong(2, 8)), 0);
+        assertEquals(2001L, file.getLong(body + (int) batch.getStructLong(2, 12)));
+        assertEquals(11356, file.getInt(body + (int) batch.getStructLong(2, 16)));
+        //both flags are valid, the second is true
+        assertEquals(3, file.get(body + (int) batch.getStructLong(2, 18)));
+        assertEquals(2, file.get(body + (int) batch.getStructLong(2, 20)));
+        for(int i = 0; i < batch.getVectorLength(2); i++){
+            assertEquals(0, batch.getStructLong(2, i * 2) % 8);
+        }
+
+        //the last record batch of 1 row with an invalid year
+        offset = (int) footer.getStructLong(3, 3);
+        batch = Table.root(file, offset + 8).getTable(2);
+        body = offset + (int) footer.getStructLong(3, 4);
+        assertEquals(1, batch.getLong(0));
+        assertEquals(1, batch.getStructLong(1, 5));
+        assertEquals(0, file.get(body + (int) batch.getStructLong(2, 10)));
+        assertEquals(1, file.getInt(body + (int) batch.getStructLong(2, 16)));
+        assertEquals(0, file.get(body + (int) batch.getStructLong(2, 18)));
+
+        //the end of the stream is before the footer
+        int end = offset + (int) footer.getStructLong(3, 4) + (int) footer.getStructLong(3, 5);
+        assertEquals(-1, file.getInt(end));
+        assertEquals(0, file.getInt(end + 4));
+        assertEquals(file.limit() - 10 - footerLength, end + 8);
+        assertTrue(end % 8 == 0);
+    }
+
+    @Test
+    public void testColumnTypes() {
+        assertEquals(ArrowRecordWriter.DOUBLE, ArrowRecordWriter.getColumnType("tdouble"));
+        assertEquals(ArrowRecordWriter.LONG, ArrowRecordWriter.getColumnType("tint"));
+        assertEquals(ArrowRecordWriter.DATE, ArrowRecordWriter.getColumnType("tdate"));
+        assertEquals(ArrowRecordWriter.BOOLEAN, ArrowRecordWriter.getColumnType("boolean"));
+        assertEquals(ArrowRecordWriter.STRING, ArrowRecordWriter.getColumnType("point"));
+        assertEquals(ArrowRecordWriter.STRING, ArrowRecordWriter.getColumnType(null));
+    }
+}
@@ -0,0 +1,51 @@
+package au.org.ala.biocache.writer;
+
+import org.apache.solr.common.SolrDocument;
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import static org.junit.Assert.assertEquals;
+
+public class CSVRecordEncoderTest {
+
+    private static final String[] FIELDS = new String[]{"id", "raw_taxon_name", "occurrence_date", "latitude"};
+    private static final String[] QA_FIELDS = new String[]{"zeroCoordinates", "invalidCollectionDate"};
+
+    private SolrDocument createDocument(){
+        SolrDocument sd = new SolrDocument();
+        sd.addField("id", "a1");
+        sd.addField("raw_taxon_name", "Acacia \"dealbata\"");
+        sd.addField("occurrence_date", new GregorianCalendar(987, Calendar.MARCH, 5).getTime());
+        sd.addField("latitude", -35.5);
+        sd.addField("assertions", "invalidCollectionDate");
+        sd.addField("assertions", "unknownAssertion");
+        return sd;
+    }
+
+    @Test
+    public void testEncodesAsCsvRecordWriter() throws Exception {
+        CSVRecordEncoder encoder = new CSVRecordEncoder(FIELDS, QA_FIELDS, ',', '"');
+        encoder.encode(createDocument());
+        SolrDocument missing = new SolrDocument();
+        missing.addField("id", "a2");
+        encoder.encode(missing);
+
+        String expected = "\"a1\",\"Acacia \"\"dealbata\"\"\",\"0987-03-05\",\"-35.5\",\"false\",\"true\"\n"
+                + "\"a2\",\"\",\"\",\"\",\"false\",\"false\"\n";
+        assertEquals(expected, new String(encoder.toByteArray()));
+        assertEquals(0, encoder.size());
+    }
+
+    @Test
+    public void testEscapeAndSeparator() throws Exception {
+        CSVRecordEncoder encoder = new CSVRecordEncoder(new String[]{"raw_locality"}, new String[]{}, '\t', '\\');
+        SolrDocument sd = new SolrDocument();
+        sd.addField("raw_locality", "Mt \"Kosciuszko\" \\ Snowy – Köln");
+        encoder.encode(sd);
+
+        String expected = "\"Mt \\\"Kosciuszko\\\" \\\\ Snowy – Köln\"\n";
+        assertEquals(expected, new String(encoder.toByteArray()));
+    }
+}
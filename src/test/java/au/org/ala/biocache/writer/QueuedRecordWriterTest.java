@@ -0,0 +1,151 @@
+package au.org.ala.biocache.writer;
+
+import au.org.ala.biocache.RecordWriter;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class QueuedRecordWriterTest {
+
+    /**
+     * Collects the records in memory, recording the thread that wrote them.
+     */
+    private static class CollectingWriter implements RecordWriter {
+        List<String[]> records = new ArrayList<String[]>();
+        java.util.Set<String> threads = new java.util.HashSet<String>();
+        boolean finalised = false;
+
+        @Override
+        public void write(String[] record) {
+            threads.add(Thread.currentThread().getName());
+            records.add(record);
+        }
+
+        @Override
+        public void finalise() {
+            finalised = true;
+        }
+    }
+
+    @Test
+    public void testAllBatchesWrittenBySingleThread() throws Exception {
+        CollectingWriter collector = new CollectingWriter();
+        final QueuedRecordWriter writer = new QueuedRecordWriter(collector, 2);
+        ExecutorService pool = Executors.newFixedThreadPool(6);
+        for(int t = 0; t < 6; t++){
+            pool.submit(new java.util.concurrent.Callable<Void>(){
+                @Override
+                public Void call() throws Exception {
+                    for(int b = 0; b < 50; b++){
+                        List<String[]> batch = new ArrayList<String[]>();
+                        for(int r = 0; r < 10; r++){
+                            batch.add(new String[]{Integer.toString(r)});
+                        }
+                        writer.writeBatch(batch);
+                    }
+                    return null;
+                }
+            });
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+        writer.finalise();
+
+        assertEquals(3000, collector.records.size());
+        assertEquals(1, collector.threads.size());
+        assertTrue(collector.finalised);
+        assertNull(writer.getError());
+    }
+
+    @Test
+    public void testProducersNotBlockedAfterWriterFailure() throws Exception {
+        RecordWriter failing = new RecordWriter(){
+            @Override
+            public void write(String[] record) {
+                throw new RuntimeException("disk full");
+            }
+
+            @Override
+            public void finalise() {}
+        };
+        QueuedRecordWriter writer = new QueuedRecordWriter(failing, 1);
+        for(int i = 0; i < 100; i++){
+            writer.write(new String[]{"value"});
+        }
+        writer.finalise();
+        assertEquals("disk full", writer.getError().getMessage());
+    }
+
+    @Test
+    public void testCallbacksRunAfterTheirRecords() throws Exception {
+        final CollectingWriter collector = new CollectingWriter();
+        QueuedRecordWriter writer = new QueuedRecordWriter(collector, 2);
+        final List<Integer> writtenWhenCalled = new ArrayList<Integer>();
+        for(int b = 0; b < 10; b++){
+            List<String[]> batch = new ArrayList<String[]>();
+            batch.add(new String[]{Integer.toString(b)});
+            writer.writeBatch(batch, new Runnable(){
+                @Override
+                public void run() {
+                    writtenWhenCalled.add(collector.records.size());
+                }
+            });
+        }
+        writer.finalise();
+
+        assertEquals(10, writtenWhenCalled.size());
+        for(int b = 0; b < 10; b++){
+            assertEquals(Integer.valueOf(b + 1), writtenWhenCalled.get(b));
+        }
+    }
+
+    @Test
+    public void testFinaliseFromAnInterruptedThread() throws Exception {
+        final AtomicBoolean writing = new AtomicBoolean();
+        final AtomicBoolean overlapped = new AtomicBoolean();
+        final AtomicBoolean finalised = new AtomicBoolean();
+        final CountDownLatch started = new CountDownLatch(1);
+        RecordWriter slow = new RecordWriter(){
+            @Override
+            public void write(String[] record) {
+                writing.set(true);
+                started.countDown();
+                //a write that doesn't respond to interrupts, like a blocked socket
+                long end = System.currentTimeMillis() + 50;
+                while(System.currentTimeMillis() < end){
+                    Thread.yield();
+                }
+                writing.set(false);
+            }
+
+            @Override
+            public void finalise() {
+                overlapped.set(writing.get());
+                finalised.set(true);
+            }
+        };
+        QueuedRecordWriter writer = new QueuedRecordWriter(slow, 5);
+        for(int i = 0; i < 5; i++){
+            writer.write(new String[]{"value"});
+        }
+        started.await();
+
+        Thread.currentThread().interrupt();
+        writer.finalise();
+        //the interrupt is kept
+        assertTrue(Thread.interrupted());
+        assertTrue(finalised.get());
+        assertFalse(overlapped.get());
+    }
+}